@@ -433,5 +433,45 @@ public class SmartScriptEngine {
 	public void execute() {
 		documentNode.accept(visitor);
 	}
+	
+	/**
+	 * Checks if the loaded script sets persistent parameters, which are kept
+	 * in user's session.
+	 * 
+	 * @return <b>true</b> if script sets persistent parameters
+	 */
+	public boolean usesPersistentParameters() {
+		boolean[] uses = new boolean[1];
+		documentNode.accept(new INodeVisitor() {
+			@Override
+			public void visitTextNode(TextNode node) {
+			}
+			
+			@Override
+			public void visitForLoopNode(ForLoopNode node) {
+				for(int i = 0; i < node.numberOfChildren(); ++i) {
+					node.getChild(i).accept(this);
+				}
+			}
+			
+			@Override
+			public void visitEchoNode(EchoNode node) {
+				for(Element elem : node.getElements()) {
+					if(elem instanceof ElementFunction
+							&& elem.asText().equals("@pparamSet")) {
+						uses[0] = true;
+					}
+				}
+			}
+			
+			@Override
+			public void visitDocumentNode(DocumentNode node) {
+				for(int i = 0; i < node.numberOfChildren(); ++i) {
+					node.getChild(i).accept(this);
+				}
+			}
+		});
+		return uses[0];
+	}
 
 }
\ No newline at end of file
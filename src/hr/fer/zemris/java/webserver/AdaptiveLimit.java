@@ -0,0 +1,205 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdaptiveLimit limits the number of requests of {@link SmartHttpServer}
+ * which run workers and scripts at once, adjusting the limit to measured
+ * latency instead of relying on a fixed number of threads.
+ *
+ * <p>Limit is adjusted by the gradient algorithm. Service times of
+ * requests are averaged over short windows and compared to a slowly moving
+ * average, which estimates latency without queueing. While latency stays
+ * near the long average, limit grows by about its square root per window.
+ * Once requests start queueing for the CPU or other resources, latency
+ * rises and the limit shrinks in proportion, so concurrency settles near
+ * the knee of the latency curve. Limit does not grow while less than half
+ * of it is used, since such windows say nothing about larger load.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class AdaptiveLimit {
+
+	/**
+	 * Minimal number of samples in a window.
+	 */
+	private static final int WINDOW_SAMPLES = 10;
+	/**
+	 * Default minimal duration of a window in nanoseconds.
+	 */
+	private static final long WINDOW_NANOS = 100_000_000L;
+	/**
+	 * Weight of a window's latency in the long average.
+	 */
+	private static final double LONG_WEIGHT = 0.01;
+	/**
+	 * Weight of the new limit when the limit is changed.
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	/**
+	 * Minimal limit.
+	 */
+	private final int minLimit;
+	/**
+	 * Maximal limit.
+	 */
+	private final int maxLimit;
+	/**
+	 * Minimal duration of a window in nanoseconds.
+	 */
+	private final long windowNanos;
+	/**
+	 * Current limit, whose integer part bounds running requests.
+	 */
+	private volatile double limit;
+	/**
+	 * Number of running requests.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+	/**
+	 * Long average of latency in nanoseconds, 0 before the first window.
+	 */
+	private double longLatency;
+	/**
+	 * Sum of service times in the current window.
+	 */
+	private long windowSum;
+	/**
+	 * Number of samples in the current window.
+	 */
+	private int windowCount;
+	/**
+	 * Largest number of running requests seen in the current window.
+	 */
+	private int windowInFlight;
+	/**
+	 * Start of the current window, as given by {@link System#nanoTime()}.
+	 */
+	private long windowStart = System.nanoTime();
+	/**
+	 * Number of rejected requests.
+	 */
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param initialLimit initial limit
+	 * @param maxLimit maximal limit
+	 * @throws IllegalArgumentException if maximal limit is lesser than 1
+	 */
+	public AdaptiveLimit(int initialLimit, int maxLimit) {
+		this(initialLimit, maxLimit, WINDOW_NANOS);
+	}
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param initialLimit initial limit
+	 * @param maxLimit maximal limit
+	 * @param windowNanos minimal duration of a window in nanoseconds
+	 * @throws IllegalArgumentException if maximal limit is lesser than 1
+	 */
+	AdaptiveLimit(int initialLimit, int maxLimit, long windowNanos) {
+		if(maxLimit < 1) {
+			throw new IllegalArgumentException(
+					"Maximal concurrency limit must be positive.");
+		}
+
+		this.minLimit = 1;
+		this.maxLimit = maxLimit;
+		this.windowNanos = windowNanos;
+		this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+	}
+
+	/**
+	 * Lets a request run, unless the limit has been reached. Every admitted
+	 * request must be followed by {@link #release(long)}.
+	 *
+	 * @return <b>true</b> if request may run
+	 */
+	public boolean tryAcquire() {
+		while(true) {
+			int current = inFlight.get();
+			if(current >= (int)limit) {
+				rejected.increment();
+				return false;
+			}
+			if(inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of a request and records its service time. When the
+	 * window is over, limit is adjusted.
+	 *
+	 * @param start time at which request has started running, as given by
+	 * {@link System#nanoTime()}
+	 */
+	public void release(long start) {
+		long now = System.nanoTime();
+		int running = inFlight.getAndDecrement();
+		synchronized (this) {
+			windowSum += now - start;
+			windowCount++;
+			windowInFlight = Math.max(windowInFlight, running);
+			if(windowCount >= WINDOW_SAMPLES
+					&& now - windowStart >= windowNanos) {
+				adjust((double)windowSum / windowCount);
+				windowSum = 0;
+				windowCount = 0;
+				windowInFlight = 0;
+				windowStart = now;
+			}
+		}
+	}
+
+	/**
+	 * Gets the current limit.
+	 *
+	 * @return limit
+	 */
+	public int getLimit() {
+		return (int)limit;
+	}
+
+	@Override
+	public String toString() {
+		return "limit=" + getLimit() + ", inFlight=" + inFlight.get()
+				+ ", rejected=" + rejected.sum();
+	}
+
+	/**
+	 * Adjusts the limit to the average latency of the finished window.
+	 *
+	 * @param shortLatency average latency of the window in nanoseconds
+	 */
+	private void adjust(double shortLatency) {
+		if(longLatency == 0) {
+			longLatency = shortLatency;
+		} else {
+			longLatency += (shortLatency - longLatency) * LONG_WEIGHT;
+		}
+		//long average which lags far behind a sustained drop of latency
+		//would let the limit grow without bound
+		if(longLatency > 2 * shortLatency) {
+			longLatency *= 0.95;
+		}
+
+		double current = limit;
+		if(windowInFlight < current / 2) {
+			return;
+		}
+		double gradient = Math.max(0.5,
+				Math.min(1.0, longLatency / shortLatency));
+		double target = current * gradient + Math.sqrt(current);
+		double next = current * (1 - SMOOTHING) + target * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, next));
+	}
+
+}
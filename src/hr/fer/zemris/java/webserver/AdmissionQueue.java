@@ -0,0 +1,165 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionQueue bounds the number of requests of {@link SmartHttpServer}
+ * which wait for a worker thread, and the time they may wait. A request is
+ * {@link #admit() admitted} before it is handed to the thread pool and
+ * {@link #start(long) started} once a worker thread picks it up. Request
+ * which is not admitted because the queue is full, or which has waited
+ * longer than the deadline, is answered with a pre-encoded
+ * <i>503 Service Unavailable</i> response, so an overloaded server fails
+ * fast instead of letting latency grow without bound.
+ *
+ * <p>Only the number of waiting requests is counted, so the queue works
+ * with every kind of executor.</p>
+ *
+ * <p>The same deadline bounds the time a started request may wait for a
+ * permit of a {@link #acquire(Semaphore) concurrency limit}.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class AdmissionQueue {
+
+	/**
+	 * Maximal number of waiting requests, 0 if it is unbounded.
+	 */
+	private final int depth;
+	/**
+	 * Maximal waiting time in nanoseconds, 0 if it is unbounded.
+	 */
+	private final long deadline;
+	/**
+	 * Encoded response to a request which is not served.
+	 */
+	private final byte[] response;
+	/**
+	 * Number of waiting requests.
+	 */
+	private final AtomicInteger waiting = new AtomicInteger();
+	/**
+	 * Number of requests which have not been admitted.
+	 */
+	private final LongAdder rejected = new LongAdder();
+	/**
+	 * Number of requests which have waited longer than the deadline.
+	 */
+	private final LongAdder expired = new LongAdder();
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param depth maximal number of waiting requests, 0 if it is unbounded
+	 * @param deadlineMillis maximal waiting time in milliseconds, 0 if it is
+	 * unbounded
+	 * @param retryAfter number of seconds after which client should retry
+	 * a request which is not served
+	 * @throws IllegalArgumentException if any argument is negative
+	 */
+	public AdmissionQueue(int depth, long deadlineMillis, int retryAfter) {
+		if(depth < 0 || deadlineMillis < 0 || retryAfter < 0) {
+			throw new IllegalArgumentException(
+					"Limits of request queue can not be negative.");
+		}
+
+		this.depth = depth;
+		this.deadline = deadlineMillis * 1_000_000L;
+		String body = "<html><head><title>Service Unavailable</title></head>"
+				+ "<body><b>503 Service Unavailable</b></body></html>";
+		response = ("HTTP/1.1 503 Service Unavailable\r\n"
+				+ "Server: Smart Http Server\r\n"
+				+ "Retry-After: " + retryAfter + "\r\n"
+				+ "Content-Type: text/html;charset=UTF-8\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "Connection: close\r\n"
+				+ "\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Admits a request to the queue, unless the queue is full.
+	 *
+	 * @return <b>true</b> if request has been admitted
+	 */
+	public boolean admit() {
+		if(depth == 0) {
+			waiting.incrementAndGet();
+			return true;
+		}
+
+		while(true) {
+			int current = waiting.get();
+			if(current >= depth) {
+				rejected.increment();
+				return false;
+			}
+			if(waiting.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes an admitted request from the queue once a worker thread picks
+	 * it up, and checks whether it has waited longer than the deadline.
+	 *
+	 * @param admittedAt time of admission, as given by
+	 * {@link System#nanoTime()}
+	 * @return <b>true</b> if request should be served
+	 */
+	public boolean start(long admittedAt) {
+		waiting.decrementAndGet();
+		if(deadline != 0 && System.nanoTime() - admittedAt > deadline) {
+			expired.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for a permit of given concurrency limit, but not longer than
+	 * the deadline.
+	 *
+	 * @param limit concurrency limit
+	 * @return <b>true</b> if permit has been acquired, <b>false</b> if
+	 * request should not be served
+	 */
+	public boolean acquire(Semaphore limit) {
+		try {
+			if(deadline == 0) {
+				limit.acquire();
+				return true;
+			}
+			if(limit.tryAcquire(deadline, TimeUnit.NANOSECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		expired.increment();
+		return false;
+	}
+
+	/**
+	 * Gets encoded <i>503 Service Unavailable</i> response to a request
+	 * which is not served. Returned array must not be modified.
+	 *
+	 * @return encoded response
+	 */
+	public byte[] getResponse() {
+		return response;
+	}
+
+	@Override
+	public String toString() {
+		return "waiting=" + waiting.get() + ", rejected=" + rejected.sum()
+				+ ", expired=" + expired.sum();
+	}
+
+}
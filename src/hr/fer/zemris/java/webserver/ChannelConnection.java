@@ -0,0 +1,731 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import hr.fer.zemris.java.webserver.http.HttpParseException;
+import hr.fer.zemris.java.webserver.http.HttpRequest;
+import hr.fer.zemris.java.webserver.http.HttpRequestParser;
+
+/**
+ * ChannelConnection models a single non-blocking client connection which is
+ * owned by {@link SmartHttpServer}'s event loop thread.
+ *
+ * <p>Event loop thread reads bytes of requests into connection's buffer and
+ * parses them with connection's {@link HttpRequestParser}. Every request
+ * whose whole header has been received becomes an {@link Exchange} which is
+ * dispatched to one of server's workers. Bytes following the request's
+ * header are kept in the buffer, and a request which client has pipelined
+ * is dispatched as soon as the response to the previous one is generated,
+ * without waiting for it to be written. Workers of a connection therefore
+ * never wait for each other, and a single connection occupies at most one
+ * worker thread. At most the given number of exchanges is in flight at
+ * once.</p>
+ *
+ * <p>Worker writes the response on {@link OutputStream} of its exchange,
+ * which only queues the bytes. Event loop thread writes responses on the
+ * channel in order in which requests were received, so a response is held
+ * back until all earlier responses are written. If too many bytes are queued
+ * on an exchange, its worker is blocked until the event loop thread drains
+ * the queue, so slow clients can not make the server buffer whole
+ * responses. Worker which runs on the event loop thread itself can not wait
+ * for it, so its response is queued whole. Parts of files are queued as
+ * file regions and transferred straight from the file system to the
+ * channel. Cached content is queued as a view of its buffer, without
+ * copying.</p>
+ *
+ * <p>Connection whose responses wait to be written, but which has not
+ * taken any bytes for too long, is {@link #isStalled(long, long) stalled}
+ * and should be closed, which also releases its blocked worker.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class ChannelConnection {
+
+	/**
+	 * Maximal number of queued bytes of a single response before its worker
+	 * is blocked.
+	 */
+	private static final int MAX_QUEUED_BYTES = 64 * 1024;
+
+	/**
+	 * Client's channel.
+	 */
+	private final SocketChannel channel;
+	/**
+	 * Key by which the channel is registered on event loop's selector.
+	 */
+	private final SelectionKey key;
+	/**
+	 * Executor which runs given tasks on the event loop thread.
+	 */
+	private final Executor eventLoop;
+	/**
+	 * Buffer into which requests are read. Unparsed request always starts at
+	 * the beginning of the buffer.
+	 */
+	private final ByteBuffer readBuffer;
+	/**
+	 * Parser of requests received on this connection.
+	 */
+	private final HttpRequestParser parser;
+	/**
+	 * Maximal number of exchanges in flight.
+	 */
+	private final int maxInFlight;
+	/**
+	 * Lock which guards the exchanges and their queued bytes.
+	 */
+	private final Object lock = new Object();
+	/**
+	 * Exchanges in flight, in order in which requests were received.
+	 */
+	private final Deque<Exchange> exchanges = new ArrayDeque<>();
+	/**
+	 * Flag which indicates that the connection is closed.
+	 */
+	private boolean closed;
+	/**
+	 * Flag which indicates that client will send no more bytes.
+	 */
+	private boolean inputClosed;
+	/**
+	 * Flag which indicates that a request could not be parsed, so nothing
+	 * more is read from the client.
+	 */
+	private boolean failed;
+	/**
+	 * Number of requests received on this connection.
+	 */
+	private int requestCount;
+	/**
+	 * Time, in nanoseconds, when connection last finished a response or
+	 * received some bytes.
+	 */
+	private long lastActivity = System.nanoTime();
+	/**
+	 * Time, in nanoseconds, since which connection waits to write queued
+	 * bytes without any progress, 0 if it has nothing to write.
+	 */
+	private long writeWaitingSince;
+	/**
+	 * Time, in nanoseconds, at which the first byte of the request which is
+	 * being received arrived, 0 if no such byte is buffered.
+	 */
+	private long requestStart;
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param channel client's channel
+	 * @param key key by which channel is registered on event loop's selector
+	 * @param eventLoop executor which runs tasks on event loop thread
+	 * @param maxRequestSize maximal size of request's header in bytes
+	 * @param parser parser of requests
+	 * @param maxInFlight maximal number of pipelined requests in flight
+	 * @throws NullPointerException if any of given references is null
+	 * @throws IllegalArgumentException if maximal number of requests in
+	 * flight is lesser than 1
+	 */
+	public ChannelConnection(SocketChannel channel, SelectionKey key,
+			Executor eventLoop, int maxRequestSize, HttpRequestParser parser,
+			int maxInFlight) {
+		Objects.requireNonNull(channel);
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(eventLoop);
+		Objects.requireNonNull(parser);
+		if(maxInFlight < 1) {
+			throw new IllegalArgumentException(
+					"At least one request must be allowed in flight.");
+		}
+
+		this.channel = channel;
+		this.key = key;
+		this.eventLoop = eventLoop;
+		this.readBuffer = ByteBuffer.allocate(maxRequestSize);
+		this.parser = parser;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Reads available bytes from channel. Must be called from the event loop
+	 * thread.
+	 *
+	 * @throws IOException if channel has been closed by the client before
+	 * sending a request or I/O error of any kind has occurred
+	 */
+	public void handleRead() throws IOException {
+		synchronized (lock) {
+			if(!readBuffer.hasRemaining()) {
+				updateInterest();
+				return;
+			}
+
+			boolean empty = readBuffer.position() == 0;
+			if(channel.read(readBuffer) == -1) {
+				inputClosed = true;
+				if(exchanges.isEmpty() && readBuffer.position() == 0) {
+					throw new IOException("Connection closed by client.");
+				}
+			}
+			lastActivity = System.nanoTime();
+			if(empty && readBuffer.position() > 0) {
+				requestStart = lastActivity;
+			}
+			updateInterest();
+		}
+	}
+
+	/**
+	 * Takes the next complete request from connection's buffer. Must be
+	 * called from the event loop thread.
+	 *
+	 * @return exchange of the next request, <b>null</b> if there is no
+	 * complete request in the buffer, response to the previous request is
+	 * still being generated or too many requests are in flight
+	 */
+	public Exchange nextRequest() {
+		synchronized (lock) {
+			Exchange last = exchanges.peekLast();
+			if(closed || failed || exchanges.size() >= maxInFlight
+					|| last != null && !last.completed) {
+				return null;
+			}
+
+			Exchange exchange;
+			readBuffer.flip();
+			try {
+				if(!parser.parse(readBuffer)) {
+					boolean full = readBuffer.limit() == readBuffer.capacity();
+					readBuffer.position(readBuffer.limit());
+					readBuffer.limit(readBuffer.capacity());
+					if(full) {
+						throw new HttpParseException(
+								431, "Request Header Fields Too Large");
+					}
+					if(inputClosed && exchanges.isEmpty()) {
+						closeNow();
+					}
+					return null;
+				}
+				
+				exchange = new Exchange(
+						parser.toRequest(readBuffer), null, ++requestCount);
+				readBuffer.compact();
+				parser.reset();
+				requestStart = readBuffer.position() > 0 
+						? System.nanoTime() : 0;
+			} catch (HttpParseException e) {
+				failed = true;
+				readBuffer.clear();
+				requestStart = 0;
+				exchange = new Exchange(null, e, ++requestCount);
+			}
+			
+			exchanges.add(exchange);
+			updateInterest();
+			return exchange;
+		}
+	}
+
+	/**
+	 * Writes queued response bytes on channel, in order in which requests
+	 * were received. Must be called from the event loop thread.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	public void handleWrite() throws IOException {
+		synchronized (lock) {
+			while(!exchanges.isEmpty()) {
+				Exchange head = exchanges.peek();
+				while(!head.queue.isEmpty()) {
+					Chunk chunk = head.queue.peek();
+					int written = chunk.writeTo(channel);
+					head.queuedBytes -= written;
+					if(written > 0) {
+						writeWaitingSince = System.nanoTime();
+					}
+					if(!chunk.isDone()) {
+						lock.notifyAll();
+						updateInterest();
+						return;
+					}
+					head.queue.poll();
+					chunk.release();
+				}
+				lock.notifyAll();
+
+				if(!head.completed) {
+					break;
+				}
+				exchanges.poll();
+				lastActivity = System.nanoTime();
+				if(head.closeAfter) {
+					closeNow();
+					return;
+				}
+				if(exchanges.isEmpty() && requestStart != 0) {
+					//time spent on earlier responses is not client's fault
+					requestStart = lastActivity;
+				}
+			}
+			updateInterest();
+		}
+	}
+
+	/**
+	 * Checks if connection is waiting for a request for longer than given
+	 * time. Must be called from the event loop thread.
+	 *
+	 * @param now current time in nanoseconds
+	 * @param timeout allowed idle time in nanoseconds
+	 * @return <b>true</b> if connection has been idle for too long
+	 */
+	public boolean isIdle(long now, long timeout) {
+		synchronized (lock) {
+			return exchanges.isEmpty() && now - lastActivity > timeout;
+		}
+	}
+
+	/**
+	 * Checks if connection has started receiving a request, but has not
+	 * received the whole request within given time, no matter how often
+	 * client sends a part of it. Must be called from the event loop thread.
+	 *
+	 * @param now current time in nanoseconds
+	 * @param timeout allowed time for receiving a request in nanoseconds
+	 * @return <b>true</b> if request is overdue
+	 */
+	public boolean isRequestOverdue(long now, long timeout) {
+		synchronized (lock) {
+			return requestStart != 0 && exchanges.isEmpty()
+					&& now - requestStart > timeout;
+		}
+	}
+
+	/**
+	 * Checks if connection has bytes to write, but client has not taken
+	 * any of them for longer than given time. Must be called from the event
+	 * loop thread.
+	 *
+	 * @param now current time in nanoseconds
+	 * @param timeout allowed time without progress in nanoseconds
+	 * @return <b>true</b> if connection is stalled
+	 */
+	public boolean isStalled(long now, long timeout) {
+		synchronized (lock) {
+			return writeWaitingSince != 0 
+					&& now - writeWaitingSince > timeout;
+		}
+	}
+
+	/**
+	 * Closes the channel immediately, discarding any queued bytes.
+	 */
+	public void closeNow() {
+		synchronized (lock) {
+			closed = true;
+			for(Exchange exchange : exchanges) {
+				for(Chunk chunk : exchange.queue) {
+					chunk.release();
+				}
+			}
+			exchanges.clear();
+			lock.notifyAll();
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException ignorable) {
+		}
+	}
+
+	/**
+	 * Sets operations in which connection is interested, depending on the
+	 * state of its buffer and exchanges. Must be called from the event loop
+	 * thread while holding the lock.
+	 */
+	private void updateInterest() {
+		if(closed || !key.isValid()) {
+			return;
+		}
+
+		int ops = 0;
+		if(!inputClosed && !failed && exchanges.size() < maxInFlight
+				&& readBuffer.hasRemaining()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		Exchange head = exchanges.peek();
+		if(head != null && (head.completed || !head.queue.isEmpty())) {
+			ops |= SelectionKey.OP_WRITE;
+			if(writeWaitingSince == 0) {
+				writeWaitingSince = System.nanoTime();
+			}
+		} else {
+			writeWaitingSince = 0;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Lets the event loop thread know that the state of exchanges has
+	 * changed.
+	 */
+	private void requestUpdate() {
+		if(eventLoop == Thread.currentThread()) {
+			synchronized (lock) {
+				updateInterest();
+			}
+			return;
+		}
+		eventLoop.execute(() -> {
+			synchronized (lock) {
+				updateInterest();
+			}
+		});
+	}
+
+	/**
+	 * Chunk models a part of the response which is waiting to be written
+	 * on the channel.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private interface Chunk {
+		/**
+		 * Writes as much of this chunk on given channel as channel accepts.
+		 *
+		 * @param channel client's channel
+		 * @return number of written bytes which were held in the heap
+		 * @throws IOException if I/O error of any kind has occurred
+		 */
+		int writeTo(SocketChannel channel) throws IOException;
+
+		/**
+		 * Checks if the whole chunk has been written.
+		 *
+		 * @return <b>true</b> if chunk has been written
+		 */
+		boolean isDone();
+
+		/**
+		 * Releases resources held by this chunk.
+		 */
+		void release();
+	}
+
+	/**
+	 * Chunk of bytes held in a {@link ByteBuffer}.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class BufferChunk implements Chunk {
+		/**
+		 * Bytes of the chunk.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Instantiates this class with given bytes.
+		 *
+		 * @param buffer bytes of the chunk
+		 */
+		public BufferChunk(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int writeTo(SocketChannel channel) throws IOException {
+			return channel.write(buffer);
+		}
+
+		@Override
+		public boolean isDone() {
+			return !buffer.hasRemaining();
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+
+	/**
+	 * Chunk which is a region of a file, transferred to the channel without
+	 * copying it into the heap.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class FileChunk implements Chunk {
+		/**
+		 * File channel, closed when the chunk is released.
+		 */
+		private final FileChannel file;
+		/**
+		 * Position of the next byte which is transferred.
+		 */
+		private long position;
+		/**
+		 * Position after the last byte of the region.
+		 */
+		private final long end;
+
+		/**
+		 * Instantiates this class with given region of a file.
+		 *
+		 * @param file file channel
+		 * @param position position of region's first byte
+		 * @param count number of bytes in region
+		 */
+		public FileChunk(FileChannel file, long position, long count) {
+			this.file = file;
+			this.position = position;
+			this.end = position + count;
+		}
+
+		@Override
+		public int writeTo(SocketChannel channel) throws IOException {
+			long transferred =
+					file.transferTo(position, end - position, channel);
+			if(transferred == 0 && position >= file.size()) {
+				throw new IOException("File has been truncated.");
+			}
+			position += transferred;
+			return 0;
+		}
+
+		@Override
+		public boolean isDone() {
+			return position >= end;
+		}
+
+		@Override
+		public void release() {
+			try {
+				file.close();
+			} catch (IOException ignorable) {
+			}
+		}
+	}
+
+	/**
+	 * Exchange models a single request received on the connection and
+	 * the response which is written for it.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	class Exchange {
+		/**
+		 * Parsed request, <b>null</b> if request could not be parsed.
+		 */
+		private final HttpRequest request;
+		/**
+		 * Error which occurred while parsing the request, <b>null</b> if 
+		 * request has been parsed.
+		 */
+		private final HttpParseException error;
+		/**
+		 * Ordinal number of the request on its connection, starting from 1.
+		 */
+		private final int requestNumber;
+		/**
+		 * Response bytes waiting to be written on the channel.
+		 */
+		private final Queue<Chunk> queue = new ArrayDeque<>();
+		/**
+		 * Number of bytes waiting in the queue.
+		 */
+		private int queuedBytes;
+		/**
+		 * Flag which indicates that the whole response has been written.
+		 */
+		private boolean completed;
+		/**
+		 * Flag which indicates that connection should be closed after the
+		 * response.
+		 */
+		private boolean closeAfter;
+		/**
+		 * Stream on which the response is written.
+		 */
+		private final OutputStream outputStream = new ExchangeOutputStream();
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param request parsed request
+		 * @param error error which occurred while parsing the request
+		 * @param requestNumber ordinal number of the request
+		 */
+		private Exchange(HttpRequest request, HttpParseException error,
+				int requestNumber) {
+			this.request = request;
+			this.error = error;
+			this.requestNumber = requestNumber;
+		}
+
+		/**
+		 * Gets parsed request.
+		 *
+		 * @return request, <b>null</b> if request could not be parsed
+		 */
+		public HttpRequest getRequest() {
+			return request;
+		}
+		
+		/**
+		 * Gets error which occurred while parsing the request.
+		 *
+		 * @return error, <b>null</b> if request has been parsed
+		 */
+		public HttpParseException getError() {
+			return error;
+		}
+
+		/**
+		 * Gets address of the client which has sent the request.
+		 *
+		 * @return client's address
+		 */
+		public InetAddress getClientAddress() {
+			return channel.socket().getInetAddress();
+		}
+
+		/**
+		 * Gets ordinal number of the request on its connection, starting
+		 * from 1.
+		 *
+		 * @return ordinal number of the request
+		 */
+		public int getRequestNumber() {
+			return requestNumber;
+		}
+
+		/**
+		 * Gets the stream on which response is written.
+		 *
+		 * @return stream on which response is written
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Marks the response as complete. Once it is written, connection
+		 * carries on with the next request. Can be called from any thread.
+		 */
+		public void complete() {
+			synchronized (lock) {
+				completed = true;
+			}
+			requestUpdate();
+		}
+
+		/**
+		 * Marks the response as complete and closes the connection once
+		 * the response is written. Can be called from any thread.
+		 */
+		public void close() {
+			synchronized (lock) {
+				completed = true;
+				closeAfter = true;
+			}
+			requestUpdate();
+		}
+
+		/**
+		 * {@link OutputStream} which queues written bytes and file regions
+		 * on exchange's queue and lets the event loop thread write them on
+		 * the channel.
+		 *
+		 * @author Filip Klepo
+		 *
+		 */
+		private class ExchangeOutputStream extends OutputStream
+				implements FileTransferTarget {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(len == 0) {
+					return;
+				}
+				
+				enqueue(new BufferChunk(ByteBuffer.wrap(
+						Arrays.copyOfRange(b, off, off + len))), len);
+			}
+			
+			@Override
+			public void transferFrom(FileChannel file, long position,
+					long count) throws IOException {
+				enqueue(new FileChunk(file, position, count), 0);
+			}
+			
+			@Override
+			public void transferFrom(ByteBuffer buffer) throws IOException {
+				if(buffer.hasRemaining()) {
+					enqueue(new BufferChunk(buffer), 0);
+				}
+			}
+			
+			/**
+			 * Adds given chunk to exchange's queue. If too many bytes are 
+			 * queued, waits until the event loop thread drains the queue,
+			 * unless it is called from the event loop thread.
+			 * 
+			 * @param chunk chunk of the response
+			 * @param heapBytes number of chunk's bytes held in the heap
+			 * @throws IOException if connection has been closed
+			 */
+			private void enqueue(Chunk chunk, int heapBytes) 
+					throws IOException {
+				boolean head;
+				synchronized (lock) {
+					while(!closed && queuedBytes > MAX_QUEUED_BYTES
+							&& eventLoop != Thread.currentThread()) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							chunk.release();
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException();
+						}
+					}
+					if(closed) {
+						chunk.release();
+						throw new IOException("Connection closed.");
+					}
+					queue.add(chunk);
+					queuedBytes += heapBytes;
+					head = exchanges.peek() == Exchange.this;
+				}
+				if(head) {
+					requestUpdate();
+				}
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,136 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ChunkedOutputStream writes response's body with <i>chunked</i> transfer
+ * coding. Written bytes are collected in a buffer of fixed size and every
+ * time the buffer is full, its content is written as a single chunk, with
+ * one write on the underlying stream.
+ * Flushing the stream writes the collected bytes as a chunk right away.
+ * Closing the stream writes the last chunk and the terminating empty chunk,
+ * but leaves the underlying stream open, since connection may carry more
+ * responses.
+ *
+ * @author Filip Klepo
+ *
+ */
+class ChunkedOutputStream extends FilterOutputStream {
+
+	/**
+	 * Space reserved in front of chunk's data for chunk's size, in
+	 * hexadecimal digits, and its line terminator.
+	 */
+	private static final int HEADER_SPACE = 8 + 2;
+	/**
+	 * Terminating empty chunk, without trailers.
+	 */
+	private static final byte[] LAST_CHUNK =
+			"0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * Buffer in which bytes of the next chunk are collected, after the space
+	 * reserved for chunk's size.
+	 */
+	private final byte[] buffer;
+	/**
+	 * Size of a full chunk in bytes.
+	 */
+	private final int chunkSize;
+	/**
+	 * Number of bytes in the buffer.
+	 */
+	private int count;
+	/**
+	 * Flag which indicates that the terminating chunk has been written.
+	 */
+	private boolean closed;
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param out stream on which chunks are written
+	 * @param chunkSize size of a full chunk in bytes
+	 * @throws IllegalArgumentException if chunk size is lesser than 1
+	 */
+	public ChunkedOutputStream(OutputStream out, int chunkSize) {
+		super(out);
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException(
+					"Size of chunk must be positive.");
+		}
+
+		this.chunkSize = chunkSize;
+		this.buffer = new byte[HEADER_SPACE + chunkSize + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(closed) {
+			throw new IOException("Stream closed.");
+		}
+
+		while(len > 0) {
+			if(count == chunkSize) {
+				writeChunk();
+			}
+			int length = Math.min(len, chunkSize - count);
+			System.arraycopy(b, off, buffer, HEADER_SPACE + count, length);
+			count += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+
+		writeChunk();
+		out.write(LAST_CHUNK);
+		out.flush();
+		closed = true;
+	}
+
+	/**
+	 * Writes bytes collected in the buffer as a single chunk, unless there
+	 * are none.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void writeChunk() throws IOException {
+		if(count == 0) {
+			return;
+		}
+
+		String size = Integer.toHexString(count);
+		int start = HEADER_SPACE - 2 - size.length();
+		for(int i = 0; i < size.length(); ++i) {
+			buffer[start + i] = (byte)size.charAt(i);
+		}
+		buffer[HEADER_SPACE - 2] = '\r';
+		buffer[HEADER_SPACE - 1] = '\n';
+		int end = HEADER_SPACE + count;
+		buffer[end] = '\r';
+		buffer[end + 1] = '\n';
+		out.write(buffer, start, end + 2 - start);
+		count = 0;
+	}
+
+}
@@ -0,0 +1,267 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CompressionPolicy decides which responses of {@link SmartHttpServer} are
+ * compressed. Only responses whose mime type is on the allowlist and whose
+ * body has at least the given number of bytes are compressed, with one of
+ * the content codings supported by the client, <i>gzip</i> or
+ * <i>deflate</i>.
+ *
+ * <p>Mime type ending with <i>/*</i> allows all subtypes of its type,
+ * e.g. <i>text/*</i> allows <i>text/html</i> and <i>text/plain</i>.</p>
+ *
+ * <p>Output of scripts is served with the mime type of their extension,
+ * which says nothing about the generated text, so policy decides on its
+ * own whether script output is compressed, whatever its mime type.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+public class CompressionPolicy {
+
+	/**
+	 * Size of the buffer of compressing streams.
+	 */
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Allowed mime types.
+	 */
+	private Set<String> mimeTypes = new HashSet<>();
+	/**
+	 * Types whose all subtypes are allowed, e.g. <i>text/</i>.
+	 */
+	private Set<String> mimeTypePrefixes = new HashSet<>();
+	/**
+	 * Minimal number of bytes in compressed body.
+	 */
+	private int minSize;
+	/**
+	 * Flag which indicates that all mime types are allowed.
+	 */
+	private boolean allTypes;
+	/**
+	 * Policy of script output.
+	 */
+	private CompressionPolicy scriptPolicy;
+
+	/**
+	 * Instantiates this class with given allowlist and minimal size.
+	 *
+	 * @param mimeTypes allowed mime types
+	 * @param minSize minimal number of bytes in compressed body
+	 * @throws NullPointerException if given allowlist is null-reference
+	 * @throws IllegalArgumentException if minimal size is negative
+	 */
+	public CompressionPolicy(Iterable<String> mimeTypes, int minSize) {
+		this(mimeTypes, minSize, false);
+	}
+
+	/**
+	 * Instantiates this class with given allowlist, minimal size and
+	 * decision about script output.
+	 *
+	 * @param mimeTypes allowed mime types
+	 * @param minSize minimal number of bytes in compressed body
+	 * @param scriptOutput <b>true</b> if output of scripts is compressed
+	 * whatever its mime type, <b>false</b> if it is subject to the allowlist
+	 * @throws NullPointerException if given allowlist is null-reference
+	 * @throws IllegalArgumentException if minimal size is negative
+	 */
+	public CompressionPolicy(Iterable<String> mimeTypes, int minSize,
+			boolean scriptOutput) {
+		Objects.requireNonNull(mimeTypes);
+		if(minSize < 0) {
+			throw new IllegalArgumentException(
+					"Minimal size can not be negative.");
+		}
+
+		for(String mimeType : mimeTypes) {
+			mimeType = mimeType.trim().toLowerCase();
+			if(mimeType.endsWith("/*")) {
+				mimeTypePrefixes.add(
+						mimeType.substring(0, mimeType.length() - 1));
+			} else if(!mimeType.isEmpty()) {
+				this.mimeTypes.add(mimeType);
+			}
+		}
+		this.minSize = minSize;
+		if(scriptOutput) {
+			scriptPolicy = new CompressionPolicy(mimeTypes, minSize);
+			scriptPolicy.allTypes = true;
+		} else {
+			scriptPolicy = this;
+		}
+	}
+
+	/**
+	 * Gets policy which applies to output of scripts.
+	 *
+	 * @return policy of script output
+	 */
+	public CompressionPolicy forScripts() {
+		return scriptPolicy;
+	}
+
+	/**
+	 * Gets minimal number of bytes in compressed body.
+	 *
+	 * @return minimal size
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Checks if responses with given mime type may be compressed.
+	 * Parameters of the mime type are ignored.
+	 *
+	 * @param mimeType mime type of response
+	 * @return <b>true</b> if mime type is allowed
+	 */
+	public boolean isCompressible(String mimeType) {
+		if(allTypes) {
+			return true;
+		}
+		int semicolon = mimeType.indexOf(';');
+		if(semicolon != -1) {
+			mimeType = mimeType.substring(0, semicolon);
+		}
+		mimeType = mimeType.trim().toLowerCase();
+
+		int slash = mimeType.indexOf('/');
+		return mimeTypes.contains(mimeType) || (slash != -1
+				&& mimeTypePrefixes.contains(mimeType.substring(0, slash + 1)));
+	}
+
+	/**
+	 * Selects content coding by value of client's <i>Accept-Encoding</i>
+	 * header. Coding with the highest quality is selected and <i>gzip</i>
+	 * is preferred over <i>deflate</i> if they have the same quality.
+	 *
+	 * @param acceptEncoding value of the header, may be <b>null</b>
+	 * @return <i>gzip</i>, <i>deflate</i> or <b>null</b> if client accepts
+	 * neither of them
+	 */
+	public static String selectCoding(String acceptEncoding) {
+		if(acceptEncoding == null) {
+			return null;
+		}
+
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for(String element : acceptEncoding.split(",")) {
+			String[] parts = element.split(";");
+			String coding = parts[0].trim().toLowerCase();
+			double quality = 1;
+			for(int i = 1; i < parts.length; ++i) {
+				String parameter = parts[i].trim();
+				if(parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+
+			if(coding.equals("gzip") || coding.equals("x-gzip")) {
+				gzip = quality;
+			} else if(coding.equals("deflate")) {
+				deflate = quality;
+			} else if(coding.equals("*")) {
+				any = quality;
+			}
+		}
+		gzip = gzip == -1 ? any : gzip;
+		deflate = deflate == -1 ? any : deflate;
+
+		if(gzip > 0 && gzip >= deflate) {
+			return "gzip";
+		}
+		return deflate > 0 ? "deflate" : null;
+	}
+
+	/**
+	 * Creates stream which compresses bytes with given content coding and
+	 * writes them on given stream. Flushing the created stream flushes the
+	 * compressor, so everything written so far can be decompressed. Closing
+	 * the created stream finishes the compression, but does not close the
+	 * given stream.
+	 *
+	 * @param coding <i>gzip</i> or <i>deflate</i>
+	 * @param out stream on which compressed bytes are written
+	 * @return compressing stream
+	 * @throws IOException if I/O error of any kind has occurred
+	 * @throws IllegalArgumentException if coding is not supported
+	 */
+	public static OutputStream compressingStream(String coding,
+			OutputStream out) throws IOException {
+		OutputStream target = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				out.flush();
+			}
+		};
+
+		if(coding.equals("gzip")) {
+			return new GZIPOutputStream(target, BUFFER_SIZE, true);
+		}
+		if(coding.equals("deflate")) {
+			return new DeflaterOutputStream(
+					target, new Deflater(), BUFFER_SIZE, true) {
+				//deflater given to the stream is not ended by the stream
+				@Override
+				public void close() throws IOException {
+					super.close();
+					def.end();
+				}
+			};
+		}
+		throw new IllegalArgumentException("Unsupported coding " + coding);
+	}
+
+	/**
+	 * Compresses given bytes with given content coding.
+	 *
+	 * @param coding <i>gzip</i> or <i>deflate</i>
+	 * @param data bytes which are compressed
+	 * @param offset offset of the first compressed byte
+	 * @param length number of compressed bytes
+	 * @return compressed bytes
+	 * @throws IllegalArgumentException if coding is not supported
+	 */
+	public static byte[] compress(String coding, byte[] data, int offset,
+			int length) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream out = compressingStream(coding, compressed)) {
+			out.write(data, offset, length);
+		} catch (IOException e) {
+			//writing in memory does not throw
+			throw new RuntimeException(e);
+		}
+		return compressed.toByteArray();
+	}
+
+}
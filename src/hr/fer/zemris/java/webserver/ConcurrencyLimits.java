@@ -0,0 +1,104 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+
+/**
+ * ConcurrencyLimits holds the maximal number of requests which may be
+ * processed at once for certain paths of {@link SmartHttpServer}. Each limit
+ * is modeled by a fair {@link Semaphore}, so requests over the limit wait
+ * for their turn.
+ *
+ * <p>Limits are read from a .properties file which maps paths to numbers
+ * of allowed concurrent requests. Path ending with <i>/*</i> is a prefix
+ * and limits all paths starting with it, e.g. <i>/ext/* = 16</i>. Exact path
+ * takes precedence over prefixes and longer prefix takes precedence over
+ * shorter one.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class ConcurrencyLimits {
+
+	/**
+	 * Limits of exact paths.
+	 */
+	private Map<String, Semaphore> exactLimits = new HashMap<>();
+	/**
+	 * Prefixes of paths, sorted from the longest to the shortest.
+	 */
+	private List<String> prefixes = new ArrayList<>();
+	/**
+	 * Limits of path prefixes.
+	 */
+	private Map<String, Semaphore> prefixLimits = new HashMap<>();
+
+	/**
+	 * Instantiates this class without any limits.
+	 */
+	public ConcurrencyLimits() {
+	}
+
+	/**
+	 * Instantiates this class with limits read from given .properties file.
+	 *
+	 * @param limitsPropsPath path to limits properties file
+	 * @throws IOException if I/O error of any kind has occurred
+	 * @throws NumberFormatException if a limit is not a number
+	 * @throws IllegalArgumentException if a limit is lesser than 1
+	 */
+	public ConcurrencyLimits(String limitsPropsPath) throws IOException {
+		Properties props = new Properties();
+		try (Reader reader = new FileReader(limitsPropsPath)) {
+			props.load(reader);
+		}
+
+		for(Entry<Object, Object> entry : props.entrySet()) {
+			String path = ((String)entry.getKey()).trim();
+			int limit = Integer.parseInt(((String)entry.getValue()).trim());
+			if(limit < 1) {
+				throw new IllegalArgumentException(
+						"Limit of " + path + " must be positive.");
+			}
+
+			Semaphore semaphore = new Semaphore(limit, true);
+			if(path.endsWith("/*")) {
+				String prefix = path.substring(0, path.length() - 1);
+				prefixes.add(prefix);
+				prefixLimits.put(prefix, semaphore);
+			} else {
+				exactLimits.put(path, semaphore);
+			}
+		}
+		prefixes.sort((p1, p2) -> p2.length() - p1.length());
+	}
+
+	/**
+	 * Gets the limit which applies to given path.
+	 *
+	 * @param path requested path
+	 * @return limit of the path, <b>null</b> if path is not limited
+	 */
+	public Semaphore forPath(String path) {
+		Semaphore limit = exactLimits.get(path);
+		if(limit != null) {
+			return limit;
+		}
+
+		for(String prefix : prefixes) {
+			if(path.startsWith(prefix)) {
+				return prefixLimits.get(prefix);
+			}
+		}
+		return null;
+	}
+
+}
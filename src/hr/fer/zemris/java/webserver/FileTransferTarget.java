@@ -0,0 +1,43 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileTransferTarget is an interface implemented by output streams of 
+ * {@link SmartHttpServer}'s connections which can send a part of a file
+ * straight from the file system to the client's socket, using 
+ * {@link FileChannel#transferTo}. Such transfer does not copy file's content
+ * into the heap. Content of files which is already held in memory can be 
+ * sent without copying it as well.
+ * 
+ * @author Filip Klepo
+ *
+ */
+interface FileTransferTarget {
+
+	/**
+	 * Transfers given part of a file to the client. Target takes ownership 
+	 * of given file channel and closes it once the part has been transferred,
+	 * which may happen after this method returns.
+	 * 
+	 * @param file file channel
+	 * @param position position of the first transferred byte
+	 * @param count number of transferred bytes
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	void transferFrom(FileChannel file, long position, long count) 
+			throws IOException;
+	
+	/**
+	 * Sends remaining bytes of given buffer to the client without copying
+	 * them. Buffer's content must not be changed afterwards, since it may
+	 * be sent after this method returns.
+	 * 
+	 * @param buffer bytes which are sent
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	void transferFrom(ByteBuffer buffer) throws IOException;
+	
+}
@@ -0,0 +1,341 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hr.fer.zemris.java.webserver.http.HttpValidators;
+
+/**
+ * HeaderEncoder encodes response's header straight into bytes, without
+ * building an intermediate {@link String}. Status lines of common responses
+ * and <i>Content-Type</i> lines of common mime types are encoded once and
+ * copied as they are. <i>Date</i> line is encoded at most once per second.
+ * Every thread reuses its own encoder, so encoding a common header allocates
+ * nothing.
+ *
+ * <p>Characters are encoded as ISO-8859-1, characters outside of it are
+ * replaced with <i>?</i>.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class HeaderEncoder {
+
+	/**
+	 * Line terminator.
+	 */
+	private static final byte[] CRLF = bytes("\r\n");
+	/**
+	 * Separator of header's name and value.
+	 */
+	private static final byte[] SEPARATOR = bytes(": ");
+	/**
+	 * Beginning of <i>Content-Length</i> line.
+	 */
+	private static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+	/**
+	 * Beginning of <i>Set-Cookie</i> line.
+	 */
+	private static final byte[] SET_COOKIE = bytes("Set-Cookie: ");
+	/**
+	 * Charset of response's body for which <i>Content-Type</i> lines are
+	 * encoded once.
+	 */
+	private static final String DEFAULT_ENCODING = "UTF-8";
+	/**
+	 * Maximal number of encoded <i>Content-Type</i> lines. Lines of other
+	 * mime types are encoded every time.
+	 */
+	private static final int MAX_CONTENT_TYPES = 256;
+	/**
+	 * Initial size of encoder's buffer.
+	 */
+	private static final int INITIAL_SIZE = 512;
+
+	/**
+	 * Status lines of common responses, indexed by status code.
+	 */
+	private static final byte[][] STATUS_LINES = new byte[600][];
+	/**
+	 * Status texts of {@link #STATUS_LINES}, indexed by status code.
+	 */
+	private static final String[] STATUS_TEXTS = new String[600];
+
+	static {
+		status(200, "OK");
+		status(204, "No Content");
+		status(206, "Partial Content");
+		status(301, "Moved Permanently");
+		status(302, "Found");
+		status(304, "Not Modified");
+		status(400, "Bad Request");
+		status(403, "Forbidden");
+		status(404, "Not Found");
+		status(416, "Range Not Satisfiable");
+		status(500, "Internal Server Error");
+		status(503, "Service Unavailable");
+	}
+
+	/**
+	 * Encoded <i>Content-Type</i> lines of responses with default charset,
+	 * mapped by their mime types.
+	 */
+	private static final Map<String, byte[]> CONTENT_TYPES =
+			new ConcurrentHashMap<>();
+	/**
+	 * Encoded <i>Date</i> line of the current second.
+	 */
+	private static volatile byte[] dateLine = new byte[0];
+	/**
+	 * Second, since the epoch, of {@link #dateLine}.
+	 */
+	private static volatile long dateSecond = -1;
+	/**
+	 * Encoder of each thread.
+	 */
+	private static final ThreadLocal<HeaderEncoder> ENCODERS =
+			ThreadLocal.withInitial(HeaderEncoder::new);
+
+	/**
+	 * Buffer in which header is encoded.
+	 */
+	private byte[] buffer = new byte[INITIAL_SIZE];
+	/**
+	 * Number of bytes in the buffer.
+	 */
+	private int count;
+
+	/**
+	 * Gets empty encoder of the current thread.
+	 *
+	 * @return encoder
+	 */
+	public static HeaderEncoder get() {
+		HeaderEncoder encoder = ENCODERS.get();
+		encoder.count = 0;
+		return encoder;
+	}
+
+	/**
+	 * Encodes the status line.
+	 *
+	 * @param statusCode status code
+	 * @param statusText status text
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder statusLine(int statusCode, String statusText) {
+		if(statusCode >= 0 && statusCode < STATUS_LINES.length
+				&& STATUS_LINES[statusCode] != null
+				&& STATUS_TEXTS[statusCode].equals(statusText)) {
+			return append(STATUS_LINES[statusCode]);
+		}
+		return append("HTTP/1.1 ").append(statusCode).append(" ")
+				.append(statusText).append(CRLF);
+	}
+
+	/**
+	 * Encodes the <i>Content-Type</i> line. Charset is given only for
+	 * textual mime types.
+	 *
+	 * @param mimeType mime type of the body
+	 * @param encoding charset of the body
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder contentType(String mimeType, String encoding) {
+		boolean textual = mimeType.startsWith("text/");
+		if(!textual || encoding.equals(DEFAULT_ENCODING)) {
+			byte[] line = CONTENT_TYPES.get(mimeType);
+			if(line == null) {
+				line = bytes(contentTypeLine(mimeType, DEFAULT_ENCODING));
+				if(CONTENT_TYPES.size() < MAX_CONTENT_TYPES) {
+					CONTENT_TYPES.put(mimeType, line);
+				}
+			}
+			return append(line);
+		}
+		return append(contentTypeLine(mimeType, encoding));
+	}
+
+	/**
+	 * Encodes the <i>Content-Length</i> line.
+	 *
+	 * @param contentLength length of the body
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder contentLength(long contentLength) {
+		return append(CONTENT_LENGTH).append(contentLength).append(CRLF);
+	}
+
+	/**
+	 * Encodes the <i>Date</i> line with the current time.
+	 *
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder date() {
+		long now = System.currentTimeMillis();
+		long second = now / 1000;
+		byte[] line = dateLine;
+		if(second != dateSecond) {
+			line = bytes("Date: " + HttpValidators.formatDate(now) + "\r\n");
+			dateLine = line;
+			dateSecond = second;
+		}
+		return append(line);
+	}
+
+	/**
+	 * Encodes a header line.
+	 *
+	 * @param name header's name
+	 * @param value header's value
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder header(String name, String value) {
+		return append(name).append(SEPARATOR).append(value).append(CRLF);
+	}
+
+	/**
+	 * Encodes the <i>Set-Cookie</i> line of given cookie.
+	 *
+	 * @param cookie cookie
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder cookie(RequestContext.RCCookie cookie) {
+		append(SET_COOKIE).append(cookie.getName()).append("=")
+			.append(cookie.getValue());
+		if(cookie.getDomain() != null) {
+			append("; Domain=").append(cookie.getDomain());
+		}
+		if(cookie.getPath() != null) {
+			append("; Path=").append(cookie.getPath());
+		}
+		if(cookie.getMaxAge() != null) {
+			append("; Max-Age=").append(cookie.getMaxAge());
+		}
+		return append(CRLF);
+	}
+
+	/**
+	 * Encodes the empty line which ends the header.
+	 *
+	 * @return reference to this encoder
+	 */
+	public HeaderEncoder end() {
+		return append(CRLF);
+	}
+
+	/**
+	 * Writes encoded header on given stream with a single write.
+	 *
+	 * @param out output stream
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, count);
+	}
+
+	/**
+	 * Appends given bytes.
+	 *
+	 * @param bytes bytes
+	 * @return reference to this encoder
+	 */
+	private HeaderEncoder append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+		return this;
+	}
+
+	/**
+	 * Appends given text.
+	 *
+	 * @param text text
+	 * @return reference to this encoder
+	 */
+	private HeaderEncoder append(String text) {
+		int length = text.length();
+		ensureCapacity(length);
+		for(int i = 0; i < length; ++i) {
+			char c = text.charAt(i);
+			buffer[count++] = (byte)(c > 0xFF ? '?' : c);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends decimal digits of given number.
+	 *
+	 * @param number number
+	 * @return reference to this encoder
+	 */
+	private HeaderEncoder append(long number) {
+		if(number < 0) {
+			return append(Long.toString(number));
+		}
+
+		int digits = 1;
+		for(long n = number / 10; n > 0; n /= 10) {
+			++digits;
+		}
+		ensureCapacity(digits);
+		for(int i = count + digits - 1; i >= count; --i) {
+			buffer[i] = (byte)('0' + number % 10);
+			number /= 10;
+		}
+		count += digits;
+		return this;
+	}
+
+	/**
+	 * Enlarges the buffer, if needed, so given number of bytes fits in it.
+	 *
+	 * @param length number of bytes
+	 */
+	private void ensureCapacity(int length) {
+		if(count + length > buffer.length) {
+			buffer = Arrays.copyOf(buffer,
+					Math.max(buffer.length * 2, count + length));
+		}
+	}
+
+	/**
+	 * Registers status line of a common response.
+	 *
+	 * @param statusCode status code
+	 * @param statusText status text
+	 */
+	private static void status(int statusCode, String statusText) {
+		STATUS_LINES[statusCode] =
+				bytes("HTTP/1.1 " + statusCode + " " + statusText + "\r\n");
+		STATUS_TEXTS[statusCode] = statusText;
+	}
+
+	/**
+	 * Creates <i>Content-Type</i> line.
+	 *
+	 * @param mimeType mime type of the body
+	 * @param encoding charset of the body
+	 * @return the line
+	 */
+	private static String contentTypeLine(String mimeType, String encoding) {
+		return "Content-Type: " + mimeType
+				+ (mimeType.startsWith("text/") ? "; charset= " + encoding : "")
+				+ "\r\n";
+	}
+
+	/**
+	 * Encodes given text as ISO-8859-1.
+	 *
+	 * @param text text
+	 * @return bytes of the text
+	 */
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,1183 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+/**
+ * OffHeapSessionStore holds user sessions of {@link SmartHttpServer} outside
+ * of the Java heap, so heap usage does not grow with the number of sessions.
+ * Like {@link SessionStore}, sessions are spread over stripes, each guarded
+ * by its own lock.
+ *
+ * <p>Every stripe has an open-addressing table of fixed-size slots in a
+ * direct buffer. A slot holds session ID, its expiry time and reference to
+ * a blob with session's parameters. Blobs are allocated by bumping a pointer
+ * in direct buffers called segments. A blob which outgrows its space is
+ * moved to a new place, and the old one becomes garbage.</p>
+ *
+ * <p>Sessions are returned as {@link SessionMapEntry} views whose map reads
+ * and writes the blob directly. Only the parameters which are actually
+ * accessed are decoded into strings. Each {@link #expire(long) tick} removes
+ * expired sessions and compacts segments which are mostly garbage by moving
+ * their live blobs elsewhere, after which the segments are reused.</p>
+ *
+ * <p>Like in {@link SessionStore}, expired sessions are found by a hashed
+ * timer wheel with one bucket per second, so a tick visits only the
+ * sessions of the seconds which have passed, not the whole table. Every
+ * stripe has its own wheel in a direct buffer, and slots of a bucket are
+ * chained into a doubly linked list through their links.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class OffHeapSessionStore implements SessionStorage {
+
+	/**
+	 * Default number of stripes.
+	 */
+	private static final int DEFAULT_STRIPES = 64;
+	/**
+	 * Maximal length of session ID, in UTF-8 bytes.
+	 */
+	static final int MAX_SID_LENGTH = 32;
+	/**
+	 * Size of a slot of the table, in bytes.
+	 */
+	private static final int SLOT_SIZE = 72;
+	/**
+	 * Offset of session's expiry time within a slot.
+	 */
+	private static final int VALID_UNTIL = 0;
+	/**
+	 * Offset of the index of blob's segment within a slot.
+	 */
+	private static final int SEGMENT = 8;
+	/**
+	 * Offset of blob's offset within a slot.
+	 */
+	private static final int OFFSET = 12;
+	/**
+	 * Offset of blob's length within a slot.
+	 */
+	private static final int LENGTH = 16;
+	/**
+	 * Offset of the space reserved for the blob within a slot.
+	 */
+	private static final int CAPACITY = 20;
+	/**
+	 * Offset of the hash of session ID within a slot.
+	 */
+	private static final int HASH = 24;
+	/**
+	 * Offset of the link to the previous slot of the bucket within a slot.
+	 * First slot of a bucket links to the bucket, as -1 decreased by the
+	 * index of the bucket.
+	 */
+	private static final int PREV = 28;
+	/**
+	 * Offset of the link to the next slot of the bucket within a slot, -1 in
+	 * the last slot.
+	 */
+	private static final int NEXT = 32;
+	/**
+	 * Offset of the length of session ID within a slot.
+	 */
+	private static final int SID_LENGTH = 36;
+	/**
+	 * Offset of session ID within a slot.
+	 */
+	private static final int SID = 37;
+	/**
+	 * Expiry time of an empty slot.
+	 */
+	private static final long EMPTY = 0;
+	/**
+	 * Expiry time of a slot whose session has been removed.
+	 */
+	private static final long REMOVED = -1;
+	/**
+	 * Initial number of slots of a stripe.
+	 */
+	private static final int INITIAL_SLOTS = 64;
+	/**
+	 * Size of a segment, in bytes. Larger blobs get segments of their own.
+	 */
+	private static final int SEGMENT_SIZE = 256 * 1024;
+	/**
+	 * Minimal space reserved for a blob, in bytes.
+	 */
+	private static final int MIN_BLOB = 32;
+	/**
+	 * Number of buckets of the timer wheel, one per second.
+	 */
+	private static final int WHEEL_SIZE = 1024;
+
+	/**
+	 * Segment models a direct buffer in which blobs are allocated.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class Segment {
+		/**
+		 * Buffer of the segment.
+		 */
+		final ByteBuffer buffer;
+		/**
+		 * Number of allocated bytes, the offset of the next blob.
+		 */
+		int top;
+		/**
+		 * Number of bytes reserved for blobs of sessions in the store.
+		 */
+		int live;
+
+		/**
+		 * Instantiates this class with given size.
+		 *
+		 * @param size size of the segment in bytes
+		 */
+		Segment(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	/**
+	 * Stripe models a part of the store guarded by its own lock.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class Stripe {
+		/**
+		 * Lock of the stripe.
+		 */
+		final ReentrantLock lock = new ReentrantLock();
+		/**
+		 * Table of slots.
+		 */
+		ByteBuffer table = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+		/**
+		 * Mask of slot indexes, number of slots decreased by one.
+		 */
+		int mask = INITIAL_SLOTS - 1;
+		/**
+		 * Number of slots which hold a session.
+		 */
+		int used;
+		/**
+		 * Number of slots whose session has been removed.
+		 */
+		int removed;
+		/**
+		 * Segments of the stripe, <b>null</b> for released ones.
+		 */
+		final List<Segment> segments = new ArrayList<>();
+		/**
+		 * Index of the segment in which blobs are allocated, -1 if there is
+		 * none.
+		 */
+		int current = -1;
+		/**
+		 * Buckets of the timer wheel, each holding offset of its first slot,
+		 * -1 if it is empty. Bucket of a second holds slots which were due to
+		 * expire in that second when they were put in the bucket.
+		 */
+		final ByteBuffer wheel = ByteBuffer.allocateDirect(WHEEL_SIZE * 4);
+
+		/**
+		 * Instantiates this class with empty wheel.
+		 */
+		Stripe() {
+			clearWheel();
+		}
+
+		/**
+		 * Empties all buckets of the wheel.
+		 */
+		void clearWheel() {
+			for(int bucket = 0; bucket < WHEEL_SIZE; ++bucket) {
+				wheel.putInt(bucket * 4, -1);
+			}
+		}
+	}
+
+	/**
+	 * Stripes of the store.
+	 */
+	private final Stripe[] stripes;
+	/**
+	 * Number of bits of the hash which select a stripe.
+	 */
+	private final int stripeBits;
+	/**
+	 * Second of the previous tick of the wheels.
+	 */
+	private long lastTick;
+	/**
+	 * Number of sessions in the store.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	/**
+	 * Number of direct memory bytes held by the store.
+	 */
+	private final AtomicLong reserved = new AtomicLong();
+	/**
+	 * Number of created sessions.
+	 */
+	private final LongAdder created = new LongAdder();
+	/**
+	 * Number of expired sessions.
+	 */
+	private final LongAdder expired = new LongAdder();
+	/**
+	 * Number of lock acquisitions which had to wait for another thread.
+	 */
+	private final LongAdder contended = new LongAdder();
+
+	/**
+	 * Instantiates this class with the default number of stripes.
+	 */
+	public OffHeapSessionStore() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Instantiates this class with given number of stripes.
+	 *
+	 * @param stripeCount number of stripes, rounded up to a power of two
+	 * @throws IllegalArgumentException if number of stripes is lesser than 1
+	 */
+	public OffHeapSessionStore(int stripeCount) {
+		if(stripeCount < 1) {
+			throw new IllegalArgumentException(
+					"Number of stripes must be positive.");
+		}
+
+		int count = Integer.highestOneBit(stripeCount);
+		count = count < stripeCount ? count << 1 : count;
+		stripes = new Stripe[count];
+		for(int i = 0; i < count; ++i) {
+			stripes[i] = new Stripe();
+			reserved.addAndGet(INITIAL_SLOTS * SLOT_SIZE + WHEEL_SIZE * 4);
+		}
+		stripeBits = Integer.numberOfTrailingZeros(count);
+		lastTick = System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Gets session of given ID and extends its validity. Expired session is
+	 * removed instead.
+	 *
+	 * @param sid session ID, may be <b>null</b>
+	 * @param now current time in seconds
+	 * @param validUntil new time, in seconds, until which session is valid
+	 * @return view of the session, <b>null</b> if there is no valid session
+	 * of given ID
+	 */
+	@Override
+	public SessionMapEntry touch(String sid, long now, long validUntil) {
+		if(sid == null) {
+			return null;
+		}
+		byte[] sidBytes = sid.getBytes(StandardCharsets.UTF_8);
+		if(sidBytes.length > MAX_SID_LENGTH) {
+			return null;
+		}
+
+		int hash = hash(sid);
+		Stripe stripe = stripes[hash & (stripes.length - 1)];
+		lock(stripe);
+		try {
+			int slot = find(stripe, sidBytes, hash);
+			if(slot == -1) {
+				return null;
+			}
+			long current = stripe.table.getLong(slot + VALID_UNTIL);
+			if(current < now) {
+				remove(stripe, slot);
+				expired.increment();
+				return null;
+			}
+			validUntil = Math.max(current, validUntil);
+			stripe.table.putLong(slot + VALID_UNTIL, validUntil);
+		} finally {
+			stripe.lock.unlock();
+		}
+		return view(sid, sidBytes, hash, validUntil);
+	}
+
+	/**
+	 * Creates session of given ID, unless session of the same ID already
+	 * exists.
+	 *
+	 * @param sid session ID
+	 * @param validUntil time, in seconds, until which session is valid
+	 * @return view of the new session, <b>null</b> if session of the same ID
+	 * already exists
+	 * @throws IllegalArgumentException if session ID is longer than
+	 * {@value #MAX_SID_LENGTH} bytes
+	 */
+	@Override
+	public SessionMapEntry create(String sid, long validUntil) {
+		byte[] sidBytes = sid.getBytes(StandardCharsets.UTF_8);
+		if(sidBytes.length > MAX_SID_LENGTH) {
+			throw new IllegalArgumentException("Session ID is too long.");
+		}
+
+		int hash = hash(sid);
+		Stripe stripe = stripes[hash & (stripes.length - 1)];
+		lock(stripe);
+		try {
+			if(find(stripe, sidBytes, hash) != -1) {
+				return null;
+			}
+			if(stripe.used + stripe.removed + 1 > (stripe.mask + 1) / 4 * 3) {
+				resize(stripe);
+			}
+
+			int slot = freeSlot(stripe, hash);
+			ByteBuffer table = stripe.table;
+			if(table.getLong(slot + VALID_UNTIL) == REMOVED) {
+				stripe.removed--;
+			}
+			table.putLong(slot + VALID_UNTIL, validUntil);
+			table.putInt(slot + SEGMENT, -1);
+			table.putInt(slot + OFFSET, 0);
+			table.putInt(slot + LENGTH, 0);
+			table.putInt(slot + CAPACITY, 0);
+			table.putInt(slot + HASH, hash);
+			table.put(slot + SID_LENGTH, (byte)sidBytes.length);
+			for(int i = 0; i < sidBytes.length; ++i) {
+				table.put(slot + SID + i, sidBytes[i]);
+			}
+			link(stripe, slot);
+			stripe.used++;
+		} finally {
+			stripe.lock.unlock();
+		}
+
+		size.incrementAndGet();
+		created.increment();
+		return view(sid, sidBytes, hash, validUntil);
+	}
+
+	/**
+	 * Advances the timer wheels to given second and removes sessions which
+	 * have expired since the previous tick, and compacts segments in which
+	 * less than a quarter of allocated bytes belongs to sessions. Sessions
+	 * whose validity has been extended are moved to the buckets of their new
+	 * expiry times. It should be called by a single thread, about once per
+	 * second.
+	 *
+	 * @param now current time in seconds
+	 */
+	@Override
+	public void expire(long now) {
+		long ticks = Math.min(now - lastTick, WHEEL_SIZE);
+		for(Stripe stripe : stripes) {
+			lock(stripe);
+			try {
+				for(long tick = now - ticks + 1; tick <= now; ++tick) {
+					expire(stripe, (int)(tick & (WHEEL_SIZE - 1)), now);
+				}
+				if(stripe.removed > (stripe.mask + 1) / 4) {
+					resize(stripe);
+				}
+				compact(stripe);
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		lastTick = Math.max(lastTick, now);
+	}
+
+	/**
+	 * Performs given action for each session in the store. Views of the
+	 * sessions of a stripe are created while its lock is held and the action
+	 * is performed after it has been released, so the action does not block
+	 * requests.
+	 *
+	 * @param action action
+	 */
+	@Override
+	public void forEach(Consumer<SessionMapEntry> action) {
+		for(Stripe stripe : stripes) {
+			List<SessionMapEntry> sessions = new ArrayList<>();
+			lock(stripe);
+			try {
+				ByteBuffer table = stripe.table;
+				for(int slot = 0; slot < table.capacity(); slot += SLOT_SIZE) {
+					long validUntil = table.getLong(slot + VALID_UNTIL);
+					if(validUntil == EMPTY || validUntil == REMOVED) {
+						continue;
+					}
+					byte[] sid = new byte[table.get(slot + SID_LENGTH)];
+					read(table, slot + SID, sid, 0, sid.length);
+					sessions.add(view(new String(sid, StandardCharsets.UTF_8),
+							sid, table.getInt(slot + HASH), validUntil));
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+			for(SessionMapEntry session : sessions) {
+				action.accept(session);
+			}
+		}
+	}
+
+	/**
+	 * Gets number of sessions in the store, including expired sessions which
+	 * have not been removed yet.
+	 *
+	 * @return number of sessions
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Gets number of direct memory bytes held by the store, for its tables
+	 * and segments.
+	 *
+	 * @return number of bytes
+	 */
+	public long getReservedBytes() {
+		return reserved.get();
+	}
+
+	/**
+	 * Gets number of sessions created since the store has been created.
+	 *
+	 * @return number of created sessions
+	 */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+	/**
+	 * Gets number of sessions removed because they have expired.
+	 *
+	 * @return number of expired sessions
+	 */
+	public long getExpiredCount() {
+		return expired.sum();
+	}
+
+	/**
+	 * Gets number of lock acquisitions which had to wait for another thread.
+	 *
+	 * @return number of contended acquisitions
+	 */
+	public long getContendedCount() {
+		return contended.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "sessions=" + getSize() + ", created=" + getCreatedCount()
+				+ ", expired=" + getExpiredCount()
+				+ ", contended=" + getContendedCount()
+				+ ", offHeapBytes=" + getReservedBytes();
+	}
+
+	/**
+	 * Creates view of given session, whose map accesses the session in the
+	 * store.
+	 *
+	 * @param sid session ID
+	 * @param sidBytes session ID in UTF-8
+	 * @param hash hash of session ID
+	 * @param validUntil time, in seconds, until which session is valid
+	 * @return view of the session
+	 */
+	private SessionMapEntry view(String sid, byte[] sidBytes, int hash,
+			long validUntil) {
+		return new SessionMapEntry(sid, validUntil,
+				new Parameters(sidBytes, hash));
+	}
+
+	/**
+	 * Parameters is the map of session's parameters which reads and writes
+	 * session's blob in the store. A blob is a sequence of parameters, each
+	 * encoded as length of its name, the name, length of its value and the
+	 * value, in UTF-8. Parameters set on a session which no longer exists are
+	 * discarded.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private class Parameters extends AbstractMap<String, String> {
+		/**
+		 * Session ID in UTF-8.
+		 */
+		private final byte[] sid;
+		/**
+		 * Hash of session ID.
+		 */
+		private final int hash;
+		/**
+		 * Stripe which holds the session.
+		 */
+		private final Stripe stripe;
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param sid session ID in UTF-8
+		 * @param hash hash of session ID
+		 */
+		Parameters(byte[] sid, int hash) {
+			this.sid = sid;
+			this.hash = hash;
+			this.stripe = stripes[hash & (stripes.length - 1)];
+		}
+
+		@Override
+		public String get(Object key) {
+			if(!(key instanceof String)) {
+				return null;
+			}
+			byte[] name = ((String)key).getBytes(StandardCharsets.UTF_8);
+			lock(stripe);
+			try {
+				int slot = find(stripe, sid, hash);
+				if(slot == -1) {
+					return null;
+				}
+				int at = locate(stripe, slot, name);
+				if(at == -1) {
+					return null;
+				}
+				return decodeValue(segment(stripe, slot).buffer, at);
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public String put(String key, String value) {
+			return update(key.getBytes(StandardCharsets.UTF_8),
+					value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public String remove(Object key) {
+			if(!(key instanceof String)) {
+				return null;
+			}
+			return update(((String)key).getBytes(StandardCharsets.UTF_8),
+					null);
+		}
+
+		@Override
+		public Set<String> keySet() {
+			Set<String> names = new LinkedHashSet<>();
+			lock(stripe);
+			try {
+				int slot = find(stripe, sid, hash);
+				if(slot == -1) {
+					return names;
+				}
+				ByteBuffer buffer = segment(stripe, slot).buffer;
+				int at = stripe.table.getInt(slot + OFFSET);
+				int end = at + stripe.table.getInt(slot + LENGTH);
+				while(at < end) {
+					int length = buffer.getInt(at);
+					names.add(decode(buffer, at + 4, length));
+					at = next(buffer, at);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+			return names;
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			Map<String, String> parameters = new HashMap<>();
+			for(String name : keySet()) {
+				String value = get(name);
+				if(value != null) {
+					parameters.put(name, value);
+				}
+			}
+			return Collections.unmodifiableMap(parameters).entrySet();
+		}
+
+		/**
+		 * Sets or removes parameter of given name. Blob of the session is
+		 * rewritten in its place, or moved to a larger place if it does not
+		 * fit.
+		 *
+		 * @param name parameter's name in UTF-8
+		 * @param value parameter's value in UTF-8, <b>null</b> to remove it
+		 * @return previous value of the parameter, <b>null</b> if it has not
+		 * been set
+		 */
+		private String update(byte[] name, byte[] value) {
+			lock(stripe);
+			try {
+				int slot = find(stripe, sid, hash);
+				if(slot == -1) {
+					return null;
+				}
+				ByteBuffer table = stripe.table;
+				int offset = table.getInt(slot + OFFSET);
+				int length = table.getInt(slot + LENGTH);
+				int at = locate(stripe, slot, name);
+				if(at == -1 && value == null) {
+					return null;
+				}
+
+				String previous = null;
+				int removedLength = 0;
+				if(at != -1) {
+					ByteBuffer buffer = segment(stripe, slot).buffer;
+					previous = decodeValue(buffer, at);
+					removedLength = next(buffer, at) - at;
+				}
+				int addedLength = value == null
+						? 0
+						: 8 + name.length + value.length;
+				byte[] blob = new byte[length - removedLength + addedLength];
+				if(length > 0) {
+					ByteBuffer buffer = segment(stripe, slot).buffer;
+					int before = at == -1 ? length : at - offset;
+					read(buffer, offset, blob, 0, before);
+					read(buffer, offset + before + removedLength, blob, before,
+							length - before - removedLength);
+				}
+				if(value != null) {
+					ByteBuffer encoded = ByteBuffer.wrap(blob,
+							blob.length - addedLength, addedLength);
+					encoded.putInt(name.length).put(name)
+							.putInt(value.length).put(value);
+				}
+				store(stripe, slot, blob);
+				return previous;
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Finds slot of the session of given ID.
+	 *
+	 * @param stripe stripe of the session
+	 * @param sid session ID in UTF-8
+	 * @param hash hash of session ID
+	 * @return offset of the slot, -1 if there is no such session
+	 */
+	private int find(Stripe stripe, byte[] sid, int hash) {
+		ByteBuffer table = stripe.table;
+		for(int i = (hash >>> stripeBits) & stripe.mask; ;
+				i = (i + 1) & stripe.mask) {
+			int slot = i * SLOT_SIZE;
+			long validUntil = table.getLong(slot + VALID_UNTIL);
+			if(validUntil == EMPTY) {
+				return -1;
+			}
+			if(validUntil != REMOVED && table.getInt(slot + HASH) == hash
+					&& sidEquals(table, slot, sid)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Finds the first slot for a session of given hash which does not hold
+	 * a session.
+	 *
+	 * @param stripe stripe of the session
+	 * @param hash hash of session ID
+	 * @return offset of the slot
+	 */
+	private int freeSlot(Stripe stripe, int hash) {
+		ByteBuffer table = stripe.table;
+		for(int i = (hash >>> stripeBits) & stripe.mask; ;
+				i = (i + 1) & stripe.mask) {
+			int slot = i * SLOT_SIZE;
+			long validUntil = table.getLong(slot + VALID_UNTIL);
+			if(validUntil == EMPTY || validUntil == REMOVED) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the slot holds given session ID.
+	 *
+	 * @param table table of slots
+	 * @param slot offset of the slot
+	 * @param sid session ID in UTF-8
+	 * @return <b>true</b> if the slot holds given session ID
+	 */
+	private static boolean sidEquals(ByteBuffer table, int slot, byte[] sid) {
+		if(table.get(slot + SID_LENGTH) != sid.length) {
+			return false;
+		}
+		for(int i = 0; i < sid.length; ++i) {
+			if(table.get(slot + SID + i) != sid[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rebuilds the table of given stripe without removed slots, doubling its
+	 * size if more than half of it is used. Since slots move, the wheel of
+	 * the stripe is rebuilt too.
+	 *
+	 * @param stripe stripe
+	 */
+	private void resize(Stripe stripe) {
+		ByteBuffer old = stripe.table;
+		int slots = stripe.mask + 1;
+		if(stripe.used + 1 > slots / 2) {
+			slots <<= 1;
+		}
+		stripe.table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+		stripe.mask = slots - 1;
+		stripe.removed = 0;
+		reserved.addAndGet(stripe.table.capacity() - old.capacity());
+		stripe.clearWheel();
+
+		byte[] copy = new byte[SLOT_SIZE];
+		for(int slot = 0; slot < old.capacity(); slot += SLOT_SIZE) {
+			long validUntil = old.getLong(slot + VALID_UNTIL);
+			if(validUntil != EMPTY && validUntil != REMOVED) {
+				read(old, slot, copy, 0, SLOT_SIZE);
+				int moved = freeSlot(stripe, old.getInt(slot + HASH));
+				write(stripe.table, moved, copy, 0, SLOT_SIZE);
+				link(stripe, moved);
+			}
+		}
+	}
+
+	/**
+	 * Removes expired sessions of given bucket of stripe's wheel, and moves
+	 * the others to the buckets of their expiry times.
+	 *
+	 * @param stripe stripe
+	 * @param bucket index of the bucket
+	 * @param now current time in seconds
+	 */
+	private void expire(Stripe stripe, int bucket, long now) {
+		ByteBuffer table = stripe.table;
+		int next;
+		for(int slot = stripe.wheel.getInt(bucket * 4); slot != -1;
+				slot = next) {
+			next = table.getInt(slot + NEXT);
+			long validUntil = table.getLong(slot + VALID_UNTIL);
+			if(validUntil < now) {
+				remove(stripe, slot);
+				expired.increment();
+			} else if(bucket(validUntil) != bucket) {
+				unlink(stripe, slot);
+				link(stripe, slot);
+			}
+		}
+	}
+
+	/**
+	 * Gets index of the bucket of the first second in which session of
+	 * given expiry time is no longer valid.
+	 *
+	 * @param validUntil time, in seconds, until which session is valid
+	 * @return index of the bucket
+	 */
+	private static int bucket(long validUntil) {
+		return (int)((validUntil + 1) & (WHEEL_SIZE - 1));
+	}
+
+	/**
+	 * Puts given slot at the beginning of the bucket of its expiry time.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 */
+	private static void link(Stripe stripe, int slot) {
+		ByteBuffer table = stripe.table;
+		int bucket = bucket(table.getLong(slot + VALID_UNTIL));
+		int first = stripe.wheel.getInt(bucket * 4);
+		table.putInt(slot + PREV, -1 - bucket);
+		table.putInt(slot + NEXT, first);
+		if(first != -1) {
+			table.putInt(first + PREV, slot);
+		}
+		stripe.wheel.putInt(bucket * 4, slot);
+	}
+
+	/**
+	 * Takes given slot out of its bucket.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 */
+	private static void unlink(Stripe stripe, int slot) {
+		ByteBuffer table = stripe.table;
+		int previous = table.getInt(slot + PREV);
+		int next = table.getInt(slot + NEXT);
+		if(previous < 0) {
+			stripe.wheel.putInt((-1 - previous) * 4, next);
+		} else {
+			table.putInt(previous + NEXT, next);
+		}
+		if(next != -1) {
+			table.putInt(next + PREV, previous);
+		}
+	}
+
+	/**
+	 * Removes session of given slot and releases its blob.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 */
+	private void remove(Stripe stripe, int slot) {
+		unlink(stripe, slot);
+		release(stripe, slot);
+		stripe.table.putLong(slot + VALID_UNTIL, REMOVED);
+		stripe.used--;
+		stripe.removed++;
+		size.decrementAndGet();
+	}
+
+	/**
+	 * Gets segment of the blob of given slot.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 * @return segment, <b>null</b> if session has no blob
+	 */
+	private static Segment segment(Stripe stripe, int slot) {
+		int index = stripe.table.getInt(slot + SEGMENT);
+		return index == -1 ? null : stripe.segments.get(index);
+	}
+
+	/**
+	 * Finds parameter of given name in the blob of given slot.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 * @param name parameter's name in UTF-8
+	 * @return offset of the parameter in its segment, -1 if it has not been
+	 * set
+	 */
+	private static int locate(Stripe stripe, int slot, byte[] name) {
+		Segment segment = segment(stripe, slot);
+		if(segment == null) {
+			return -1;
+		}
+		ByteBuffer buffer = segment.buffer;
+		int at = stripe.table.getInt(slot + OFFSET);
+		int end = at + stripe.table.getInt(slot + LENGTH);
+		while(at < end) {
+			if(buffer.getInt(at) == name.length) {
+				boolean equal = true;
+				for(int i = 0; i < name.length && equal; ++i) {
+					equal = buffer.get(at + 4 + i) == name[i];
+				}
+				if(equal) {
+					return at;
+				}
+			}
+			at = next(buffer, at);
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets offset of the parameter which follows given one.
+	 *
+	 * @param buffer buffer of the segment
+	 * @param at offset of the parameter
+	 * @return offset of the next parameter
+	 */
+	private static int next(ByteBuffer buffer, int at) {
+		int valueAt = at + 4 + buffer.getInt(at);
+		return valueAt + 4 + buffer.getInt(valueAt);
+	}
+
+	/**
+	 * Decodes value of given parameter.
+	 *
+	 * @param buffer buffer of the segment
+	 * @param at offset of the parameter
+	 * @return parameter's value
+	 */
+	private static String decodeValue(ByteBuffer buffer, int at) {
+		int valueAt = at + 4 + buffer.getInt(at);
+		return decode(buffer, valueAt + 4, buffer.getInt(valueAt));
+	}
+
+	/**
+	 * Decodes UTF-8 string from given part of the buffer.
+	 *
+	 * @param buffer buffer
+	 * @param at offset of the string
+	 * @param length length of the string in bytes
+	 * @return decoded string
+	 */
+	private static String decode(ByteBuffer buffer, int at, int length) {
+		byte[] bytes = new byte[length];
+		read(buffer, at, bytes, 0, length);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Stores given blob as the blob of given slot, in place if it fits in
+	 * the reserved space, otherwise in newly allocated space.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 * @param blob encoded parameters
+	 */
+	private void store(Stripe stripe, int slot, byte[] blob) {
+		ByteBuffer table = stripe.table;
+		if(blob.length == 0) {
+			release(stripe, slot);
+			return;
+		}
+		if(blob.length > table.getInt(slot + CAPACITY)) {
+			release(stripe, slot);
+			allocate(stripe, slot,
+					Math.max(MIN_BLOB, blob.length + blob.length / 2));
+		}
+		write(segment(stripe, slot).buffer, table.getInt(slot + OFFSET),
+				blob, 0, blob.length);
+		table.putInt(slot + LENGTH, blob.length);
+	}
+
+	/**
+	 * Allocates space of given size for the blob of given slot. Blob is
+	 * allocated in the current segment, or in a free or new segment if it
+	 * does not fit. Blobs larger than a segment get segments of their own.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 * @param capacity number of bytes
+	 */
+	private void allocate(Stripe stripe, int slot, int capacity) {
+		Segment segment = stripe.current == -1
+				? null
+				: stripe.segments.get(stripe.current);
+		int index = stripe.current;
+		if(capacity > SEGMENT_SIZE) {
+			segment = new Segment(capacity);
+			index = addSegment(stripe, segment);
+		} else if(segment == null
+				|| segment.top + capacity > segment.buffer.capacity()) {
+			segment = null;
+			for(int i = 0; i < stripe.segments.size(); ++i) {
+				Segment free = stripe.segments.get(i);
+				if(free != null && free.top == 0
+						&& free.buffer.capacity() == SEGMENT_SIZE) {
+					segment = free;
+					index = i;
+					break;
+				}
+			}
+			if(segment == null) {
+				segment = new Segment(SEGMENT_SIZE);
+				index = addSegment(stripe, segment);
+			}
+			stripe.current = index;
+		}
+
+		ByteBuffer table = stripe.table;
+		table.putInt(slot + SEGMENT, index);
+		table.putInt(slot + OFFSET, segment.top);
+		table.putInt(slot + LENGTH, 0);
+		table.putInt(slot + CAPACITY, capacity);
+		segment.top += capacity;
+		segment.live += capacity;
+	}
+
+	/**
+	 * Adds given segment to given stripe, in place of a released segment if
+	 * there is one.
+	 *
+	 * @param stripe stripe
+	 * @param segment new segment
+	 * @return index of the segment
+	 */
+	private int addSegment(Stripe stripe, Segment segment) {
+		reserved.addAndGet(segment.buffer.capacity());
+		int index = stripe.segments.indexOf(null);
+		if(index == -1) {
+			stripe.segments.add(segment);
+			return stripe.segments.size() - 1;
+		}
+		stripe.segments.set(index, segment);
+		return index;
+	}
+
+	/**
+	 * Releases the blob of given slot. A segment of a single blob is released
+	 * with it.
+	 *
+	 * @param stripe stripe of the session
+	 * @param slot offset of the slot
+	 */
+	private void release(Stripe stripe, int slot) {
+		ByteBuffer table = stripe.table;
+		int index = table.getInt(slot + SEGMENT);
+		if(index == -1) {
+			return;
+		}
+
+		Segment segment = stripe.segments.get(index);
+		segment.live -= table.getInt(slot + CAPACITY);
+		if(segment.buffer.capacity() > SEGMENT_SIZE) {
+			stripe.segments.set(index, null);
+			reserved.addAndGet(-segment.buffer.capacity());
+		}
+		table.putInt(slot + SEGMENT, -1);
+		table.putInt(slot + LENGTH, 0);
+		table.putInt(slot + CAPACITY, 0);
+	}
+
+	/**
+	 * Compacts segments of given stripe in which less than a quarter of
+	 * allocated bytes belongs to sessions. Their blobs are moved to the
+	 * current segment, after which they are free for reuse. Only one free
+	 * segment is kept, the others are released.
+	 *
+	 * @param stripe stripe
+	 */
+	private void compact(Stripe stripe) {
+		List<Segment> segments = stripe.segments;
+		boolean[] sparse = new boolean[segments.size()];
+		boolean anySparse = false;
+		for(int i = 0; i < segments.size(); ++i) {
+			Segment segment = segments.get(i);
+			if(segment != null && i != stripe.current && segment.top > 0
+					&& segment.live < segment.top / 4) {
+				sparse[i] = segment.live > 0;
+				anySparse |= sparse[i];
+				if(segment.live == 0) {
+					segment.top = 0;
+				}
+			}
+		}
+
+		if(anySparse) {
+			ByteBuffer table = stripe.table;
+			for(int slot = 0; slot < table.capacity(); slot += SLOT_SIZE) {
+				long validUntil = table.getLong(slot + VALID_UNTIL);
+				int index = table.getInt(slot + SEGMENT);
+				if(validUntil == EMPTY || validUntil == REMOVED
+						|| index == -1 || index >= sparse.length
+						|| !sparse[index]) {
+					continue;
+				}
+				Segment from = segments.get(index);
+				byte[] blob = new byte[table.getInt(slot + LENGTH)];
+				read(from.buffer, table.getInt(slot + OFFSET), blob, 0,
+						blob.length);
+				int capacity = table.getInt(slot + CAPACITY);
+				release(stripe, slot);
+				allocate(stripe, slot, capacity);
+				store(stripe, slot, blob);
+			}
+			for(int i = 0; i < sparse.length; ++i) {
+				if(sparse[i]) {
+					segments.get(i).top = 0;
+				}
+			}
+		}
+
+		boolean keptFree = false;
+		for(int i = 0; i < segments.size(); ++i) {
+			Segment segment = segments.get(i);
+			if(segment != null && segment.top == 0 && i != stripe.current) {
+				if(keptFree) {
+					segments.set(i, null);
+					reserved.addAndGet(-segment.buffer.capacity());
+				}
+				keptFree = true;
+			}
+		}
+	}
+
+	/**
+	 * Copies bytes from given buffer into given array.
+	 *
+	 * @param buffer source buffer
+	 * @param at offset in the buffer
+	 * @param bytes destination array
+	 * @param offset offset in the array
+	 * @param length number of bytes
+	 */
+	private static void read(ByteBuffer buffer, int at, byte[] bytes,
+			int offset, int length) {
+		ByteBuffer source = buffer.duplicate();
+		source.position(at);
+		source.get(bytes, offset, length);
+	}
+
+	/**
+	 * Copies bytes from given array into given buffer.
+	 *
+	 * @param buffer destination buffer
+	 * @param at offset in the buffer
+	 * @param bytes source array
+	 * @param offset offset in the array
+	 * @param length number of bytes
+	 */
+	private static void write(ByteBuffer buffer, int at, byte[] bytes,
+			int offset, int length) {
+		ByteBuffer destination = buffer.duplicate();
+		destination.position(at);
+		destination.put(bytes, offset, length);
+	}
+
+	/**
+	 * Calculates hash of given session ID.
+	 *
+	 * @param sid session ID
+	 * @return hash
+	 */
+	private static int hash(String sid) {
+		int hash = sid.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Acquires lock of given stripe, counting the acquisition if it has to
+	 * wait for another thread.
+	 *
+	 * @param stripe stripe
+	 */
+	private void lock(Stripe stripe) {
+		if(!stripe.lock.tryLock()) {
+			contended.increment();
+			stripe.lock.lock();
+		}
+	}
+
+}
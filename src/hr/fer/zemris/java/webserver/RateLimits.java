@@ -0,0 +1,402 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimits limits the rate of requests of {@link SmartHttpServer} per
+ * client's address or per user's session, for certain paths. Every client
+ * or session has its own token bucket, which holds up to <i>burst</i>
+ * tokens and is refilled by <i>rate</i> tokens per second. Each request
+ * takes one token, and request which finds the bucket empty is answered
+ * with <i>429 Too Many Requests</i> which tells the client when a token will
+ * be available.
+ *
+ * <p>Limits are read from a .properties file which maps paths to
+ * comma-separated rules, each consisting of kind, rate and burst, e.g.
+ * <i>/ext/* = ip 10 20, session 5 10</i>. Kind <i>ip</i> limits clients by
+ * their address and kind <i>session</i> limits users which have a session.
+ * Paths are matched as routes of {@link Router}, so path ending with
+ * <i>/*</i> limits all paths starting with it.</p>
+ *
+ * <p>Buckets of a rule are held in a fixed open-addressing table, so memory
+ * is bounded no matter how many clients there are. Every bucket holds the
+ * key of its client, which is looked up by linear probing from the slot
+ * chosen by the hash of the key, so clients whose hashes collide never
+ * share a bucket. Bucket packs the number of tokens and the time of the
+ * last refill in an atomic long, updated by compare-and-set. Bucket which
+ * has refilled completely is indistinguishable from a new one, so its slot
+ * is reused by a new client. If all probed slots are held by active
+ * clients, the least recently used one is evicted and its client starts
+ * with a full bucket again, which can only make the limit more lenient.
+ * </p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class RateLimits {
+
+	/**
+	 * Number of buckets of a rule.
+	 */
+	private static final int BUCKETS = 1 << 16;
+	/**
+	 * Number of slots probed for the bucket of a client.
+	 */
+	private static final int PROBES = 8;
+	/**
+	 * Number of bits of a bucket which hold thousandths of tokens.
+	 */
+	private static final int TOKEN_BITS = 24;
+	/**
+	 * Maximal burst, so thousandths of tokens fit in {@link #TOKEN_BITS}.
+	 */
+	private static final int MAX_BURST = 16_000;
+	/**
+	 * Maximal value of <i>Retry-After</i> header, in seconds.
+	 */
+	private static final int MAX_RETRY_AFTER = 60;
+
+	/**
+	 * Encoded <i>429 Too Many Requests</i> responses, indexed by the value of
+	 * <i>Retry-After</i> header.
+	 */
+	private static final byte[][] RESPONSES = new byte[MAX_RETRY_AFTER + 1][];
+
+	static {
+		String body = "<html><head><title>Too Many Requests</title>"
+				+ "</head><body><b>429 Too Many Requests</b></body></html>";
+		for(int i = 1; i <= MAX_RETRY_AFTER; ++i) {
+			RESPONSES[i] = ("HTTP/1.1 429 Too Many Requests\r\n"
+					+ "Server: Smart Http Server\r\n"
+					+ "Retry-After: " + i + "\r\n"
+					+ "Content-Type: text/html;charset=UTF-8\r\n"
+					+ "Content-Length: " + body.length() + "\r\n"
+					+ "Connection: close\r\n"
+					+ "\r\n" + body).getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Bucket models token bucket of a single client or session.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class Bucket {
+		/**
+		 * Address of the client or ID of the session.
+		 */
+		final String key;
+		/**
+		 * Time of the last refill, increased by one, and the number of
+		 * thousandths of tokens.
+		 */
+		final AtomicLong state;
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param key address of the client or ID of the session
+		 * @param state initial state
+		 */
+		Bucket(String key, long state) {
+			this.key = key;
+			this.state = new AtomicLong(state);
+		}
+	}
+
+	/**
+	 * Rule models a single limit of requests of a path.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class Rule {
+		/**
+		 * Path of the rule.
+		 */
+		final String path;
+		/**
+		 * Flag which indicates that the rule limits sessions instead of
+		 * clients' addresses.
+		 */
+		final boolean perSession;
+		/**
+		 * Thousandths of tokens added to a bucket per millisecond, which is
+		 * the same as tokens per second.
+		 */
+		final double rate;
+		/**
+		 * Capacity of a bucket in thousandths of tokens.
+		 */
+		final long burst;
+		/**
+		 * Slots of buckets, <b>null</b> if slot has never been used.
+		 */
+		final AtomicReferenceArray<Bucket> buckets =
+				new AtomicReferenceArray<>(BUCKETS);
+		/**
+		 * Number of allowed requests.
+		 */
+		final LongAdder allowed = new LongAdder();
+		/**
+		 * Number of limited requests.
+		 */
+		final LongAdder limited = new LongAdder();
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param path path of the rule
+		 * @param perSession <b>true</b> if sessions are limited
+		 * @param rate tokens added per second
+		 * @param burst capacity of a bucket in tokens
+		 */
+		Rule(String path, boolean perSession, double rate, int burst) {
+			this.path = path;
+			this.perSession = perSession;
+			this.rate = rate;
+			this.burst = burst * 1000L;
+		}
+	}
+
+	/**
+	 * Router which holds rules mapped to their paths.
+	 */
+	private final Router<List<Rule>> routes = new Router<>();
+	/**
+	 * All rules, in order in which they have been read.
+	 */
+	private final List<Rule> rules = new ArrayList<>();
+	/**
+	 * Time of creation, as given by {@link System#nanoTime()}, from which
+	 * refills are measured.
+	 */
+	private final long epoch = System.nanoTime();
+
+	/**
+	 * Instantiates this class without any limits.
+	 */
+	public RateLimits() {
+	}
+
+	/**
+	 * Instantiates this class with limits read from given .properties file.
+	 *
+	 * @param limitsPropsPath path to limits properties file
+	 * @throws IOException if I/O error of any kind has occurred
+	 * @throws NumberFormatException if rate or burst is not a number
+	 * @throws IllegalArgumentException if a rule is invalid
+	 */
+	public RateLimits(String limitsPropsPath) throws IOException {
+		Properties props = new Properties();
+		try (Reader reader = new FileReader(limitsPropsPath)) {
+			props.load(reader);
+		}
+
+		for(Entry<Object, Object> entry : props.entrySet()) {
+			String path = ((String)entry.getKey()).trim();
+			List<Rule> pathRules = new ArrayList<>();
+			for(String definition : ((String)entry.getValue()).split(",")) {
+				pathRules.add(parseRule(path, definition.trim()));
+			}
+			routes.add(path, pathRules);
+			rules.addAll(pathRules);
+		}
+	}
+
+	/**
+	 * Takes a token from buckets of given client and session, for every rule
+	 * which applies to given path.
+	 *
+	 * @param path requested path
+	 * @param clientAddress address of the client
+	 * @param sessionId ID of user's session, <b>null</b> if user has none
+	 * @return 0 if request is allowed, otherwise number of seconds after
+	 * which client should retry
+	 */
+	public int check(String path, String clientAddress, String sessionId) {
+		if(rules.isEmpty()) {
+			return 0;
+		}
+		Router.Match<List<Rule>> match = routes.find(path);
+		if(match == null) {
+			return 0;
+		}
+
+		int retryAfter = 0;
+		long now = (System.nanoTime() - epoch) / 1_000_000;
+		for(Rule rule : match.getValue()) {
+			String key = rule.perSession ? sessionId : clientAddress;
+			if(key == null) {
+				continue;
+			}
+			retryAfter = Math.max(retryAfter, take(rule, key, now));
+		}
+		return retryAfter;
+	}
+
+	/**
+	 * Gets encoded <i>429 Too Many Requests</i> response with given value of
+	 * <i>Retry-After</i> header. Returned array must not be modified.
+	 *
+	 * @param retryAfter number of seconds after which client should retry
+	 * @return encoded response
+	 */
+	public byte[] getResponse(int retryAfter) {
+		return RESPONSES[Math.max(1, Math.min(MAX_RETRY_AFTER, retryAfter))];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(Rule rule : rules) {
+			if(sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(rule.path).append(rule.perSession ? " session" : " ip")
+					.append(": allowed=").append(rule.allowed.sum())
+					.append(", limited=").append(rule.limited.sum());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Takes a token from the bucket of given key.
+	 *
+	 * @param rule rule
+	 * @param key address of the client or ID of the session
+	 * @param now milliseconds since {@link #epoch}
+	 * @return 0 if a token has been taken, otherwise number of seconds until
+	 * a token will be available
+	 */
+	private int take(Rule rule, String key, long now) {
+		Bucket bucket = find(rule, key, now);
+		if(bucket == null) {
+			//new bucket is full, so its first token has already been taken
+			rule.allowed.increment();
+			return 0;
+		}
+
+		while(true) {
+			long state = bucket.state.get();
+			long tokens = tokens(rule, state, now);
+			if(tokens < 1000) {
+				rule.limited.increment();
+				double millis = (1000 - tokens) / rule.rate;
+				return (int)Math.ceil(millis / 1000);
+			}
+			long updated = ((now + 1) << TOKEN_BITS) | (tokens - 1000);
+			if(bucket.state.compareAndSet(state, updated)) {
+				rule.allowed.increment();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Finds the bucket of given key. If key has no bucket, a new bucket,
+	 * from which a token has been taken, is put in a free slot, the slot of
+	 * a completely refilled bucket or the slot of the least recently used
+	 * bucket among the probed ones.
+	 *
+	 * @param rule rule
+	 * @param key address of the client or ID of the session
+	 * @param now milliseconds since {@link #epoch}
+	 * @return bucket of the key, <b>null</b> if a new bucket has been put
+	 */
+	private static Bucket find(Rule rule, String key, long now) {
+		int hash = key.hashCode() * 0x9E3779B9;
+		int start = hash ^ (hash >>> 16);
+		while(true) {
+			int victim = -1;
+			Bucket victimBucket = null;
+			long victimTime = Long.MAX_VALUE;
+			for(int i = 0; i < PROBES; ++i) {
+				int index = (start + i) & (BUCKETS - 1);
+				Bucket bucket = rule.buckets.get(index);
+				if(bucket != null && bucket.key.equals(key)) {
+					return bucket;
+				}
+				if(victimTime == Long.MIN_VALUE) {
+					continue;
+				}
+				if(bucket == null) {
+					victim = index;
+					victimBucket = null;
+					victimTime = Long.MIN_VALUE;
+					continue;
+				}
+				long state = bucket.state.get();
+				long time = tokens(rule, state, now) >= rule.burst
+						? Long.MIN_VALUE
+						: state >>> TOKEN_BITS;
+				if(time < victimTime) {
+					victim = index;
+					victimBucket = bucket;
+					victimTime = time;
+				}
+			}
+
+			//key can be in a later slot than the victim, so all slots are
+			//probed before the victim is replaced
+			Bucket created = new Bucket(key,
+					((now + 1) << TOKEN_BITS) | (rule.burst - 1000));
+			if(rule.buckets.compareAndSet(victim, victimBucket, created)) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Computes the number of thousandths of tokens in a bucket of given
+	 * state, including the refill since its last use.
+	 *
+	 * @param rule rule
+	 * @param state state of the bucket
+	 * @param now milliseconds since {@link #epoch}
+	 * @return thousandths of tokens
+	 */
+	private static long tokens(Rule rule, long state, long now) {
+		long elapsed = Math.max(0, now - ((state >>> TOKEN_BITS) - 1));
+		return Math.min(rule.burst, (state & ((1L << TOKEN_BITS) - 1))
+				+ (long)(elapsed * rule.rate));
+	}
+
+	/**
+	 * Parses a rule of given path.
+	 *
+	 * @param path path of the rule
+	 * @param definition kind, rate and burst separated by spaces
+	 * @return parsed rule
+	 * @throws IllegalArgumentException if rule is invalid
+	 */
+	private static Rule parseRule(String path, String definition) {
+		String[] parts = definition.split("\\s+");
+		if(parts.length != 3
+				|| !parts[0].equals("ip") && !parts[0].equals("session")) {
+			throw new IllegalArgumentException("Invalid rate limit of " + path
+					+ ", expected ip or session, rate and burst: "
+					+ definition);
+		}
+
+		double rate = Double.parseDouble(parts[1]);
+		int burst = Integer.parseInt(parts[2]);
+		if(!(rate > 0) || burst < 1 || burst > MAX_BURST) {
+			throw new IllegalArgumentException("Rate of " + path
+					+ " must be positive and burst between 1 and " + MAX_BURST);
+		}
+		return new Rule(path, parts[0].equals("session"), rate, burst);
+	}
+
+}
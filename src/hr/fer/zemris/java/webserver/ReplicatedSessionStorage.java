@@ -0,0 +1,688 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+/**
+ * ReplicatedSessionStorage is the {@link SessionStorage} which shares user
+ * sessions among several instances of {@link SmartHttpServer}, so a user
+ * keeps the session no matter which instance serves the request. Sessions
+ * are held by a local storage, which all reads use, and every change of a
+ * session is sent to the other instances.
+ *
+ * <p>Request threads never wait for the network. They only queue changes,
+ * which a background thread sends to every peer in batches over persistent
+ * TCP connections. Consecutive extensions of the same session's validity
+ * are merged into one change. Batches are dropped for a peer which can not
+ * be reached, and connection to it is retried once per second. Once
+ * connected, a peer first receives all valid sessions, so an instance which
+ * has started late or restarted catches up with the changes it has missed.
+ * Idle connections are probed with empty batches, so a broken one is
+ * noticed and reconnected. Changes received from peers are applied to the
+ * local storage and are not sent any further.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class ReplicatedSessionStorage implements SessionStorage {
+
+	/**
+	 * Change of a created session.
+	 */
+	private static final byte CREATE = 1;
+	/**
+	 * Change of extended validity of a session.
+	 */
+	private static final byte TOUCH = 2;
+	/**
+	 * Change of a set parameter.
+	 */
+	private static final byte PUT = 3;
+	/**
+	 * Change of a removed parameter.
+	 */
+	private static final byte REMOVE = 4;
+	/**
+	 * Interval, in milliseconds, in which queued changes are sent.
+	 */
+	private static final long BATCH_INTERVAL = 50;
+	/**
+	 * Interval, in milliseconds, between attempts to connect to a peer.
+	 */
+	private static final long RECONNECT_INTERVAL = 1000;
+	/**
+	 * Timeout, in milliseconds, of connecting to a peer.
+	 */
+	private static final int CONNECT_TIMEOUT = 1000;
+	/**
+	 * Size, in bytes, after which a batch is sent and a new one is started.
+	 */
+	private static final int BATCH_SIZE = 1 << 20;
+	/**
+	 * Maximal size, in bytes, of a received batch. Larger length can only
+	 * come from a stray or broken connection.
+	 */
+	private static final int MAX_BATCH_SIZE = 16 << 20;
+
+	/**
+	 * Peer models another instance to which changes are sent.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class Peer {
+		/**
+		 * Address on which the peer receives changes.
+		 */
+		final InetSocketAddress address;
+		/**
+		 * Connection to the peer, <b>null</b> if it is not connected.
+		 */
+		Socket socket;
+		/**
+		 * Stream of the connection.
+		 */
+		OutputStream output;
+		/**
+		 * Time, in milliseconds, after which connecting can be retried.
+		 */
+		long retryAt;
+		/**
+		 * Time, in milliseconds, at which a batch was last written.
+		 */
+		long sentAt;
+
+		/**
+		 * Instantiates this class with given address.
+		 *
+		 * @param address address of the peer
+		 */
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Local storage of sessions.
+	 */
+	private final SessionStorage local;
+	/**
+	 * Socket on which changes of peers are received.
+	 */
+	private final ServerSocket listener;
+	/**
+	 * Peers to which changes are sent.
+	 */
+	private final List<Peer> peers = new ArrayList<>();
+	/**
+	 * Queued changes, each either a created session or a set or removed
+	 * parameter.
+	 */
+	private final ConcurrentLinkedQueue<Object> queue =
+			new ConcurrentLinkedQueue<>();
+	/**
+	 * Latest validity of sessions whose validity has been extended since the
+	 * previous batch, mapped by session IDs.
+	 */
+	private final Map<String, Long> touches = new ConcurrentHashMap<>();
+	/**
+	 * Number of sent changes.
+	 */
+	private final LongAdder sent = new LongAdder();
+	/**
+	 * Number of changes received from peers.
+	 */
+	private final LongAdder received = new LongAdder();
+	/**
+	 * Thread which sends queued changes.
+	 */
+	private final Thread sender;
+	/**
+	 * Flag which indicates that the storage is closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Instantiates this class with given parameters. Changes of peers are
+	 * received on given address from now on.
+	 *
+	 * @param local local storage of sessions
+	 * @param address address on which changes of peers are received
+	 * @param peerAddresses addresses on which peers receive changes
+	 * @throws IOException if given address can not be bound
+	 * @throws NullPointerException if any argument is null-reference
+	 */
+	public ReplicatedSessionStorage(SessionStorage local,
+			InetSocketAddress address, List<InetSocketAddress> peerAddresses)
+			throws IOException {
+		this.local = Objects.requireNonNull(local);
+		for(InetSocketAddress peerAddress : peerAddresses) {
+			peers.add(new Peer(peerAddress));
+		}
+		listener = new ServerSocket();
+		listener.bind(address);
+
+		Thread acceptor = new Thread(this::accept, "session-replication");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		sender = new Thread(this::send, "session-replication-sender");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Gets session of given ID from the local storage and queues its
+	 * extended validity.
+	 */
+	@Override
+	public SessionMapEntry touch(String sid, long now, long validUntil) {
+		SessionMapEntry session = local.touch(sid, now, validUntil);
+		if(session == null) {
+			return null;
+		}
+		touches.put(session.sid, session.validUntil);
+		return replicated(session);
+	}
+
+	/**
+	 * Creates session in the local storage and queues it.
+	 */
+	@Override
+	public SessionMapEntry create(String sid, long validUntil) {
+		SessionMapEntry session = local.create(sid, validUntil);
+		if(session == null) {
+			return null;
+		}
+		queue.add(new Object[] {sid, validUntil});
+		return replicated(session);
+	}
+
+	@Override
+	public void expire(long now) {
+		local.expire(now);
+	}
+
+	@Override
+	public void forEach(Consumer<SessionMapEntry> action) {
+		local.forEach(action);
+	}
+
+	/**
+	 * Stops receiving changes, sends the remaining queued changes and closes
+	 * the local storage.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) {
+			return;
+		}
+
+		closed = true;
+		listener.close();
+		sender.interrupt();
+		try {
+			sender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sendBatch();
+		for(Peer peer : peers) {
+			disconnect(peer);
+		}
+		local.close();
+	}
+
+	@Override
+	public String toString() {
+		return local + ", replicated=" + sent.sum()
+				+ ", received=" + received.sum();
+	}
+
+	/**
+	 * Creates view of given session whose map queues every set and removed
+	 * parameter.
+	 *
+	 * @param session session of the local storage
+	 * @return view of the session
+	 */
+	private SessionMapEntry replicated(SessionMapEntry session) {
+		return new SessionMapEntry(session.sid, session.validUntil,
+				new ReplicatedParameters(session.sid, session.map));
+	}
+
+	/**
+	 * ReplicatedParameters is the map of session's parameters which reads
+	 * and writes the map of the local storage, and queues every set and
+	 * removed parameter.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private class ReplicatedParameters extends AbstractMap<String, String> {
+		/**
+		 * ID of the session.
+		 */
+		private final String sid;
+		/**
+		 * Map of the local storage.
+		 */
+		private final Map<String, String> map;
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param sid session ID
+		 * @param map map of the local storage
+		 */
+		ReplicatedParameters(String sid, Map<String, String> map) {
+			this.sid = sid;
+			this.map = map;
+		}
+
+		@Override
+		public String get(Object key) {
+			return map.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return map.containsKey(key);
+		}
+
+		@Override
+		public String put(String key, String value) {
+			String previous = map.put(key, value);
+			queue.add(new String[] {sid, key, value});
+			return previous;
+		}
+
+		@Override
+		public String remove(Object key) {
+			String previous = map.remove(key);
+			if(previous != null) {
+				queue.add(new String[] {sid, (String)key});
+			}
+			return previous;
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return map.keySet();
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return map.entrySet();
+		}
+	}
+
+	/**
+	 * Sends queued changes in batches until the storage is closed.
+	 */
+	private void send() {
+		while(!closed) {
+			try {
+				Thread.sleep(BATCH_INTERVAL);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			sendBatch();
+		}
+	}
+
+	/**
+	 * Encodes queued changes into batches and writes them to every connected
+	 * peer. Peers which are not connected are connected first, if their
+	 * retry interval has passed, and are sent all valid sessions.
+	 */
+	private void sendBatch() {
+		long now = System.currentTimeMillis();
+		for(Peer peer : peers) {
+			if(peer.socket == null) {
+				if(connect(peer, now)) {
+					sendSnapshot(peer);
+				}
+			} else if(now - peer.sentAt >= RECONNECT_INTERVAL) {
+				//empty batch reveals a connection which has been broken
+				write(peer, new byte[4], now);
+			}
+		}
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		DataOutputStream encoder = new DataOutputStream(batch);
+		int count = 0;
+		try {
+			encoder.writeInt(0);
+			Object change;
+			while((change = queue.poll()) != null) {
+				count = sendIfFull(batch, encoder, count, peers);
+				if(change instanceof String[]) {
+					String[] parameter = (String[])change;
+					encoder.writeByte(parameter.length == 3 ? PUT : REMOVE);
+					for(String part : parameter) {
+						writeString(encoder, part);
+					}
+				} else {
+					Object[] session = (Object[])change;
+					encoder.writeByte(CREATE);
+					writeString(encoder, (String)session[0]);
+					encoder.writeLong((Long)session[1]);
+				}
+				count++;
+			}
+			for(String sid : touches.keySet()) {
+				Long validUntil = touches.remove(sid);
+				if(validUntil != null) {
+					count = sendIfFull(batch, encoder, count, peers);
+					encoder.writeByte(TOUCH);
+					writeString(encoder, sid);
+					encoder.writeLong(validUntil);
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			//stream of bytes can not fail
+		}
+		send(batch, count, peers);
+	}
+
+	/**
+	 * Encodes all valid sessions of the local storage into batches and
+	 * writes them to given peer, which has just been connected.
+	 *
+	 * @param peer peer
+	 */
+	private void sendSnapshot(Peer peer) {
+		List<Peer> target = Collections.singletonList(peer);
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		DataOutputStream encoder = new DataOutputStream(batch);
+		long now = System.currentTimeMillis() / 1000;
+		int[] count = new int[1];
+		try {
+			encoder.writeInt(0);
+			local.forEach(session -> {
+				if(session.validUntil < now) {
+					return;
+				}
+				try {
+					count[0] = sendIfFull(batch, encoder, count[0], target);
+					encoder.writeByte(CREATE);
+					writeString(encoder, session.sid);
+					encoder.writeLong(session.validUntil);
+					count[0]++;
+					for(Map.Entry<String, String> parameter
+							: session.map.entrySet()) {
+						count[0] = sendIfFull(batch, encoder, count[0], target);
+						encoder.writeByte(PUT);
+						writeString(encoder, session.sid);
+						writeString(encoder, parameter.getKey());
+						writeString(encoder, parameter.getValue());
+						count[0]++;
+					}
+				} catch (IOException e) {
+					//stream of bytes can not fail
+				}
+			});
+		} catch (IOException e) {
+			//stream of bytes can not fail
+		}
+		send(batch, count[0], target);
+	}
+
+	/**
+	 * Sends given batch and starts a new one if the batch has reached
+	 * {@link #BATCH_SIZE}, so receivers never have to buffer huge batches.
+	 *
+	 * @param batch encoded changes, preceded by space for their length
+	 * @param encoder encoder which writes to the batch
+	 * @param count number of changes in the batch
+	 * @param targets peers to which the batch is sent
+	 * @return number of changes in the batch after the call
+	 * @throws IOException never, since stream of bytes can not fail
+	 */
+	private int sendIfFull(ByteArrayOutputStream batch,
+			DataOutputStream encoder, int count, List<Peer> targets)
+			throws IOException {
+		if(batch.size() < BATCH_SIZE) {
+			return count;
+		}
+		send(batch, count, targets);
+		batch.reset();
+		encoder.writeInt(0);
+		return 0;
+	}
+
+	/**
+	 * Writes given batch to every connected peer of given ones, unless it is
+	 * empty.
+	 *
+	 * @param batch encoded changes, preceded by space for their length
+	 * @param count number of changes in the batch
+	 * @param targets peers to which the batch is sent
+	 */
+	private void send(ByteArrayOutputStream batch, int count,
+			List<Peer> targets) {
+		if(count == 0) {
+			return;
+		}
+		if(batch.size() - 4 > MAX_BATCH_SIZE) {
+			System.err.println("Session changes of " + batch.size()
+					+ " bytes are too large to be replicated.");
+			return;
+		}
+
+		byte[] bytes = batch.toByteArray();
+		ByteBuffer.wrap(bytes).putInt(bytes.length - 4);
+		long now = System.currentTimeMillis();
+		for(Peer peer : targets) {
+			if(peer.socket != null) {
+				write(peer, bytes, now);
+			}
+		}
+		sent.add(count);
+	}
+
+	/**
+	 * Writes given bytes to given connected peer. Peer whose connection
+	 * fails is disconnected.
+	 *
+	 * @param peer peer
+	 * @param bytes encoded batch
+	 * @param now current time in milliseconds
+	 */
+	private void write(Peer peer, byte[] bytes, long now) {
+		try {
+			peer.output.write(bytes);
+			peer.output.flush();
+			peer.sentAt = now;
+		} catch (IOException e) {
+			disconnect(peer);
+			peer.retryAt = now + RECONNECT_INTERVAL;
+		}
+	}
+
+	/**
+	 * Connects to given peer, unless its retry interval has not passed yet.
+	 *
+	 * @param peer peer
+	 * @param now current time in milliseconds
+	 * @return <b>true</b> if peer is connected
+	 */
+	private boolean connect(Peer peer, long now) {
+		if(now < peer.retryAt) {
+			return false;
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(peer.address, CONNECT_TIMEOUT);
+			peer.output = socket.getOutputStream();
+			peer.socket = socket;
+			return true;
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ignorable) {
+			}
+			peer.retryAt = now + RECONNECT_INTERVAL;
+			return false;
+		}
+	}
+
+	/**
+	 * Closes connection to given peer.
+	 *
+	 * @param peer peer
+	 */
+	private static void disconnect(Peer peer) {
+		if(peer.socket == null) {
+			return;
+		}
+		try {
+			peer.socket.close();
+		} catch (IOException ignorable) {
+		}
+		peer.socket = null;
+		peer.output = null;
+	}
+
+	/**
+	 * Accepts connections of peers until the storage is closed. Every
+	 * connection is read by its own thread.
+	 */
+	private void accept() {
+		while(!closed) {
+			try {
+				Socket socket = listener.accept();
+				Thread reader = new Thread(() -> receive(socket),
+						"session-replication-" + socket.getRemoteSocketAddress());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if(!closed) {
+					System.err.println("Session replication can not accept "
+							+ "peers. " + e.getMessage());
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads batches of changes from given connection and applies them to the
+	 * local storage, until the connection is closed.
+	 *
+	 * @param socket connection of a peer
+	 */
+	private void receive(Socket socket) {
+		try (DataInputStream input = new DataInputStream(
+				socket.getInputStream())) {
+			while(!closed) {
+				int length = input.readInt();
+				if(length < 0 || length > MAX_BATCH_SIZE) {
+					System.err.println("Invalid length of session changes "
+							+ "received from " 
+							+ socket.getRemoteSocketAddress());
+					return;
+				}
+				byte[] bytes = new byte[length];
+				input.readFully(bytes);
+				apply(ByteBuffer.wrap(bytes));
+			}
+		} catch (IOException e) {
+			//peer has disconnected
+		} catch (RuntimeException e) {
+			System.err.println("Malformed session changes received from "
+					+ socket.getRemoteSocketAddress());
+		}
+	}
+
+	/**
+	 * Applies given batch of changes to the local storage.
+	 *
+	 * @param batch encoded changes
+	 */
+	private void apply(ByteBuffer batch) {
+		long now = System.currentTimeMillis() / 1000;
+		while(batch.hasRemaining()) {
+			byte type = batch.get();
+			String sid = readString(batch);
+			if(type == CREATE || type == TOUCH) {
+				long validUntil = batch.getLong();
+				if(type == TOUCH
+						|| local.create(sid, validUntil) == null) {
+					local.touch(sid, now, validUntil);
+				}
+			} else {
+				//touch which does not extend validity finds the session
+				SessionMapEntry session = local.touch(sid, now, 0);
+				String key = readString(batch);
+				String value = type == PUT ? readString(batch) : null;
+				if(session != null && value != null) {
+					session.map.put(key, value);
+				} else if(session != null) {
+					session.map.remove(key);
+				}
+			}
+			received.increment();
+		}
+	}
+
+	/**
+	 * Encodes given string as its length followed by its UTF-8 bytes.
+	 *
+	 * @param encoder encoder
+	 * @param text string
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private static void writeString(DataOutputStream encoder, String text)
+			throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		encoder.writeInt(bytes.length);
+		encoder.write(bytes);
+	}
+
+	/**
+	 * Decodes string encoded by
+	 * {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param batch encoded changes
+	 * @return decoded string
+	 * @throws BufferUnderflowException if batch is too short
+	 */
+	private static String readString(ByteBuffer batch) {
+		int length = batch.getInt();
+		if(length < 0 || length > batch.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		batch.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -1,15 +1,20 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * RequestContext is a class which models the context in which user's request
@@ -129,18 +134,107 @@ public class RequestContext {
 		
 	}
 	
+	/**
+	 * OutputBuffer collects bytes of the response in a given buffer and 
+	 * writes them on the output stream only when the buffer is full or when
+	 * it is flushed.
+	 * 
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class OutputBuffer extends OutputStream {
+		/**
+		 * Stream on which collected bytes are written.
+		 */
+		private final OutputStream out;
+		/**
+		 * Buffer in which bytes are collected.
+		 */
+		private final byte[] buffer;
+		/**
+		 * Number of bytes in the buffer.
+		 */
+		private int count;
+		
+		/**
+		 * Instantiates this class with given parameters.
+		 * 
+		 * @param out stream on which collected bytes are written
+		 * @param buffer buffer in which bytes are collected
+		 */
+		public OutputBuffer(OutputStream out, byte[] buffer) {
+			this.out = out;
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(count == buffer.length) {
+				drain();
+			}
+			buffer[count++] = (byte)b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(len > buffer.length - count) {
+				drain();
+			}
+			if(len >= buffer.length) {
+				out.write(b, off, len);
+				return;
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			drain();
+			out.flush();
+		}
+		
+		/**
+		 * Writes collected bytes on the stream.
+		 * 
+		 * @throws IOException if I/O error of any kind has occurred
+		 */
+		private void drain() throws IOException {
+			if(count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+	}
+	
 	/**
 	 * OutputStream on which response is written.
 	 */
 	private OutputStream outputStream;
+	/**
+	 * Stream on which bytes of the response are written, either the output
+	 * stream itself or its {@link OutputBuffer}.
+	 */
+	private OutputStream sink;
 	/**
 	 * Response's charset.
 	 */
 	private Charset charset;
 	/**
-	 * Header's charset.
+	 * Charsets of responses' bodies mapped by their names.
+	 */
+	private final static Map<String, Charset> CHARSETS = 
+			new ConcurrentHashMap<>();
+	/**
+	 * Size of the buffer through which file is copied when it can not be
+	 * transferred directly.
+	 */
+	private final static int FILE_BUFFER_SIZE = 8 * 1024;
+	/**
+	 * Size of a full chunk of response sent with <i>chunked</i> transfer
+	 * coding.
 	 */
-	private final static Charset HEADER_CHARSET = StandardCharsets.ISO_8859_1;
+	private final static int CHUNK_SIZE = 8 * 1024;
 	
 	/**
 	 * Response's body encoding.
@@ -154,7 +248,7 @@ public class RequestContext {
 	 * Response's content length. If content length is -1, user did not set 
 	 * this parameter and it will not be visible in response's header.
 	 */
-	private int contentLength = -1;
+	private long contentLength = -1;
 	/**
 	 * Response's status text.
 	 */
@@ -173,25 +267,84 @@ public class RequestContext {
 	 */
 	private Map<String,String> temporaryParameters;
 	/**
-	 * Request's persistent parameters.
+	 * Request's persistent parameters, <b>null</b> if user has no session.
 	 */
 	private Map<String,String> persistentParameters;
+	/**
+	 * Starter of user's session, which supplies persistent parameters of
+	 * the new session, <b>null</b> if session can not be started.
+	 */
+	private Supplier<Map<String,String>> sessionStarter;
 	/**
 	 * Request's cookies.
 	 */
 	private List<RCCookie> outputCookies;
+	/**
+	 * Response's additional headers, mapped by their names.
+	 */
+	private Map<String,String> headers = new LinkedHashMap<>();
+	/**
+	 * Flag which indicates that header contains <i>Date</i> line.
+	 */
+	private boolean dateIncluded;
 	/**
 	 * Flag which indicates if header is generated. If header is generated, 
 	 * user will not be able to change some parameters of {@link RequestContext}.
 	 */
 	private boolean headerGenerated;
+	/**
+	 * Flag which indicates that response's body must be delimited by its
+	 * length, since the connection stays open after the response.
+	 */
+	private boolean framingRequired;
+	/**
+	 * Flag which indicates that body of unknown length can be delimited by
+	 * <i>chunked</i> transfer coding, which HTTP/1.1 clients support.
+	 */
+	private boolean chunkingAllowed;
+	/**
+	 * Policy which decides if response is compressed, <b>null</b> if 
+	 * response is never compressed.
+	 */
+	private CompressionPolicy compression;
+	/**
+	 * Content coding accepted by the client, <b>null</b> if client does not
+	 * accept compressed responses.
+	 */
+	private String contentCoding;
+	/**
+	 * Flag which indicates that response will be compressed if its body
+	 * turns out large enough.
+	 */
+	private boolean compressible;
+	/**
+	 * Body of response whose length is not known in advance, held until the
+	 * response is finished if framing is required, or until it is large 
+	 * enough to be compressed.
+	 */
+	private ByteArrayOutputStream bufferedBody;
+	/**
+	 * Stream which compresses response's body, <b>null</b> if body is not
+	 * being compressed.
+	 */
+	private OutputStream compressedBody;
+	/**
+	 * Stream which writes response's body in chunks, <b>null</b> if body is
+	 * not chunked.
+	 */
+	private ChunkedOutputStream chunkedBody;
+	/**
+	 * Flag which indicates if response is finished.
+	 */
+	private boolean finished;
 	
 	/**
 	 * Instantiates this class with given parameters.
 	 * 
 	 * @param outputStream output stream on which response is written
 	 * @param parameters request's parameters
-	 * @param persistentParameters request's persistent parameters
+	 * @param persistentParameters request's persistent parameters, 
+	 * <b>null</b> if user has no session yet
 	 * @param outputCookies request's cookies
 	 * @throws NullPointerException if output stream is null-reference
 	 */
@@ -202,6 +355,7 @@ public class RequestContext {
 		Objects.requireNonNull(outputStream);
 		
 		this.outputStream = outputStream;
+		this.sink = outputStream;
 		this.parameters = parameters;
 		this.persistentParameters = persistentParameters;
 		this.outputCookies = outputCookies;
@@ -280,7 +434,7 @@ public class RequestContext {
 	 * @param contentLength new content length
 	 * @throws IllegalArgumentException if given length is lesser than 0
 	 */
-	public void setContentLength(int contentLength) {
+	public void setContentLength(long contentLength) {
 		if(contentLength < 0) {
 			throw new IllegalArgumentException(
 					"Length of content can not be nageative.");
@@ -289,6 +443,125 @@ public class RequestContext {
 		this.contentLength = contentLength;
 	}
 	
+	/**
+	 * Adds a header to the response. If header is already generated, using
+	 * this method will result in {@link RuntimeException}.
+	 * 
+	 * @param name header's name
+	 * @param value header's value
+	 * @throws NullPointerException if name or value is null-reference
+	 * @throws RuntimeException if header is already generated
+	 */
+	public void addHeader(String name, String value) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(value);
+		if(headerGenerated) {
+			throw new RuntimeException("Header generated");
+		}
+		
+		headers.put(name, value);
+	}
+	
+	/**
+	 * Sets whether response's header contains <i>Date</i> line with the 
+	 * time at which the header is generated.
+	 * 
+	 * @param dateIncluded <b>true</b> if date is included
+	 * @throws RuntimeException if header is already generated
+	 */
+	public void setDateIncluded(boolean dateIncluded) {
+		if(headerGenerated) {
+			throw new RuntimeException("Header generated");
+		}
+		
+		this.dateIncluded = dateIncluded;
+	}
+	
+	/**
+	 * Sets whether response's body must be delimited by its length. This is
+	 * needed when connection is kept open after the response. If content 
+	 * length is not set when body is written, body is held until the 
+	 * response is {@link #finish() finished} and its length is known.
+	 * 
+	 * @param framingRequired <b>true</b> if body must be delimited
+	 * @throws RuntimeException if header is already generated
+	 */
+	public void setFramingRequired(boolean framingRequired) {
+		if(headerGenerated) {
+			throw new RuntimeException("Header generated");
+		}
+		
+		this.framingRequired = framingRequired;
+	}
+	
+	/**
+	 * Sets buffer in which response is collected before it is written on
+	 * output stream. Bytes are written only when the buffer is full, when 
+	 * {@link #flush()} is called or when the response is finished, so small
+	 * response is written at once. Without the buffer, every write is 
+	 * flushed immediately. Buffer can be reused for another response once 
+	 * this one is finished.
+	 * 
+	 * @param buffer output buffer
+	 * @throws NullPointerException if buffer is null-reference
+	 * @throws IllegalArgumentException if buffer is empty
+	 * @throws RuntimeException if header is already generated
+	 */
+	public void setOutputBuffer(byte[] buffer) {
+		Objects.requireNonNull(buffer);
+		if(buffer.length == 0) {
+			throw new IllegalArgumentException("Buffer can not be empty.");
+		}
+		if(headerGenerated) {
+			throw new RuntimeException("Header generated");
+		}
+		
+		sink = new OutputBuffer(outputStream, buffer);
+	}
+	
+	/**
+	 * Sets whether response's body of unknown length can be delimited by 
+	 * <i>chunked</i> transfer coding. If it can and framing is required, 
+	 * body is sent in chunks as it is written, instead of being held until
+	 * the response is finished.
+	 * 
+	 * @param chunkingAllowed <b>true</b> if client supports chunked 
+	 * transfer coding
+	 * @throws RuntimeException if header is already generated
+	 */
+	public void setChunkingAllowed(boolean chunkingAllowed) {
+		if(headerGenerated) {
+			throw new RuntimeException("Header generated");
+		}
+		
+		this.chunkingAllowed = chunkingAllowed;
+	}
+	
+	/**
+	 * Sets compression of the response. When header is generated, response 
+	 * is marked as compressible if given policy allows its mime type and its
+	 * length, if known. Body of compressible response is held until it 
+	 * reaches policy's minimal size, after which it is compressed with 
+	 * given content coding as it is written. Response which is finished
+	 * before that is not compressed. Framed response which can not be 
+	 * chunked is compressed as a whole when it is finished.
+	 * 
+	 * @param compression compression policy, <b>null</b> to disable 
+	 * compression
+	 * @param contentCoding content coding accepted by the client, 
+	 * <b>null</b> if client does not accept compressed responses
+	 * @throws RuntimeException if header is already generated
+	 */
+	public void setCompression(CompressionPolicy compression, 
+			String contentCoding) {
+		if(headerGenerated) {
+			throw new RuntimeException("Header generated");
+		}
+		
+		this.compression = compression;
+		this.contentCoding = contentCoding;
+	}
+	
 	/**
 	 * Gets parameter.
 	 * 
@@ -308,14 +581,50 @@ public class RequestContext {
 		return Collections.unmodifiableSet(parameters.keySet());
 	}
 	
+	/**
+	 * Sets starter of user's session, used if user has no session when 
+	 * persistent parameter is set or session is 
+	 * {@link #startSession() started}. Starter should add the cookie of the
+	 * new session to request's cookies.
+	 * 
+	 * @param sessionStarter starter which supplies persistent parameters of
+	 * the new session
+	 */
+	public void setSessionStarter(
+			Supplier<Map<String,String>> sessionStarter) {
+		this.sessionStarter = sessionStarter;
+	}
+	
+	/**
+	 * Starts user's session, unless user already has one. Session's cookie
+	 * is sent only if session is started before the header is generated, so
+	 * workers which set persistent parameters after they have written 
+	 * something should start the session first.
+	 * 
+	 * @throws RuntimeException if user has no session and it can not be
+	 * started
+	 */
+	public void startSession() {
+		if(persistentParameters != null) {
+			return;
+		}
+		if(sessionStarter == null) {
+			throw new RuntimeException("Session can not be started");
+		}
+		
+		persistentParameters = sessionStarter.get();
+	}
+	
 	/**
 	 * Gets persistent parameter.
 	 * 
 	 * @param name parameter's name
-	 * @return parameter's value
+	 * @return parameter's value, <b>null</b> if it is not set
 	 */
 	public String getPersistentParameter(String name) {
-		return persistentParameters.get(name);
+		return persistentParameters == null 
+				? null 
+				: persistentParameters.get(name);
 	}
 	
 	/**
@@ -324,16 +633,22 @@ public class RequestContext {
 	 * @return parameters names
 	 */
 	public Set<String> getPersistentParameterNames() {
-		return Collections.unmodifiableSet(persistentParameters.keySet());
+		return persistentParameters == null
+				? Collections.emptySet()
+				: Collections.unmodifiableSet(persistentParameters.keySet());
 	}
 	
 	/**
-	 * Sets persistent parameter.
+	 * Sets persistent parameter. User's session is started if user has
+	 * none.
 	 * 
 	 * @param name parameter's name
 	 * @param value parameter's value
+	 * @throws RuntimeException if user has no session and it can not be
+	 * started
 	 */
 	public void setPersistentParameter(String name, String value) {
+		startSession();
 		persistentParameters.put(name, value);
 	}
 	
@@ -343,7 +658,9 @@ public class RequestContext {
 	 * @param name parameter's name
 	 */
 	public void removePersistentParameter(String name) {
-		persistentParameters.remove(name);
+		if(persistentParameters != null) {
+			persistentParameters.remove(name);
+		}
 	}
 	
 	/**
@@ -409,8 +726,7 @@ public class RequestContext {
 			generateHeader();
 		}
 		
-		outputStream.write(data);
-		outputStream.flush();
+		writeBody(data);
 		return this;
 	}
 	
@@ -428,48 +744,318 @@ public class RequestContext {
 			generateHeader();
 		}
 
-		outputStream.write(text.getBytes(charset));
-		outputStream.flush();
+		writeBody(text.getBytes(charset));
+		return this;
+	}
+	
+	/**
+	 * Writes given part of a file on output stream. If output stream is able
+	 * to, bytes are transferred straight from the file system without being
+	 * copied into the heap. Given file channel is closed once its bytes are
+	 * written.
+	 * 
+	 * @param file file channel
+	 * @param position position of the first written byte
+	 * @param count number of written bytes
+	 * @return reference to this {@link RequestContext} 
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	public RequestContext write(FileChannel file, long position, long count)
+			throws IOException {
+		Objects.requireNonNull(file);
+		try {
+			if(!headerGenerated) {
+				generateHeader();
+			}
+			if(finished) {
+				throw new IOException("Response finished");
+			}
+			
+			if(bufferedBody == null && compressedBody == null
+					&& chunkedBody == null
+					&& outputStream instanceof FileTransferTarget) {
+				sink.flush();
+				FileChannel transferred = file;
+				file = null;
+				((FileTransferTarget)outputStream)
+					.transferFrom(transferred, position, count);
+				return this;
+			}
+			
+			ByteBuffer buffer = ByteBuffer.allocate(
+					(int)Math.min(count, FILE_BUFFER_SIZE));
+			long end = position + count;
+			while(position < end) {
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), end - position));
+				int read = file.read(buffer, position);
+				if(read == -1) {
+					throw new IOException("File has been truncated.");
+				}
+				writeBody(buffer.array(), 0, read);
+				position += read;
+			}
+			return this;
+		} finally {
+			if(file != null) {
+				file.close();
+			}
+		}
+	}
+	
+	/**
+	 * Writes remaining bytes of given buffer on output stream. If output
+	 * stream is able to, bytes are sent without being copied, so buffer's
+	 * content must not be changed afterwards. Buffer's position is not
+	 * changed.
+	 * 
+	 * @param buffer buffer whose remaining bytes are written
+	 * @return reference to this {@link RequestContext} 
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	public RequestContext write(ByteBuffer buffer) throws IOException {
+		Objects.requireNonNull(buffer);
+		if(!headerGenerated) {
+			generateHeader();
+		}
+		if(finished) {
+			throw new IOException("Response finished");
+		}
+		
+		buffer = buffer.duplicate();
+		if(bufferedBody == null && compressedBody == null
+				&& chunkedBody == null
+				&& outputStream instanceof FileTransferTarget) {
+			sink.flush();
+			((FileTransferTarget)outputStream).transferFrom(buffer);
+			return this;
+		}
+		
+		byte[] copy = new byte[Math.min(buffer.remaining(), FILE_BUFFER_SIZE)];
+		while(buffer.hasRemaining()) {
+			int length = Math.min(copy.length, buffer.remaining());
+			buffer.get(copy, 0, length);
+			writeBody(copy, 0, length);
+		}
+		return this;
+	}
+	
+	/**
+	 * Writes everything written so far on output stream and flushes it, so
+	 * the client receives it without waiting for the rest of the response.
+	 * Chunked body is flushed as a chunk and compressed body is flushed 
+	 * with a sync flush of the compressor. Body which is held until its 
+	 * length is known, or until it is known whether it will be compressed,
+	 * stays held. Header is generated if nothing has been written.
+	 * 
+	 * @return reference to this {@link RequestContext} 
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	public RequestContext flush() throws IOException {
+		if(!headerGenerated) {
+			generateHeader();
+		}
+		if(finished) {
+			return this;
+		}
+		
+		if(compressedBody != null) {
+			compressedBody.flush();
+		} else if(chunkedBody != null) {
+			chunkedBody.flush();
+		}
+		sink.flush();
 		return this;
 	}
+	
+	/**
+	 * Finishes the response. Header is generated if nothing has been written
+	 * and body held until the response is finished is written. After the
+	 * response is finished nothing more can be written.
+	 * 
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	public void finish() throws IOException {
+		if(finished) {
+			return;
+		}
+		if(!headerGenerated) {
+			if(framingRequired && contentLength == -1 && isBodyAllowed()) {
+				contentLength = 0;
+			}
+			generateHeader();
+		}
+		finished = true;
+		
+		if(compressedBody != null) {
+			compressedBody.close();
+			compressedBody = null;
+		}
+		if(chunkedBody != null) {
+			chunkedBody.close();
+			chunkedBody = null;
+		} else if(bufferedBody != null) {
+			if(compressible 
+					&& bufferedBody.size() >= compression.getMinSize()) {
+				byte[] body = bufferedBody.toByteArray();
+				body = CompressionPolicy.compress(
+						contentCoding, body, 0, body.length);
+				headers.put("Content-Encoding", contentCoding);
+				contentLength = body.length;
+				writeHeader();
+				sink.write(body);
+			} else {
+				contentLength = bufferedBody.size();
+				writeHeader();
+				bufferedBody.writeTo(sink);
+			}
+			bufferedBody = null;
+		}
+		sink.flush();
+	}
+	
+	/**
+	 * Writes given bytes of response's body.
+	 * 
+	 * @param data bytes of body
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	private void writeBody(byte[] data) throws IOException {
+		writeBody(data, 0, data.length);
+	}
+	
+	/**
+	 * Writes given part of an array as bytes of response's body.
+	 * 
+	 * @param data array of bytes
+	 * @param offset offset of the first written byte
+	 * @param length number of written bytes
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	private void writeBody(byte[] data, int offset, int length) 
+			throws IOException {
+		if(finished) {
+			throw new IOException("Response finished");
+		}
+		if(compressedBody != null) {
+			compressedBody.write(data, offset, length);
+			return;
+		}
+		if(chunkedBody != null) {
+			chunkedBody.write(data, offset, length);
+			return;
+		}
+		if(bufferedBody != null) {
+			bufferedBody.write(data, offset, length);
+			if(compressible && (!framingRequired || chunkingAllowed)
+					&& bufferedBody.size() >= compression.getMinSize()) {
+				startCompression();
+			}
+			return;
+		}
+		
+		sink.write(data, offset, length);
+		if(sink == outputStream) {
+			outputStream.flush();
+		}
+	}
+	
+	/**
+	 * Writes the header of compressed response and starts compressing the
+	 * body, beginning with the bytes held so far. Framed response is 
+	 * compressed into chunks.
+	 * 
+	 * @throws IOException if I/O exception of any kind has occurred
+	 */
+	private void startCompression() throws IOException {
+		headers.put("Content-Encoding", contentCoding);
+		if(framingRequired) {
+			headers.put("Transfer-Encoding", "chunked");
+			chunkedBody = new ChunkedOutputStream(sink, CHUNK_SIZE);
+		}
+		writeHeader();
+		compressedBody = CompressionPolicy.compressingStream(contentCoding, 
+				chunkedBody != null ? chunkedBody : sink);
+		bufferedBody.writeTo(compressedBody);
+		bufferedBody = null;
+	}
 
 	/**
-	 * Generates the response's header.
+	 * Generates the response's header. If response's body must be delimited
+	 * and its length is unknown, body is sent in chunks if client supports
+	 * it, otherwise writing of header is postponed until the response is 
+	 * finished. Writing of header of compressible response is postponed 
+	 * until it is known whether it will be compressed.
 	 */
 	private void generateHeader() {
-		charset = Charset.forName(encoding);
-		StringBuilder sb = new StringBuilder();
-		sb.append("HTTP/1.1 ").append(statusCode).append(" ")
-			.append(statusText).append("\r\n");
-		sb.append("Content-Type: ").append(mimeType)
-			.append(mimeType.startsWith("text/") ? ("; charset= " +encoding) 
-												 : "")
-			.append("\r\n");
+		charset = CHARSETS.computeIfAbsent(encoding, Charset::forName);
+		if(compression != null && isBodyAllowed()
+				&& !headers.containsKey("Content-Encoding")
+				&& compression.isCompressible(mimeType)) {
+			headers.put("Vary", "Accept-Encoding");
+			if(contentCoding != null && (contentLength == -1 
+					|| contentLength >= compression.getMinSize())) {
+				compressible = true;
+				contentLength = -1;
+			}
+		}
+		boolean unknownLength = contentLength == -1 && isBodyAllowed();
+		if(compressible || (framingRequired && unknownLength 
+				&& !chunkingAllowed)) {
+			bufferedBody = new ByteArrayOutputStream();
+			headerGenerated = true;
+			return;
+		}
+		
+		if(framingRequired && unknownLength) {
+			headers.put("Transfer-Encoding", "chunked");
+			chunkedBody = new ChunkedOutputStream(sink, CHUNK_SIZE);
+		}
+		writeHeader();
+	}
+	
+	/**
+	 * Checks if response with the current status code can have a body.
+	 * Responses <i>204 No Content</i> and <i>304 Not Modified</i> never
+	 * have one, so they need no framing.
+	 * 
+	 * @return <b>true</b> if response can have a body
+	 */
+	private boolean isBodyAllowed() {
+		return statusCode != 204 && statusCode != 304;
+	}
+	
+	/**
+	 * Writes the response's header. Header is encoded by the thread's
+	 * {@link HeaderEncoder} and written with a single write.
+	 */
+	private void writeHeader() {
+		HeaderEncoder encoder = HeaderEncoder.get()
+				.statusLine(statusCode, statusText)
+				.contentType(mimeType, encoding);
+		if(dateIncluded) {
+			encoder.date();
+		}
 		if(contentLength > -1) {
-			sb.append("Content-Length: ").append(contentLength).append("\r\n");
+			encoder.contentLength(contentLength);
+		}
+		if(!headers.isEmpty()) {
+			for(Map.Entry<String, String> header : headers.entrySet()) {
+				encoder.header(header.getKey(), header.getValue());
+			}
 		}
 		if(outputCookies != null && outputCookies.size() > 0) {
 			for(RCCookie outputCookie : outputCookies) {
-				sb.append("Set-Cookie: ");
-				sb.append(outputCookie.getName()).append("=")
-				.append(outputCookie.getValue());
-				if(outputCookie.getDomain() != null) {
-					sb.append("; Domain=").append(outputCookie.getDomain());
-				}
-				if(outputCookie.getPath() != null) {
-					sb.append("; Path=").append(outputCookie.getPath());
-				}
-				if(outputCookie.getMaxAge() != null) {
-					sb.append("; Max-Age=").append(outputCookie.getMaxAge());
-				}
-				sb.append("\r\n");
+				encoder.cookie(outputCookie);
 			}
 		}
-		sb.append("\r\n");
+		encoder.end();
 		
 		try {
-			outputStream.write(sb.toString().getBytes(HEADER_CHARSET));
-			outputStream.flush();
+			encoder.writeTo(sink);
+			if(sink == outputStream) {
+				outputStream.flush();
+			}
 		} catch (IOException e) {
 			return;
 		}
@@ -0,0 +1,323 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Router maps request paths to values of routes, e.g. workers of
+ * {@link SmartHttpServer}. Routes are compiled into a trie of path segments,
+ * so a path is matched in time proportional to its length, no matter how
+ * many routes there are. Three kinds of segments are supported:
+ * <ul>
+ * <li> static segment, e.g. <i>/users</i>, which matches only itself </li>
+ * <li> parameter, e.g. <i>/{id}</i>, which matches any single segment and
+ * captures it under given name </li>
+ * <li> trailing <i>/*</i>, which makes the route a prefix route matching
+ * every path which starts with it, e.g. <i>/ext/*</i> </li>
+ * </ul>
+ * Static segment takes precedence over parameter, but if it leads to no
+ * exact route, parameter is tried instead. If no exact route matches, the
+ * longest prefix route on the way does.
+ *
+ * @author Filip Klepo
+ *
+ * @param <T> type of routes' values
+ */
+class Router<T> {
+
+	/**
+	 * Match models a route which matched a path, together with parameters
+	 * captured from the path.
+	 *
+	 * @author Filip Klepo
+	 *
+	 * @param <T> type of route's value
+	 */
+	public static class Match<T> {
+		/**
+		 * Pattern of the route.
+		 */
+		private final String pattern;
+		/**
+		 * Value of the route.
+		 */
+		private final T value;
+		/**
+		 * Captured parameters mapped by their names.
+		 */
+		private final Map<String, String> parameters;
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param pattern pattern of the route
+		 * @param value value of the route
+		 * @param parameters captured parameters
+		 */
+		private Match(String pattern, T value, Map<String, String> parameters) {
+			this.pattern = pattern;
+			this.value = value;
+			this.parameters = parameters;
+		}
+
+		/**
+		 * Gets pattern of the route, as it has been added.
+		 *
+		 * @return pattern
+		 */
+		public String getPattern() {
+			return pattern;
+		}
+
+		/**
+		 * Gets value of the route.
+		 *
+		 * @return value
+		 */
+		public T getValue() {
+			return value;
+		}
+
+		/**
+		 * Gets unmodifiable map of parameters captured from the path.
+		 *
+		 * @return parameters mapped by their names
+		 */
+		public Map<String, String> getParameters() {
+			return parameters;
+		}
+	}
+
+	/**
+	 * Node models a single segment of the trie.
+	 *
+	 * @author Filip Klepo
+	 *
+	 * @param <T> type of routes' values
+	 */
+	private static class Node<T> {
+		/**
+		 * Children of static segments mapped by the segments.
+		 */
+		Map<String, Node<T>> children;
+		/**
+		 * Child of parameter segment, <b>null</b> if there is none.
+		 */
+		Node<T> parameterChild;
+		/**
+		 * Name of the parameter of {@link #parameterChild}.
+		 */
+		String parameterName;
+		/**
+		 * Exact route which ends in this node, <b>null</b> if there is none.
+		 */
+		Match<T> route;
+		/**
+		 * Prefix route which ends in this node, <b>null</b> if there is none.
+		 */
+		Match<T> prefixRoute;
+	}
+
+	/**
+	 * Root of the trie.
+	 */
+	private final Node<T> root = new Node<>();
+
+	/**
+	 * Adds route of given pattern. Pattern starts with <i>/</i> and consists
+	 * of segments described by {@link Router}.
+	 *
+	 * @param pattern pattern of the route
+	 * @param value value of the route
+	 * @throws NullPointerException if pattern or value is null-reference
+	 * @throws IllegalArgumentException if pattern is invalid or it conflicts
+	 * with parameter of another route
+	 * @throws RuntimeException if route of the same pattern already exists
+	 */
+	public void add(String pattern, T value) {
+		Objects.requireNonNull(pattern);
+		Objects.requireNonNull(value);
+		if(!pattern.startsWith("/")) {
+			throw new IllegalArgumentException(
+					"Route must start with /: " + pattern);
+		}
+
+		boolean prefix = pattern.endsWith("/*");
+		String path = prefix
+				? pattern.substring(0, pattern.length() - 2)
+				: pattern;
+		Node<T> node = root;
+		int start = 1;
+		while(start <= path.length()) {
+			int end = path.indexOf('/', start);
+			end = end == -1 ? path.length() : end;
+			node = child(node, path.substring(start, end), pattern);
+			start = end + 1;
+		}
+
+		Match<T> route = new Match<>(pattern, value, Collections.emptyMap());
+		if(prefix ? node.prefixRoute != null : node.route != null) {
+			throw new RuntimeException("Duplicate key " + pattern);
+		}
+		if(prefix) {
+			node.prefixRoute = route;
+		} else {
+			node.route = route;
+		}
+	}
+
+	/**
+	 * Finds route which matches given path. Parameters of the route are
+	 * captured from the path.
+	 *
+	 * @param path requested path, without parameters
+	 * @return match of the route, <b>null</b> if no route matches
+	 */
+	public Match<T> find(String path) {
+		if(!path.startsWith("/")) {
+			return null;
+		}
+
+		Search<T> search = new Search<>(path);
+		Match<T> match = search.walk(root, 1);
+		return match != null ? match : search.prefixMatch;
+	}
+
+	/**
+	 * Search models a single walk of the trie which looks for an exact
+	 * route of a path and remembers the longest prefix route on the way.
+	 *
+	 * @author Filip Klepo
+	 *
+	 * @param <T> type of routes' values
+	 */
+	private static class Search<T> {
+		/**
+		 * Requested path.
+		 */
+		final String path;
+		/**
+		 * Parameters captured on the current branch, <b>null</b> until the
+		 * first one is captured.
+		 */
+		Map<String, String> parameters;
+		/**
+		 * Longest prefix route found so far, <b>null</b> if there is none.
+		 */
+		Match<T> prefixMatch;
+		/**
+		 * Index in the path at which {@link #prefixMatch} ends.
+		 */
+		int prefixEnd;
+
+		/**
+		 * Instantiates this class with given path.
+		 *
+		 * @param path requested path
+		 */
+		Search(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * Looks for an exact route of the rest of the path below given node.
+		 * Static child is tried first and parameter child only if static
+		 * one leads to no exact route.
+		 *
+		 * @param node current node
+		 * @param start index in the path at which the next segment starts
+		 * @return match of the exact route, <b>null</b> if there is none
+		 */
+		Match<T> walk(Node<T> node, int start) {
+			if(node.prefixRoute != null && start <= path.length()
+					&& start > prefixEnd) {
+				prefixMatch = withParameters(node.prefixRoute, parameters);
+				prefixEnd = start;
+			}
+			if(start > path.length()) {
+				return node.route == null
+						? null
+						: withParameters(node.route, parameters);
+			}
+
+			int end = path.indexOf('/', start);
+			end = end == -1 ? path.length() : end;
+			Node<T> next = node.children == null
+					? null
+					: node.children.get(path.substring(start, end));
+			if(next != null) {
+				Match<T> match = walk(next, end + 1);
+				if(match != null) {
+					return match;
+				}
+			}
+			if(node.parameterChild == null || end == start) {
+				return null;
+			}
+
+			if(parameters == null) {
+				parameters = new LinkedHashMap<>();
+			}
+			parameters.put(node.parameterName, path.substring(start, end));
+			Match<T> match = walk(node.parameterChild, end + 1);
+			parameters.remove(node.parameterName);
+			return match;
+		}
+	}
+
+	/**
+	 * Creates match of given route with given captured parameters.
+	 *
+	 * @param route route without parameters
+	 * @param parameters captured parameters, <b>null</b> if there are none
+	 * @return match of the route
+	 */
+	private static <T> Match<T> withParameters(Match<T> route,
+			Map<String, String> parameters) {
+		if(parameters == null) {
+			return route;
+		}
+		return new Match<>(route.pattern, route.value,
+				Collections.unmodifiableMap(new LinkedHashMap<>(parameters)));
+	}
+
+	/**
+	 * Gets child of given node for given segment of a pattern, creating it
+	 * if it does not exist.
+	 *
+	 * @param node parent node
+	 * @param segment segment of the pattern
+	 * @param pattern whole pattern
+	 * @return child node
+	 * @throws IllegalArgumentException if segment is an invalid parameter or
+	 * parameter's name differs from the one of existing routes
+	 */
+	private static <T> Node<T> child(Node<T> node, String segment,
+			String pattern) {
+		if(segment.startsWith("{")) {
+			if(!segment.endsWith("}") || segment.length() < 3) {
+				throw new IllegalArgumentException(
+						"Invalid parameter in route " + pattern);
+			}
+			String name = segment.substring(1, segment.length() - 1);
+			if(node.parameterChild == null) {
+				node.parameterChild = new Node<>();
+				node.parameterName = name;
+			} else if(!node.parameterName.equals(name)) {
+				throw new IllegalArgumentException("Parameter " + name
+						+ " of route " + pattern + " conflicts with parameter "
+						+ node.parameterName);
+			}
+			return node.parameterChild;
+		}
+
+		if(node.children == null) {
+			node.children = new HashMap<>();
+		}
+		return node.children.computeIfAbsent(segment, s -> new Node<>());
+	}
+
+}
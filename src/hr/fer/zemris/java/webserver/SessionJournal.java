@@ -0,0 +1,620 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+/**
+ * SessionJournal is the {@link SessionStorage} which keeps user sessions of
+ * a {@link SessionStore} on disk, so they survive restarts of the server.
+ * Changes of sessions are appended to a memory-mapped journal file. When
+ * the journal is opened, it is replayed into the store and compacted into a
+ * snapshot of the valid sessions.
+ *
+ * <p>Request threads never write to the file. They only queue changes,
+ * which a background thread appends in batches. Consecutive extensions of
+ * the same session's validity are merged into one record. Journal is forced
+ * to the disk at most once per given interval, and is compacted once it
+ * grows several times larger than the last snapshot.</p>
+ *
+ * <p>Every record is preceded by its length and checksum, so a record torn
+ * by a crash ends the replay instead of corrupting sessions.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class SessionJournal implements SessionStorage {
+
+	/**
+	 * Record of a created session.
+	 */
+	private static final byte CREATE = 1;
+	/**
+	 * Record of extended validity of a session.
+	 */
+	private static final byte TOUCH = 2;
+	/**
+	 * Record of a set parameter.
+	 */
+	private static final byte PUT = 3;
+	/**
+	 * Record of a removed parameter.
+	 */
+	private static final byte REMOVE = 4;
+	/**
+	 * Number of bytes which precede record's payload, its length and
+	 * checksum.
+	 */
+	private static final int RECORD_HEADER = 8;
+	/**
+	 * Interval, in milliseconds, in which queued changes are appended.
+	 */
+	private static final long BATCH_INTERVAL = 100;
+	/**
+	 * Initial size of the mapped region of the file.
+	 */
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	/**
+	 * Minimal size of the journal before it is compacted.
+	 */
+	private static final int MIN_COMPACTION_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * JournaledParameters is the map of session's parameters which queues
+	 * every set and removed parameter in the journal. Only
+	 * {@link #put(String, String)} and {@link #remove(Object)} are journaled,
+	 * which are the only modifications {@link RequestContext} makes.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private class JournaledParameters extends ConcurrentHashMap<String, String> {
+		private static final long serialVersionUID = 1L;
+		/**
+		 * ID of the session.
+		 */
+		private final String sid;
+
+		/**
+		 * Instantiates this class with given session ID.
+		 *
+		 * @param sid session ID
+		 */
+		public JournaledParameters(String sid) {
+			this.sid = sid;
+		}
+
+		@Override
+		public String put(String key, String value) {
+			String previous = super.put(key, value);
+			queue.add(new String[] {sid, key, value});
+			return previous;
+		}
+
+		@Override
+		public String remove(Object key) {
+			String previous = super.remove(key);
+			if(previous != null) {
+				queue.add(new String[] {sid, (String)key});
+			}
+			return previous;
+		}
+
+		/**
+		 * Sets parameter read from the journal, without journaling it again.
+		 *
+		 * @param key parameter's name
+		 * @param value parameter's value
+		 */
+		void load(String key, String value) {
+			super.put(key, value);
+		}
+
+		/**
+		 * Removes parameter read from the journal, without journaling it
+		 * again.
+		 *
+		 * @param key parameter's name
+		 */
+		void unload(String key) {
+			super.remove(key);
+		}
+	}
+
+	/**
+	 * Path of the journal file.
+	 */
+	private final Path path;
+	/**
+	 * Maximal interval, in milliseconds, between forcing the journal to the
+	 * disk.
+	 */
+	private final long fsyncInterval;
+	/**
+	 * Store whose sessions are journaled.
+	 */
+	private final SessionStore store;
+	/**
+	 * Queued changes, each either a created session or a set or removed
+	 * parameter.
+	 */
+	private final ConcurrentLinkedQueue<Object> queue =
+			new ConcurrentLinkedQueue<>();
+	/**
+	 * Latest validity of sessions whose validity has been extended since the
+	 * previous batch, mapped by session IDs.
+	 */
+	private final Map<String, Long> touches = new ConcurrentHashMap<>();
+	/**
+	 * Stream in which a record's payload is encoded.
+	 */
+	private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+	/**
+	 * Encoder of record's payload.
+	 */
+	private final DataOutputStream encoder = new DataOutputStream(payload);
+	/**
+	 * Checksum of record's payload.
+	 */
+	private final CRC32 checksum = new CRC32();
+	/**
+	 * Channel of the journal file.
+	 */
+	private FileChannel channel;
+	/**
+	 * Mapped region of the journal file, positioned after the last record.
+	 */
+	private MappedByteBuffer mapped;
+	/**
+	 * Size of the last snapshot, in bytes.
+	 */
+	private int snapshotSize;
+	/**
+	 * Flag which indicates that records have been appended since the journal
+	 * has been forced to the disk.
+	 */
+	private boolean dirty;
+	/**
+	 * Time, in milliseconds, at which the journal has been forced to the disk.
+	 */
+	private long forcedAt;
+	/**
+	 * Thread which appends queued changes.
+	 */
+	private Thread writer;
+	/**
+	 * Flag which indicates that the journal is closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param path path of the journal file
+	 * @param fsyncInterval maximal interval, in milliseconds, between
+	 * forcing the journal to the disk
+	 * @param store store whose sessions are journaled
+	 */
+	private SessionJournal(Path path, long fsyncInterval, SessionStore store) {
+		this.path = path;
+		this.fsyncInterval = fsyncInterval;
+		this.store = store;
+	}
+
+	/**
+	 * Opens the journal of given path, which journals sessions of given
+	 * store. Valid sessions found in the journal are added to the store,
+	 * the journal is compacted and its writer thread is started. Queued
+	 * changes are appended once more when the virtual machine shuts down.
+	 *
+	 * @param path path of the journal file, created if it does not exist
+	 * @param fsyncInterval maximal interval, in milliseconds, between
+	 * forcing the journal to the disk
+	 * @param store store whose sessions are journaled
+	 * @return opened journal
+	 * @throws IOException if I/O error of any kind has occurred
+	 * @throws NullPointerException if path or store is null-reference
+	 * @throws IllegalArgumentException if interval is negative
+	 */
+	public static SessionJournal open(Path path, long fsyncInterval,
+			SessionStore store) throws IOException {
+		Objects.requireNonNull(path);
+		Objects.requireNonNull(store);
+		if(fsyncInterval < 0) {
+			throw new IllegalArgumentException(
+					"Interval of forcing the journal can not be negative.");
+		}
+
+		SessionJournal journal = new SessionJournal(path, fsyncInterval, store);
+		journal.replay();
+		journal.compact();
+		journal.writer = new Thread(journal::run, "session-journal");
+		journal.writer.setDaemon(true);
+		journal.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				journal.close();
+			} catch (IOException e) {
+			}
+		}));
+		return journal;
+	}
+
+	/**
+	 * Gets session of given ID from the store and queues its extended
+	 * validity.
+	 */
+	@Override
+	public SessionMapEntry touch(String sid, long now, long validUntil) {
+		SessionMapEntry session = store.touch(sid, now, validUntil);
+		if(session != null) {
+			touches.put(session.sid, session.validUntil);
+		}
+		return session;
+	}
+
+	/**
+	 * Creates session whose map journals its changes, and queues it.
+	 */
+	@Override
+	public SessionMapEntry create(String sid, long validUntil) {
+		SessionMapEntry session = new SessionMapEntry(
+				sid, validUntil, new JournaledParameters(sid));
+		if(!store.add(session)) {
+			return null;
+		}
+		queue.add(session);
+		return session;
+	}
+
+	@Override
+	public void expire(long now) {
+		store.expire(now);
+	}
+
+	@Override
+	public void forEach(Consumer<SessionMapEntry> action) {
+		store.forEach(action);
+	}
+
+	@Override
+	public String toString() {
+		return store.toString();
+	}
+
+	/**
+	 * Stops the writer thread, appends the remaining queued changes and
+	 * forces the journal to the disk. Writer is woken up rather than
+	 * interrupted, since interrupt would close the channel of the journal
+	 * in the middle of its I/O.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) {
+			return;
+		}
+
+		closed = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while(true) {
+			try {
+				writer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		append();
+		mapped.force();
+		channel.close();
+	}
+
+	/**
+	 * Appends queued changes in batches until the journal is closed.
+	 */
+	private void run() {
+		while(!closed) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(BATCH_INTERVAL));
+			if(closed) {
+				return;
+			}
+
+			try {
+				append();
+				long now = System.currentTimeMillis();
+				if(dirty && now - forcedAt >= fsyncInterval) {
+					mapped.force();
+					dirty = false;
+					forcedAt = now;
+				}
+				if(mapped.position() > Math.max(MIN_COMPACTION_SIZE,
+						4 * snapshotSize)) {
+					compact();
+				}
+			} catch (IOException e) {
+				System.err.println("Session journal can not be written. "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Appends queued changes to the journal.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void append() throws IOException {
+		Object change;
+		while((change = queue.poll()) != null) {
+			if(change instanceof SessionMapEntry) {
+				SessionMapEntry session = (SessionMapEntry)change;
+				writeSession(CREATE, session.sid, session.validUntil);
+			} else {
+				String[] parameter = (String[])change;
+				if(parameter.length == 3) {
+					writeParameter(PUT, parameter[0], parameter[1],
+							parameter[2]);
+				} else {
+					writeParameter(REMOVE, parameter[0], parameter[1], null);
+				}
+			}
+		}
+		for(String sid : touches.keySet()) {
+			Long validUntil = touches.remove(sid);
+			if(validUntil != null) {
+				writeSession(TOUCH, sid, validUntil);
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of valid sessions of the store into a new file which
+	 * replaces the journal. Changes queued while the snapshot is written are
+	 * appended to the new file afterwards.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void compact() throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		FileChannel previous = channel;
+		channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		mapped = channel.map(MapMode.READ_WRITE, 0, INITIAL_SIZE);
+
+		long now = System.currentTimeMillis() / 1000;
+		IOException[] failure = new IOException[1];
+		store.forEach(session -> {
+			if(failure[0] != null || session.validUntil < now) {
+				return;
+			}
+			try {
+				writeSession(CREATE, session.sid, session.validUntil);
+				for(Map.Entry<String, String> parameter
+						: session.map.entrySet()) {
+					writeParameter(PUT, session.sid, parameter.getKey(),
+							parameter.getValue());
+				}
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+		});
+		if(failure[0] != null) {
+			throw failure[0];
+		}
+
+		mapped.force();
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		if(previous != null) {
+			previous.close();
+		}
+		snapshotSize = mapped.position();
+		dirty = false;
+		forcedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Replays the journal into the store. Replay stops at the first torn or
+	 * corrupted record.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void replay() throws IOException {
+		if(!Files.exists(path)) {
+			return;
+		}
+
+		Map<String, SessionMapEntry> sessions = new HashMap<>();
+		try (FileChannel file = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = file.map(MapMode.READ_ONLY, 0,
+					file.size());
+			while(buffer.remaining() >= RECORD_HEADER) {
+				int length = buffer.getInt();
+				int crc = buffer.getInt();
+				if(length <= 0 || length > buffer.remaining()) {
+					break;
+				}
+				byte[] record = new byte[length];
+				buffer.get(record);
+				checksum.reset();
+				checksum.update(record, 0, length);
+				if((int)checksum.getValue() != crc) {
+					break;
+				}
+				try {
+					apply(ByteBuffer.wrap(record), sessions);
+				} catch (BufferUnderflowException e) {
+					break;
+				}
+			}
+		}
+
+		long now = System.currentTimeMillis() / 1000;
+		for(SessionMapEntry session : sessions.values()) {
+			if(session.validUntil >= now) {
+				store.add(session);
+			}
+		}
+	}
+
+	/**
+	 * Applies given record to sessions read from the journal.
+	 *
+	 * @param record payload of the record
+	 * @param sessions sessions read so far, mapped by their IDs
+	 */
+	private void apply(ByteBuffer record,
+			Map<String, SessionMapEntry> sessions) {
+		byte type = record.get();
+		String sid = readString(record);
+		if(type == CREATE) {
+			//session created just before compaction may be journaled twice
+			long validUntil = record.getLong();
+			sessions.computeIfAbsent(sid, s -> new SessionMapEntry(s,
+					validUntil, new JournaledParameters(s)));
+			return;
+		}
+
+		SessionMapEntry session = sessions.get(sid);
+		if(session == null) {
+			return;
+		}
+		JournaledParameters parameters = (JournaledParameters)session.map;
+		if(type == TOUCH) {
+			session.validUntil = record.getLong();
+		} else if(type == PUT) {
+			parameters.load(readString(record), readString(record));
+		} else if(type == REMOVE) {
+			parameters.unload(readString(record));
+		}
+	}
+
+	/**
+	 * Writes record of a created session or its extended validity.
+	 *
+	 * @param type type of the record
+	 * @param sid session ID
+	 * @param validUntil time, in seconds, until which session is valid
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void writeSession(byte type, String sid, long validUntil)
+			throws IOException {
+		payload.reset();
+		encoder.writeByte(type);
+		writeString(sid);
+		encoder.writeLong(validUntil);
+		writeRecord();
+	}
+
+	/**
+	 * Writes record of a set or removed parameter.
+	 *
+	 * @param type type of the record
+	 * @param sid session ID
+	 * @param key parameter's name
+	 * @param value parameter's value, <b>null</b> if it is removed
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void writeParameter(byte type, String sid, String key,
+			String value) throws IOException {
+		payload.reset();
+		encoder.writeByte(type);
+		writeString(sid);
+		writeString(key);
+		if(value != null) {
+			writeString(value);
+		}
+		writeRecord();
+	}
+
+	/**
+	 * Writes encoded payload as a record at the end of the journal. Mapped
+	 * region is enlarged if the record does not fit in it.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void writeRecord() throws IOException {
+		int length = payload.size();
+		if(mapped.remaining() < RECORD_HEADER + length) {
+			int position = mapped.position();
+			long size = Math.max(2L * mapped.capacity(),
+					position + RECORD_HEADER + length);
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("Session journal is too large.");
+			}
+			mapped.force();
+			mapped = channel.map(MapMode.READ_WRITE, 0, size);
+			mapped.position(position);
+		}
+
+		byte[] bytes = payload.toByteArray();
+		checksum.reset();
+		checksum.update(bytes, 0, length);
+		//length is written last, so a torn record is never replayed
+		int start = mapped.position();
+		mapped.position(start + 4);
+		mapped.putInt((int)checksum.getValue());
+		mapped.put(bytes);
+		mapped.putInt(start, length);
+		dirty = true;
+	}
+
+	/**
+	 * Encodes given string as its length followed by its UTF-8 bytes.
+	 *
+	 * @param text string
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private void writeString(String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		encoder.writeInt(bytes.length);
+		encoder.write(bytes);
+	}
+
+	/**
+	 * Decodes string encoded by {@link #writeString(String)}.
+	 *
+	 * @param record payload of the record
+	 * @return decoded string
+	 * @throws BufferUnderflowException if record is too short
+	 */
+	private static String readString(ByteBuffer record) {
+		int length = record.getInt();
+		if(length < 0 || length > record.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,75 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+/**
+ * SessionStorage is the interface of stores which hold user sessions of
+ * {@link SmartHttpServer}. Server looks sessions up with
+ * {@link #touch(String, long, long)} for every request which carries a
+ * session cookie and creates them with {@link #create(String, long)} when a
+ * request first sets a persistent parameter. Persistent parameters of a
+ * request are the map of its session, so a storage can observe or redirect
+ * every change of them through that map.
+ *
+ * <p>Storages can be stacked, e.g. a storage which journals or replicates
+ * sessions delegates to a storage which holds them.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+interface SessionStorage extends Closeable {
+
+	/**
+	 * Gets session of given ID and extends its validity. Expired session is
+	 * removed instead.
+	 *
+	 * @param sid session ID, may be <b>null</b>
+	 * @param now current time in seconds
+	 * @param validUntil new time, in seconds, until which session is valid
+	 * @return session, <b>null</b> if there is no valid session of given ID
+	 */
+	SessionMapEntry touch(String sid, long now, long validUntil);
+
+	/**
+	 * Creates session of given ID, unless session of the same ID already
+	 * exists.
+	 *
+	 * @param sid session ID
+	 * @param validUntil time, in seconds, until which session is valid
+	 * @return new session, <b>null</b> if session of the same ID already
+	 * exists
+	 */
+	SessionMapEntry create(String sid, long validUntil);
+
+	/**
+	 * Removes sessions which have expired. It should be called by a single
+	 * thread, about once per second.
+	 *
+	 * @param now current time in seconds
+	 */
+	void expire(long now);
+
+	/**
+	 * Performs given action for each session in the storage, including
+	 * expired sessions which have not been removed yet. Action is performed
+	 * while no lock of the storage is held.
+	 *
+	 * @param action action
+	 */
+	void forEach(Consumer<SessionMapEntry> action);
+
+	/**
+	 * Releases resources of the storage. Sessions which are kept outside of
+	 * the process are saved. By default, it does nothing.
+	 *
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	@Override
+	default void close() throws IOException {
+	}
+
+}
@@ -0,0 +1,385 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SessionStore holds user sessions of {@link SmartHttpServer} mapped by
+ * their IDs. Sessions are spread over stripes, each guarded by its own lock,
+ * so threads which access different sessions rarely wait for each other.
+ *
+ * <p>Expired sessions are removed by a hashed timer wheel with one slot per
+ * second. Every session sits in the slot of the first second in which it is
+ * no longer valid. Each {@link #expire(long) tick} visits only the slots of
+ * the seconds which have passed since the previous one, instead of the whole
+ * store. Accessing a session only moves its expiry time, the session is
+ * moved to the right slot once its old slot is visited.</p>
+ *
+ * <p>Number of sessions, numbers of created and expired sessions and number
+ * of contended lock acquisitions are counted, so they can be monitored.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class SessionStore implements SessionStorage {
+
+	/**
+	 * Default number of stripes.
+	 */
+	private static final int DEFAULT_STRIPES = 64;
+	/**
+	 * Number of slots of the timer wheel, one per second.
+	 */
+	private static final int WHEEL_SIZE = 1024;
+
+	/**
+	 * SessionMapEntry models a single user's session with the server.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	static class SessionMapEntry {
+		/**
+		 * Session ID.
+		 */
+		final String sid;
+		/**
+		 * Time, in seconds, until which this session is valid.
+		 */
+		volatile long validUntil;
+		/**
+		 * Map which holds this session's parameters.
+		 */
+		final Map<String, String> map;
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param sid session ID
+		 * @param validUntil time, in seconds, until which session is valid
+		 */
+		public SessionMapEntry(String sid, long validUntil) {
+			this(sid, validUntil, new ConcurrentHashMap<>());
+		}
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param sid session ID
+		 * @param validUntil time, in seconds, until which session is valid
+		 * @param map thread-safe map which holds session's parameters
+		 */
+		public SessionMapEntry(String sid, long validUntil,
+				Map<String, String> map) {
+			this.sid = sid;
+			this.validUntil = validUntil;
+			this.map = map;
+		}
+	}
+
+	/**
+	 * Stripe models a part of the store guarded by its own lock.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private static class Stripe {
+		/**
+		 * Lock of the stripe.
+		 */
+		final ReentrantLock lock = new ReentrantLock();
+		/**
+		 * Sessions of the stripe mapped by their IDs.
+		 */
+		final Map<String, SessionMapEntry> sessions = new HashMap<>();
+	}
+
+	/**
+	 * Stripes of the store.
+	 */
+	private final Stripe[] stripes;
+	/**
+	 * Slots of the timer wheel. Slot of a second holds sessions which were
+	 * due to expire in that second when they were put in the slot.
+	 */
+	private final AtomicReferenceArray<ConcurrentLinkedQueue<SessionMapEntry>>
+			wheel = new AtomicReferenceArray<>(WHEEL_SIZE);
+	/**
+	 * Second of the previous tick of the wheel.
+	 */
+	private long lastTick;
+	/**
+	 * Number of sessions in the store.
+	 */
+	private final AtomicInteger size = new AtomicInteger();
+	/**
+	 * Number of created sessions.
+	 */
+	private final LongAdder created = new LongAdder();
+	/**
+	 * Number of expired sessions.
+	 */
+	private final LongAdder expired = new LongAdder();
+	/**
+	 * Number of lock acquisitions which had to wait for another thread.
+	 */
+	private final LongAdder contended = new LongAdder();
+
+	/**
+	 * Instantiates this class with the default number of stripes.
+	 */
+	public SessionStore() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Instantiates this class with given number of stripes.
+	 *
+	 * @param stripeCount number of stripes, rounded up to a power of two
+	 * @throws IllegalArgumentException if number of stripes is lesser than 1
+	 */
+	public SessionStore(int stripeCount) {
+		if(stripeCount < 1) {
+			throw new IllegalArgumentException(
+					"Number of stripes must be positive.");
+		}
+
+		int count = Integer.highestOneBit(stripeCount);
+		count = count < stripeCount ? count << 1 : count;
+		stripes = new Stripe[count];
+		for(int i = 0; i < count; ++i) {
+			stripes[i] = new Stripe();
+		}
+		for(int i = 0; i < WHEEL_SIZE; ++i) {
+			wheel.set(i, new ConcurrentLinkedQueue<>());
+		}
+		lastTick = System.currentTimeMillis() / 1000;
+	}
+
+	/**
+	 * Gets session of given ID and extends its validity. Expired session is
+	 * removed instead.
+	 *
+	 * @param sid session ID, may be <b>null</b>
+	 * @param now current time in seconds
+	 * @param validUntil new time, in seconds, until which session is valid
+	 * @return session, <b>null</b> if there is no valid session of given ID
+	 */
+	@Override
+	public SessionMapEntry touch(String sid, long now, long validUntil) {
+		if(sid == null) {
+			return null;
+		}
+
+		Stripe stripe = stripe(sid);
+		lock(stripe);
+		try {
+			SessionMapEntry session = stripe.sessions.get(sid);
+			if(session == null) {
+				return null;
+			}
+			if(session.validUntil < now) {
+				stripe.sessions.remove(sid);
+				size.decrementAndGet();
+				expired.increment();
+				return null;
+			}
+			session.validUntil = Math.max(session.validUntil, validUntil);
+			return session;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	@Override
+	public SessionMapEntry create(String sid, long validUntil) {
+		SessionMapEntry session = new SessionMapEntry(sid, validUntil);
+		return add(session) ? session : null;
+	}
+
+	/**
+	 * Adds given session, unless session of the same ID already exists.
+	 *
+	 * @param session new session
+	 * @return <b>true</b> if session has been added
+	 */
+	public boolean add(SessionMapEntry session) {
+		Stripe stripe = stripe(session.sid);
+		lock(stripe);
+		try {
+			if(stripe.sessions.putIfAbsent(session.sid, session) != null) {
+				return false;
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+
+		size.incrementAndGet();
+		created.increment();
+		schedule(session);
+		return true;
+	}
+
+	/**
+	 * Advances the timer wheel to given second and removes sessions which
+	 * have expired since the previous tick. Sessions whose validity has been
+	 * extended are moved to the slots of their new expiry times. It should
+	 * be called by a single thread, about once per second.
+	 *
+	 * @param now current time in seconds
+	 */
+	@Override
+	public void expire(long now) {
+		long ticks = Math.min(now - lastTick, WHEEL_SIZE);
+		for(long tick = now - ticks + 1; tick <= now; ++tick) {
+			int slot = (int)(tick & (WHEEL_SIZE - 1));
+			ConcurrentLinkedQueue<SessionMapEntry> due =
+					wheel.getAndSet(slot, new ConcurrentLinkedQueue<>());
+			for(SessionMapEntry session : due) {
+				if(session.validUntil >= now || !remove(session, now)) {
+					schedule(session);
+				}
+			}
+		}
+		lastTick = Math.max(lastTick, now);
+	}
+
+	/**
+	 * Performs given action for each session in the store. Sessions of a
+	 * stripe are copied while its lock is held and the action is performed
+	 * after it has been released, so the action does not block requests.
+	 *
+	 * @param action action
+	 */
+	@Override
+	public void forEach(Consumer<SessionMapEntry> action) {
+		for(Stripe stripe : stripes) {
+			SessionMapEntry[] sessions;
+			lock(stripe);
+			try {
+				sessions = stripe.sessions.values().toArray(
+						new SessionMapEntry[stripe.sessions.size()]);
+			} finally {
+				stripe.lock.unlock();
+			}
+			for(SessionMapEntry session : sessions) {
+				action.accept(session);
+			}
+		}
+	}
+
+	/**
+	 * Gets number of sessions in the store, including expired sessions which
+	 * have not been removed yet.
+	 *
+	 * @return number of sessions
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Gets number of sessions created since the store has been created.
+	 *
+	 * @return number of created sessions
+	 */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+	/**
+	 * Gets number of sessions removed because they have expired.
+	 *
+	 * @return number of expired sessions
+	 */
+	public long getExpiredCount() {
+		return expired.sum();
+	}
+
+	/**
+	 * Gets number of lock acquisitions which had to wait for another thread.
+	 *
+	 * @return number of contended acquisitions
+	 */
+	public long getContendedCount() {
+		return contended.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "sessions=" + getSize() + ", created=" + getCreatedCount()
+				+ ", expired=" + getExpiredCount()
+				+ ", contended=" + getContendedCount();
+	}
+
+	/**
+	 * Removes given session if it is still in the store and it has expired.
+	 *
+	 * @param session session
+	 * @param now current time in seconds
+	 * @return <b>false</b> if session is still in the store and it is valid
+	 */
+	private boolean remove(SessionMapEntry session, long now) {
+		Stripe stripe = stripe(session.sid);
+		lock(stripe);
+		try {
+			if(stripe.sessions.get(session.sid) != session) {
+				return true;
+			}
+			if(session.validUntil >= now) {
+				return false;
+			}
+			stripe.sessions.remove(session.sid);
+		} finally {
+			stripe.lock.unlock();
+		}
+
+		size.decrementAndGet();
+		expired.increment();
+		return true;
+	}
+
+	/**
+	 * Puts given session in the slot of the first second in which it is no
+	 * longer valid.
+	 *
+	 * @param session session
+	 */
+	private void schedule(SessionMapEntry session) {
+		long second = session.validUntil + 1;
+		wheel.get((int)(second & (WHEEL_SIZE - 1))).add(session);
+	}
+
+	/**
+	 * Gets stripe of given session ID.
+	 *
+	 * @param sid session ID
+	 * @return stripe
+	 */
+	private Stripe stripe(String sid) {
+		int hash = sid.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (stripes.length - 1)];
+	}
+
+	/**
+	 * Acquires lock of given stripe, counting the acquisition if it has to
+	 * wait for another thread.
+	 *
+	 * @param stripe stripe
+	 */
+	private void lock(Stripe stripe) {
+		if(!stripe.lock.tryLock()) {
+			contended.increment();
+			stripe.lock.lock();
+		}
+	}
+
+}
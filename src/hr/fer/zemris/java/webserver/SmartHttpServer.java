@@ -1,35 +1,51 @@
 package hr.fer.zemris.java.webserver;
 
-import java.io.ByteArrayOutputStream;
-
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
+import java.io.Reader;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Random;
 
 import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
 import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+import hr.fer.zemris.java.webserver.http.ByteRange;
+import hr.fer.zemris.java.webserver.http.HttpParseException;
+import hr.fer.zemris.java.webserver.http.HttpRequest;
+import hr.fer.zemris.java.webserver.http.HttpRequestParser;
+import hr.fer.zemris.java.webserver.http.HttpValidators;
 
 /**
  * SmartHttpServer models a simple web server which uses HyperText Transfer 
@@ -44,33 +60,22 @@ import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
 public class SmartHttpServer {
 	
 	/**
-	 * Class which models a single user's session with this server.
-	 * 
-	 * @author Filip Klepo
-	 *
+	 * Maximal size, in bytes, of request's header read by the event loop.
 	 */
-	private static class SessionMapEntry {
-		/**
-		 * Session ID.
-		 */
-		String sid;
-		/**
-		 * Dictates the time for which this session is valid.
-		 */
-		long validUntil;
-		/**
-		 * Map which holds this session's parameters.
-		 */
-		Map<String, String> map;
-		
-		/**
-		 * The default constructor.
-		 */
-		public SessionMapEntry() {
-			this.map = new ConcurrentHashMap<>();
-		}
-		
-	}
+	private static final int MAX_REQUEST_SIZE = 8 * 1024;
+	/**
+	 * Maximal length, in bytes, of a single line of request's header.
+	 */
+	private static final int MAX_LINE_LENGTH = 4 * 1024;
+	/**
+	 * Maximal number of headers in a request.
+	 */
+	private static final int MAX_HEADERS = 64;
+	/**
+	 * Socket option which lets several sockets listen on the same port, 
+	 * <b>null</b> if it is not available, which is the case before Java 9.
+	 */
+	private static final SocketOption<Boolean> REUSE_PORT = reusePortOption();
 	
 	/**
 	 * Address on which server listens to requests.
@@ -80,10 +85,59 @@ public class SmartHttpServer {
 	 * Port on which server listens to requests.
 	 */
 	private int port;
+	/**
+	 * Number of threads which accept connections.
+	 */
+	private int acceptors;
+	/**
+	 * Maximal number of connections waiting to be accepted, 0 for the 
+	 * default of the platform.
+	 */
+	private int acceptBacklog;
 	/**
 	 * Number of worker threads in thread pool.
 	 */
 	private int workerThreads;
+	/**
+	 * Kind of executor which runs {@link ClientWorker}s, either <i>fixed</i>
+	 * (pool of {@link #workerThreads} threads), <i>forkjoin</i> 
+	 * (work-stealing pool of {@link #workerThreads} threads), 
+	 * <i>virtual</i> (new virtual thread for each worker) or <i>reactor</i>
+	 * (event loop thread which has received the request).
+	 */
+	private String executor;
+	/**
+	 * Limits of concurrently processed requests for certain paths.
+	 */
+	private ConcurrencyLimits concurrencyLimits = new ConcurrencyLimits();
+	/**
+	 * Limits of request rates of clients and sessions for certain paths.
+	 */
+	private RateLimits rateLimits = new RateLimits();
+	/**
+	 * Transport used for client connections, either <i>nio</i> (selector
+	 * based event loop) or <i>blocking</i> (thread blocked per connection).
+	 */
+	private String transport;
+	/**
+	 * Time, in seconds, for which an idle persistent connection is kept open.
+	 */
+	private int keepAliveTimeout;
+	/**
+	 * Time, in seconds, within which the whole request must be received once
+	 * its first byte has arrived.
+	 */
+	private int requestHeaderTimeout;
+	/**
+	 * Maximal number of requests served on a single connection. If it is 1,
+	 * connections are never kept open.
+	 */
+	private int keepAliveMaxRequests;
+	/**
+	 * Maximal number of pipelined requests of a single connection which are
+	 * processed at once.
+	 */
+	private int maxPipelinedRequests;
 	/**
 	 * Duration of user sessions in seconds.
 	 */
@@ -93,32 +147,70 @@ public class SmartHttpServer {
 	 */
 	private Map<String,String> mimeTypes = new HashMap<String, String>();
 	/**
-	 * Server's thread. Servers task in this thread is to receive requests and
-	 * to generate responses.
+	 * Server's threads. Servers task in these threads is to receive requests
+	 * and to generate responses.
 	 */
-	private ServerThread serverThread;
+	private List<Thread> serverThreads = new ArrayList<>();
 	/**
 	 * Condition flag for server thread.
 	 */
-	private boolean serverThreadRunning;
+	private volatile boolean serverThreadRunning;
+	/**
+	 * Pools of threads which are server's workers, one per acceptor if the
+	 * executor is fixed, otherwise a single shared one.
+	 */
+	private List<ExecutorService> threadPools = new ArrayList<>();
 	/**
-	 * Pool of threads which are server's workers.
+	 * Queue which bounds the number of requests waiting for a worker thread.
 	 */
-	private ExecutorService threadPool;
+	private AdmissionQueue admission = new AdmissionQueue(0, 0, 1);
+	/**
+	 * Adaptive limit of requests which run workers and scripts at once,
+	 * <b>null</b> if they are not limited.
+	 */
+	private AdaptiveLimit adaptiveLimit;
 	/**
 	 * The root file from which we serve responses.
 	 */
 	private Path documentRoot;
 	/**
-	 * Map which holds instances of {@link IWebWorker} mapped to their names.
+	 * Cache of static files' content, <b>null</b> if files are not cached.
+	 */
+	private StaticContentCache staticCache;
+	/**
+	 * Policy which decides which responses are compressed, <b>null</b> if
+	 * responses are never compressed.
 	 */
-	private Map<String,IWebWorker> workersMap;
+	private CompressionPolicy compression;
+	/**
+	 * Size, in bytes, of the buffer in which response is collected before it
+	 * is written on client's connection, 0 if responses are not buffered.
+	 */
+	private int outputBufferSize;
+	/**
+	 * Output buffer of each worker thread, reused by all responses which the
+	 * thread writes.
+	 */
+	private ThreadLocal<byte[]> outputBuffers = 
+			ThreadLocal.withInitial(() -> new byte[outputBufferSize]);
+	/**
+	 * Registry of workers requested by their class names under <i>/ext/</i>.
+	 */
+	private WorkerRegistry extWorkers = createWorkerRegistry();
+	/**
+	 * Router which holds instances of {@link IWebWorker} mapped to their 
+	 * routes.
+	 */
+	private Router<IWebWorker> workersRouter;
+	/**
+	 * Path to workers properties file.
+	 */
+	private String workersPropsPath;
 	
 	/**
-	 * Map which holds user sessions mapped by their ID. 
+	 * Storage which holds user sessions mapped by their ID. 
 	 */
-	private Map<String, SessionMapEntry> sessions =
-			new HashMap<String, SmartHttpServer.SessionMapEntry>();
+	private volatile SessionStorage sessions = new SessionStore();
 	/**
 	 * Generator of random numbers.
 	 */
@@ -156,6 +248,68 @@ public class SmartHttpServer {
 			port = Integer.parseInt(props.getProperty("server.port"));
 			workerThreads = 
 					Integer.parseInt(props.getProperty("server.workerThreads"));
+			acceptors = Integer.parseInt(
+					props.getProperty("server.acceptors", "1").trim());
+			acceptBacklog = Integer.parseInt(
+					props.getProperty("server.acceptBacklog", "0").trim());
+			if(acceptors < 0 || acceptBacklog < 0) {
+				throw new IllegalArgumentException("Number of acceptors and "
+						+ "accept backlog can not be negative.");
+			}
+			if(acceptors == 0) {
+				acceptors = Runtime.getRuntime().availableProcessors();
+			}
+			executor = props.getProperty("server.executor", "fixed").trim();
+			if(!executor.equals("fixed") && !executor.equals("forkjoin")
+					&& !executor.equals("virtual") 
+					&& !executor.equals("reactor")) {
+				throw new IllegalArgumentException(
+						"Unsupported executor " + executor);
+			}
+			admission = new AdmissionQueue(
+					Integer.parseInt(props.getProperty(
+							"server.queueDepth", "0").trim()),
+					Long.parseLong(props.getProperty(
+							"server.queueTimeout", "0").trim()),
+					Integer.parseInt(props.getProperty(
+							"server.retryAfter", "1").trim()));
+			int maxAdaptiveLimit = Integer.parseInt(props.getProperty(
+					"server.adaptiveConcurrencyLimit", "0").trim());
+			if(maxAdaptiveLimit > 0) {
+				adaptiveLimit = 
+						new AdaptiveLimit(workerThreads, maxAdaptiveLimit);
+			}
+			String limitsPropsPath = 
+					props.getProperty("server.concurrencyLimits");
+			if(limitsPropsPath != null) {
+				concurrencyLimits = new ConcurrencyLimits(limitsPropsPath);
+			}
+			String rateLimitsPropsPath = 
+					props.getProperty("server.rateLimits");
+			if(rateLimitsPropsPath != null 
+					&& !rateLimitsPropsPath.trim().isEmpty()) {
+				rateLimits = new RateLimits(rateLimitsPropsPath.trim());
+			}
+			transport = props.getProperty("server.transport", "nio").trim();
+			if(!transport.equals("nio") && !transport.equals("blocking")) {
+				throw new IllegalArgumentException(
+						"Unsupported transport " + transport);
+			}
+			if(executor.equals("reactor") && !transport.equals("nio")) {
+				throw new IllegalArgumentException(
+						"Reactor executor requires nio transport.");
+			}
+			keepAliveTimeout = Integer.parseInt(
+					props.getProperty("server.keepAliveTimeout", "5").trim());
+			requestHeaderTimeout = Integer.parseInt(
+					props.getProperty("server.requestHeaderTimeout", "10")
+					.trim());
+			keepAliveMaxRequests = Integer.parseInt(
+					props.getProperty("server.keepAliveMaxRequests", "100")
+					.trim());
+			maxPipelinedRequests = Integer.parseInt(
+					props.getProperty("server.maxPipelinedRequests", "8")
+					.trim());
 			sessionTimeout = 
 					Integer.parseInt(props.getProperty("session.timeout"));
 
@@ -171,6 +325,31 @@ public class SmartHttpServer {
 
 			documentRoot = Paths.get(
 					props.getProperty("server.documentRoot")).normalize();
+			long staticCacheSize = Long.parseLong(
+					props.getProperty("server.staticCacheSize", "0").trim());
+			if(staticCacheSize > 0) {
+				staticCache = new StaticContentCache(staticCacheSize,
+						Long.parseLong(props.getProperty(
+								"server.staticCacheMaxFileSize", "1048576")
+								.trim()));
+			}
+			String compressibleTypes = 
+					props.getProperty("server.compressibleTypes", "").trim();
+			if(!compressibleTypes.isEmpty()) {
+				compression = new CompressionPolicy(
+						Arrays.asList(compressibleTypes.split(",")),
+						Integer.parseInt(props.getProperty(
+								"server.compressionMinSize", "1024").trim()),
+						Boolean.parseBoolean(props.getProperty(
+								"server.compressScripts", "true").trim()));
+			}
+			outputBufferSize = Integer.parseInt(
+					props.getProperty("server.outputBufferSize", "0").trim());
+			if(outputBufferSize < 0) {
+				throw new IllegalArgumentException(
+						"Size of output buffer can not be negative.");
+			}
+			sessions = createSessionStorage(props);
 		} catch (NumberFormatException e1) {
 			System.out.println("Number parsing error. "+e1.getMessage());
 			return;
@@ -195,46 +374,126 @@ public class SmartHttpServer {
 	private void parseWorkers(String workersPropsPath) 
 			throws IOException, ClassNotFoundException, InstantiationException, 
 			IllegalAccessException {
-		if(workersMap == null) {
-			workersMap = new HashMap<>();
-			Properties props = new Properties();
-			props.load(new FileReader(workersPropsPath));
-			for(Entry<Object,Object> entry : props.entrySet()) {
-				String path = (String)entry.getKey();
-				String fqcn = (String)entry.getValue();
-				if(workersMap.get(path) != null) {
-					throw new RuntimeException("Duplicate key "+path);
+		if(workersRouter == null) {
+			this.workersPropsPath = workersPropsPath;
+			workersRouter = loadWorkers();
+		}
+	}
+	
+	/**
+	 * Creates new instances of workers from workers properties file and
+	 * maps them to their routes.
+	 * 
+	 * @return router which holds created workers
+	 * @throws IOException if I/O error of any kind has occurred
+	 * @throws ClassNotFoundException if worker's class has not been found
+	 * @throws InstantiationException if worker's class could not be 
+	 * instantiated
+	 * @throws IllegalAccessException if method does not have the privilege
+	 * to access certain data
+	 */
+	private Router<IWebWorker> loadWorkers() 
+			throws IOException, ClassNotFoundException, InstantiationException, 
+			IllegalAccessException {
+		Router<IWebWorker> router = new Router<>();
+		Properties props = new Properties();
+		try (Reader reader = new FileReader(workersPropsPath)) {
+			props.load(reader);
+		}
+		for(Entry<Object,Object> entry : props.entrySet()) {
+			String path = (String)entry.getKey();
+			String fqcn = (String)entry.getValue();
+			Class<?> referenceToClass = 
+					this.getClass().getClassLoader().loadClass(fqcn);
+			Object newObject = referenceToClass.newInstance();
+			IWebWorker iww = (IWebWorker)newObject;
+			router.add(path.trim(), iww);
+		}
+		return router;
+	}
+	
+	/**
+	 * Creates storage of user sessions described by given properties. The
+	 * storage holds sessions on the heap or off the heap, optionally
+	 * journals them on disk and optionally replicates them to other
+	 * instances of the server.
+	 * 
+	 * @param props server's properties
+	 * @return storage of user sessions
+	 * @throws IOException if journal can not be opened or replication 
+	 * address can not be bound
+	 * @throws IllegalArgumentException if properties are invalid
+	 */
+	private SessionStorage createSessionStorage(Properties props) 
+			throws IOException {
+		SessionStorage storage;
+		String sessionStorage =
+				props.getProperty("server.sessionStorage", "heap").trim();
+		if(sessionStorage.equals("offheap")) {
+			storage = new OffHeapSessionStore();
+		} else if(sessionStorage.equals("heap")) {
+			storage = new SessionStore();
+		} else {
+			throw new IllegalArgumentException(
+					"Unknown session storage: " + sessionStorage);
+		}
+		
+		String journalPath =
+				props.getProperty("server.sessionJournal", "").trim();
+		if(!journalPath.isEmpty()) {
+			if(!(storage instanceof SessionStore)) {
+				throw new IllegalArgumentException(
+						"Session journal requires heap session storage.");
+			}
+			storage = SessionJournal.open(Paths.get(journalPath),
+					Long.parseLong(props.getProperty(
+							"server.sessionJournalFsyncInterval", "1000")
+							.trim()), 
+					(SessionStore)storage);
+		}
+		
+		String replicationPort = 
+				props.getProperty("server.sessionReplicationPort", "").trim();
+		if(!replicationPort.isEmpty()) {
+			List<InetSocketAddress> peers = new ArrayList<>();
+			String peersList = 
+					props.getProperty("server.sessionPeers", "").trim();
+			for(String peer : peersList.split(",")) {
+				peer = peer.trim();
+				if(peer.isEmpty()) {
+					continue;
 				}
-				
-				Class<?> referenceToClass = 
-						this.getClass().getClassLoader().loadClass(fqcn);
-				Object newObject = referenceToClass.newInstance();
-				IWebWorker iww = (IWebWorker)newObject;
-				workersMap.put(path, iww);
+				int colon = peer.lastIndexOf(':');
+				if(colon == -1) {
+					throw new IllegalArgumentException(
+							"Expected host:port of session peer: " + peer);
+				}
+				peers.add(new InetSocketAddress(peer.substring(0, colon), 
+						Integer.parseInt(peer.substring(colon + 1))));
 			}
-
+			storage = new ReplicatedSessionStorage(storage, 
+					new InetSocketAddress(address, 
+							Integer.parseInt(replicationPort)), 
+					peers);
 		}
+		return storage;
 	}
 	
 	/**
 	 * Initializes the session cleaner thread. Session cleaner thread has the
-	 * task to periodically go through current user sessions and delete them
-	 * if their session time has expired.
+	 * task to advance the timer wheel of user sessions once per second and 
+	 * delete sessions whose session time has expired.
 	 */
 	private void initSessionCleanerThread() {
 		Thread cleaner = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				while(true) {
-					while(true) {
 					try {
-						//sleep for 5 minutes
-						Thread.sleep(60*5*1000);
-						break;
+						Thread.sleep(1000);
 					} catch (InterruptedException e) {}
-					}
 					//clean expired sessions
-					cleanExpiredSessions();
+					sessions.expire(System.currentTimeMillis()/1000);
 				}
 			}
 		});
@@ -243,29 +502,215 @@ public class SmartHttpServer {
 	}
 	
 	/**
-	 * Cleans the expired user sessions.
+	 * Gets statistics of user sessions: number of current sessions, numbers
+	 * of created and expired sessions and number of contended accesses.
+	 * 
+	 * @return statistics of user sessions
 	 */
-	private void cleanExpiredSessions() {
-		Iterator<Entry<String, SessionMapEntry>> it = 
-				sessions.entrySet().iterator();
-		while(it.hasNext()) {
-			Entry<String, SessionMapEntry> entry =
-					(Entry<String,SessionMapEntry>)it.next();
-			if(entry.getValue().validUntil < System.currentTimeMillis()/1000) {
-				it.remove();
-			}
-		}
+	public String getSessionStatistics() {
+		return sessions.toString();
+	}
+	
+	/**
+	 * Gets statistics of the request queue: number of requests waiting for
+	 * a worker thread and numbers of requests which were not served because
+	 * the queue was full or they have waited too long.
+	 * 
+	 * @return statistics of the request queue
+	 */
+	public String getQueueStatistics() {
+		return admission.toString();
+	}
+	
+	/**
+	 * Gets statistics of the adaptive concurrency limit: the current limit,
+	 * number of running workers and scripts and number of rejected requests.
+	 * 
+	 * @return statistics of the adaptive limit, <b>null</b> if it is not 
+	 * used
+	 */
+	public String getAdaptiveLimitStatistics() {
+		return adaptiveLimit == null ? null : adaptiveLimit.toString();
+	}
+	
+	/**
+	 * Gets statistics of rate limits: numbers of allowed and limited 
+	 * requests of every rule.
+	 * 
+	 * @return statistics of rate limits
+	 */
+	public String getRateLimitStatistics() {
+		return rateLimits.toString();
 	}
 	
 	/**
 	 * Starts the server.
 	 */
 	protected synchronized void start() {
-		if(serverThread == null) {
-			serverThread = new ServerThread();
-			threadPool = Executors.newFixedThreadPool(workerThreads);
-			serverThreadRunning = true;
-			serverThread.start();
+		if(!serverThreads.isEmpty()) {
+			return;
+		}
+		
+		List<ServerSocketChannel> listeners = new ArrayList<>();
+		try {
+			listeners.add(openListener());
+			//without SO_REUSEPORT acceptors share a single listener
+			if(listeners.get(0).supportedOptions().contains(REUSE_PORT)) {
+				for(int i = 1; i < acceptors; ++i) {
+					listeners.add(openListener());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			for(ServerSocketChannel listener : listeners) {
+				try {
+					listener.close();
+				} catch (IOException ignorable) {
+				}
+			}
+			return;
+		}
+		
+		if(executor.equals("reactor")) {
+			startReactors(listeners);
+			return;
+		}
+		
+		//fixed pool is split into a shard per acceptor, so acceptors do not
+		//contend for a single queue
+		boolean sharded = executor.equals("fixed");
+		int threads = sharded 
+				? Math.max(1, (workerThreads + acceptors - 1) / acceptors) 
+				: workerThreads;
+		serverThreadRunning = true;
+		for(int i = 0; i < acceptors; ++i) {
+			if(i == 0 || sharded) {
+				threadPools.add(createThreadPool(threads));
+			}
+			ExecutorService pool = threadPools.get(threadPools.size() - 1);
+			ServerSocketChannel listener = listeners.get(i % listeners.size());
+			Thread thread = transport.equals("nio") 
+					? new SelectorServerThread(listener, pool, workersRouter) 
+					: new ServerThread(listener, pool);
+			serverThreads.add(thread);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Starts a reactor, i.e. an event loop which serves requests of its
+	 * connections itself, for every acceptor. Each reactor owns connections
+	 * it has accepted, its output buffer, its own instances of workers and
+	 * its own registry of <i>/ext/</i> workers, so reactors share nothing
+	 * but sessions, limits and statistics.
+	 * 
+	 * @param listeners opened listening channels
+	 */
+	private void startReactors(List<ServerSocketChannel> listeners) {
+		List<Router<IWebWorker>> shardWorkers = new ArrayList<>();
+		try {
+			for(int i = 0; i < acceptors; ++i) {
+				shardWorkers.add(i == 0 ? workersRouter : loadWorkers());
+			}
+		} catch (IOException | ReflectiveOperationException e) {
+			System.err.println("Workers can not be instantiated: " + e);
+			for(ServerSocketChannel listener : listeners) {
+				try {
+					listener.close();
+				} catch (IOException ignorable) {
+				}
+			}
+			return;
+		}
+		
+		serverThreadRunning = true;
+		for(int i = 0; i < acceptors; ++i) {
+			Thread thread = new SelectorServerThread(
+					listeners.get(i % listeners.size()), null, 
+					shardWorkers.get(i));
+			serverThreads.add(thread);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Creates registry of workers requested by their class names under 
+	 * <i>/ext/</i>.
+	 * 
+	 * @return registry of workers
+	 */
+	private static WorkerRegistry createWorkerRegistry() {
+		return new WorkerRegistry("hr.fer.zemris.java.webserver.workers", 
+				SmartHttpServer.class.getClassLoader());
+	}
+	
+	/**
+	 * Opens a channel which listens on server's address and port with the
+	 * configured backlog. If there are several acceptors, the channel is 
+	 * opened with SO_REUSEPORT where it is supported, so every acceptor can
+	 * have its own listening socket and the kernel balances new connections
+	 * among them.
+	 * 
+	 * @return listening channel
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private ServerSocketChannel openListener() throws IOException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			if(acceptors > 1 
+					&& listener.supportedOptions().contains(REUSE_PORT)) {
+				listener.setOption(REUSE_PORT, true);
+			}
+			listener.bind(new InetSocketAddress(address, port), acceptBacklog);
+		} catch (IOException e) {
+			listener.close();
+			throw e;
+		}
+		return listener;
+	}
+	
+	/**
+	 * Looks up SO_REUSEPORT socket option, which has been added in Java 9.
+	 * 
+	 * @return the option, <b>null</b> if it is not available
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>)StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Creates the executor which runs {@link ClientWorker}s, as configured
+	 * by <i>server.executor</i> property.
+	 * 
+	 * <p>Virtual threads are available only on Java 21 and newer, so their 
+	 * executor is looked up reflectively. On older runtime a new platform 
+	 * thread is used for each worker instead.</p>
+	 * 
+	 * @param threads number of threads of fixed and work-stealing pool
+	 * @return executor of workers
+	 */
+	private ExecutorService createThreadPool(int threads) {
+		switch(executor) {
+		case "forkjoin":
+			return Executors.newWorkStealingPool(threads);
+		case "virtual":
+			try {
+				return (ExecutorService)Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor")
+						.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("Virtual threads are not supported, "
+						+ "using a new platform thread for each worker.");
+				return Executors.newCachedThreadPool();
+			}
+		default:
+			return Executors.newFixedThreadPool(threads);
 		}
 	}
 	
@@ -275,7 +720,19 @@ public class SmartHttpServer {
 	protected synchronized void stop() {
 		//signal to server's thread to stop working
 		serverThreadRunning = false;
-		threadPool.shutdown();
+		for(Thread thread : serverThreads) {
+			if(thread instanceof SelectorServerThread) {
+				((SelectorServerThread)thread).wakeup();
+			}
+		}
+		for(ExecutorService pool : threadPools) {
+			pool.shutdown();
+		}
+		try {
+			sessions.close();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
 	}
 	
 	/**
@@ -292,15 +749,39 @@ public class SmartHttpServer {
 	 *
 	 */
 	protected class ServerThread extends Thread {
+		/**
+		 * Channel on which connections are accepted.
+		 */
+		private final ServerSocketChannel listener;
+		/**
+		 * Pool of threads which serve accepted connections.
+		 */
+		private final ExecutorService pool;
+		
+		/**
+		 * Instantiates this class with given parameters.
+		 * 
+		 * @param listener channel on which connections are accepted
+		 * @param pool pool of threads which serve accepted connections
+		 */
+		public ServerThread(ServerSocketChannel listener, 
+				ExecutorService pool) {
+			this.listener = listener;
+			this.pool = pool;
+		}
+		
 		@Override
 		public void run() {
-			try (ServerSocket socket = new ServerSocket()){
-				socket.bind(new InetSocketAddress(address, port));
-				
+			try (ServerSocketChannel server = listener){
 				while(serverThreadRunning) {
-					Socket client = socket.accept();
+					//socket accepted by a channel can receive files directly
+					Socket client = server.accept().socket();
 					ClientWorker cw = new ClientWorker(client);
-					threadPool.submit(cw);
+					if(admission.admit()) {
+						pool.submit(cw);
+					} else {
+						cw.reject();
+					}
 				}
 			} catch (IOException e) {
 				System.err.println(e.getMessage());
@@ -308,171 +789,614 @@ public class SmartHttpServer {
 			}
 		}
 	}
-
+	
 	/**
-	 * ClientWorker is a class which models the main worker used by this server.
-	 * Every request represents a client, and every request given to server 
-	 * will be constructed as instance of this class. 
+	 * SelectorServerThread is a non-blocking alternative to 
+	 * {@link ServerThread}. It runs an event loop over a single 
+	 * {@link Selector} which accepts connections and reads their requests.
+	 * 
+	 * <p>Request is dispatched to the thread pool only when its whole header
+	 * has been received, so slow clients occupy no worker thread while they
+	 * are sending the request or receiving the response.</p>
+	 * 
+	 * <p>Without a thread pool, event loop is a reactor which serves requests
+	 * itself, with its own workers and output buffer. Responses are written
+	 * right after they are generated, saving a round trip through the
+	 * selector.</p>
 	 * 
 	 * @author Filip Klepo
 	 *
 	 */
-	private class ClientWorker implements Runnable {
+	protected class SelectorServerThread extends Thread implements Executor {
 		/**
-		 * Client's socket.
+		 * Selector of this event loop.
 		 */
-		private Socket csocket;
+		private volatile Selector selector;
 		/**
-		 * Wrapped client's input stream.
+		 * Tasks which other threads want to run on the event loop thread.
 		 */
-		private PushbackInputStream istream;
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 		/**
-		 * Client's output stream.
+		 * Channel on which connections are accepted.
 		 */
-		private OutputStream ostream;
+		private final ServerSocketChannel listener;
 		/**
-		 * Client's version.
+		 * Pool of threads which serve received requests, <b>null</b> if
+		 * they are served by the event loop thread.
 		 */
-		private String version;
+		private final ExecutorService pool;
 		/**
-		 * Client's method.
+		 * Router of workers which serve requests of this event loop.
 		 */
-		private String method;
+		private final Router<IWebWorker> workers;
 		/**
-		 * Parameters of request.
+		 * Output buffer of responses, <b>null</b> if requests are served
+		 * by the thread pool or responses are not buffered.
 		 */
-		private Map<String,String> params = new HashMap<String, String>();
+		private final byte[] outputBuffer;
 		/**
-		 * Permanent parameters of request.
+		 * Registry of workers requested under <i>/ext/</i>, which is the
+		 * server's one unless requests are served by the event loop thread.
 		 */
-		private Map<String,String> permParams = new HashMap<String, String>();
+		private final WorkerRegistry extWorkers;
+		
 		/**
-		 * The output cookies.
+		 * Instantiates this class with given parameters.
+		 * 
+		 * @param listener channel on which connections are accepted
+		 * @param pool pool of threads which serve received requests, 
+		 * <b>null</b> if they are served by the event loop thread
+		 * @param workers router of workers which serve the requests
 		 */
-		private List<RCCookie> outputCookies = new
-				ArrayList<RequestContext.RCCookie>();
-
+		public SelectorServerThread(ServerSocketChannel listener, 
+				ExecutorService pool, Router<IWebWorker> workers) {
+			this.listener = listener;
+			this.pool = pool;
+			this.workers = workers;
+			this.outputBuffer = pool == null && outputBufferSize > 0 
+					? new byte[outputBufferSize] 
+					: null;
+			this.extWorkers = pool == null 
+					? createWorkerRegistry() 
+					: SmartHttpServer.this.extWorkers;
+		}
+		
+		@Override
+		public void run() {
+			try (Selector selector = Selector.open();
+					ServerSocketChannel server = listener) {
+				this.selector = selector;
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT);
+				
+				long lastIdleCheck = System.nanoTime();
+				while(serverThreadRunning) {
+					selector.select(1000);
+					runTasks();
+					
+					Iterator<SelectionKey> it = 
+							selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if(!key.isValid()) {
+							continue;
+						}
+						if(key.isAcceptable()) {
+							accept(server);
+						} else {
+							handle(key);
+						}
+					}
+					
+					long now = System.nanoTime();
+					if(now - lastIdleCheck > 1_000_000_000L) {
+						closeIdleConnections(now);
+						lastIdleCheck = now;
+					}
+				}
+				
+				for(SelectionKey key : selector.keys()) {
+					key.channel().close();
+				}
+			} catch (IOException e) {
+				System.err.println(e.getMessage());
+				return;
+			}
+		}
+		
 		/**
-		 * Instantiates this class with given client socket.
+		 * Runs given task on the event loop thread.
 		 * 
-		 * @param csocket client socket
-		 * @throws NullPointerException if given socket is null
+		 * @param task task which is run
 		 */
-		public ClientWorker(Socket csocket) {
-			Objects.requireNonNull(csocket);
-
-			this.csocket = csocket;
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+			wakeup();
 		}
-
+		
 		/**
-		 * Runs this worker.
+		 * Wakes up the event loop thread if it is waiting for events.
 		 */
-		public void run() {
-			try {
-				istream = new PushbackInputStream(csocket.getInputStream());
-			} catch (IOException e) {
-				System.err.println("Can not obtain socket's input stream.");
-				return;
+		public void wakeup() {
+			Selector selector = this.selector;
+			if(selector != null) {
+				selector.wakeup();
 			}
-			try {
-				ostream = csocket.getOutputStream();
+		}
+		
+		/**
+		 * Runs all tasks submitted by other threads.
+		 */
+		private void runTasks() {
+			Runnable task;
+			while((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+		
+		/**
+		 * Closes connections which are waiting for a request, or whose
+		 * client has not taken any response bytes, for longer than the
+		 * keep-alive timeout, and connections which have not received a
+		 * started request within the request header timeout.
+		 * 
+		 * @param now current time in nanoseconds
+		 */
+		private void closeIdleConnections(long now) {
+			long timeout = keepAliveTimeout * 1_000_000_000L;
+			long headerTimeout = requestHeaderTimeout * 1_000_000_000L;
+			for(SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if(!(attachment instanceof ChannelConnection)) {
+					continue;
+				}
+				ChannelConnection connection = (ChannelConnection)attachment;
+				//stalled client would keep its blocked worker forever
+				if(connection.isIdle(now, timeout) 
+						|| connection.isStalled(now, timeout)
+						|| connection.isRequestOverdue(now, headerTimeout)) {
+					connection.closeNow();
+				}
+			}
+		}
+		
+		/**
+		 * Accepts all pending connections on given server channel.
+		 * 
+		 * @param server server channel
+		 * @throws IOException if I/O error of any kind has occurred
+		 */
+		private void accept(ServerSocketChannel server) throws IOException {
+			SocketChannel client;
+			while((client = server.accept()) != null) {
+				client.configureBlocking(false);
+				SelectionKey key = client.register(
+						selector, SelectionKey.OP_READ);
+				key.attach(new ChannelConnection(client, key, this, 
+						MAX_REQUEST_SIZE, 
+						new HttpRequestParser(MAX_LINE_LENGTH, MAX_HEADERS),
+						maxPipelinedRequests));
+			}
+		}
+		
+		/**
+		 * Handles read and write readiness of a client connection and
+		 * dispatches its received requests.
+		 * 
+		 * @param key key of client's channel
+		 */
+		private void handle(SelectionKey key) {
+			ChannelConnection connection = (ChannelConnection)key.attachment();
+			try {
+				if(key.isReadable()) {
+					connection.handleRead();
+				}
+				if(key.isValid() && key.isWritable()) {
+					connection.handleWrite();
+				}
+				ChannelConnection.Exchange exchange;
+				if(pool == null) {
+					//pipelined requests held back by unwritten responses
+					//are served as soon as the responses are written
+					while((exchange = connection.nextRequest()) != null) {
+						try {
+							new ClientWorker(exchange).runOn(this);
+						} catch (RuntimeException | StackOverflowError 
+								| LinkageError e) {
+							//failed request must not stop the event loop,
+							//only its own connection is closed
+							System.err.println("Request failed: " + e);
+							connection.closeNow();
+							return;
+						}
+						connection.handleWrite();
+					}
+					return;
+				}
+				while((exchange = connection.nextRequest()) != null) {
+					ClientWorker cw = new ClientWorker(exchange);
+					if(admission.admit()) {
+						pool.submit(cw);
+					} else {
+						cw.reject();
+					}
+				}
 			} catch (IOException e) {
-				System.err.println("Can not obtain socket's output stream.");
-				return;
+				connection.closeNow();
 			}
+		}
+	}
 
-			List<String> request = readRequest();
-			if(request.size() < 1) {
-				sendError(400, "Bad request");
+	/**
+	 * ClientWorker is a class which models the main worker used by this server.
+	 * Every request represents a client, and every request given to server 
+	 * will be constructed as instance of this class. 
+	 * 
+	 * @author Filip Klepo
+	 *
+	 */
+	private class ClientWorker implements Runnable {
+		/**
+		 * Client's socket, <b>null</b> if request has been already read by
+		 * {@link SelectorServerThread}.
+		 */
+		private Socket csocket;
+		/**
+		 * Exchange of client's request, <b>null</b> if worker reads the 
+		 * request from {@link #csocket}.
+		 */
+		private ChannelConnection.Exchange exchange;
+		/**
+		 * Number of requests received on client's connection, including
+		 * the current one.
+		 */
+		private int requestCount;
+		/**
+		 * Client's input stream, <b>null</b> if request has been already 
+		 * read by {@link SelectorServerThread}.
+		 */
+		private InputStream istream;
+		/**
+		 * Buffer holding bytes read from client's input stream which have
+		 * not been parsed yet.
+		 */
+		private ByteBuffer inputBuffer;
+		/**
+		 * Parser of requests read from client's input stream.
+		 */
+		private HttpRequestParser parser;
+		/**
+		 * Client's output stream.
+		 */
+		private OutputStream ostream;
+		/**
+		 * Client's version.
+		 */
+		private String version;
+		/**
+		 * Client's method.
+		 */
+		private String method;
+		/**
+		 * Parameters of request.
+		 */
+		private Map<String,String> params = new HashMap<String, String>();
+		/**
+		 * Permanent parameters of request, <b>null</b> if user has no 
+		 * session.
+		 */
+		private Map<String,String> permParams;
+		/**
+		 * ID of user's session, <b>null</b> if user has no session.
+		 */
+		private String sessionId;
+		/**
+		 * Address of the client, <b>null</b> until it is needed.
+		 */
+		private String clientAddress;
+		/**
+		 * The output cookies.
+		 */
+		private List<RCCookie> outputCookies = new
+				ArrayList<RequestContext.RCCookie>();
+		/**
+		 * Time at which this worker has been created, as given by
+		 * {@link System#nanoTime()}.
+		 */
+		private final long admittedAt = System.nanoTime();
+		/**
+		 * Router of workers which serve the request.
+		 */
+		private Router<IWebWorker> workers = workersRouter;
+		/**
+		 * Registry of workers requested under <i>/ext/</i>.
+		 */
+		private WorkerRegistry extWorkers = SmartHttpServer.this.extWorkers;
+		/**
+		 * Output buffer of the response, <b>null</b> if buffer of the 
+		 * current thread is used.
+		 */
+		private byte[] outputBuffer;
+		/**
+		 * Flag which indicates that this worker runs on the event loop 
+		 * thread, which must not wait.
+		 */
+		private boolean onEventLoop;
+
+		/**
+		 * Instantiates this class with given client socket.
+		 * 
+		 * @param csocket client socket
+		 * @throws NullPointerException if given socket is null
+		 */
+		public ClientWorker(Socket csocket) {
+			Objects.requireNonNull(csocket);
+
+			this.csocket = csocket;
+		}
+		
+		/**
+		 * Instantiates this class with already received request of given
+		 * exchange.
+		 * 
+		 * @param exchange exchange of the request and its response
+		 * @throws NullPointerException if given exchange is null
+		 */
+		public ClientWorker(ChannelConnection.Exchange exchange) {
+			Objects.requireNonNull(exchange);
+			
+			this.ostream = exchange.getOutputStream();
+			this.exchange = exchange;
+			this.requestCount = exchange.getRequestNumber();
+		}
+
+		/**
+		 * Runs this worker.
+		 */
+		public void run() {
+			if(!admission.start(admittedAt)) {
+				reject();
 				return;
 			}
+			process();
+		}
+		
+		/**
+		 * Runs this worker on the event loop thread of given reactor, with 
+		 * reactor's workers, registry and output buffer. Request does not wait in the
+		 * queue, so it is not admitted, and it does not wait for a permit of
+		 * its concurrency limit, so it is rejected if there is none.
+		 * 
+		 * @param reactor event loop which has received the request
+		 */
+		private void runOn(SelectorServerThread reactor) {
+			workers = reactor.workers;
+			extWorkers = reactor.extWorkers;
+			outputBuffer = reactor.outputBuffer;
+			onEventLoop = true;
+			process();
+		}
+		
+		/**
+		 * Serves requests of client's connection.
+		 */
+		private void process() {
+			if(csocket != null) {
+				try {
+					istream = csocket.getInputStream();
+				} catch (IOException e) {
+					System.err.println("Can not obtain socket's input stream.");
+					closeConnection();
+					return;
+				}
+				try {
+					ostream = new SocketOutputStream(csocket);
+				} catch (IOException e) {
+					System.err.println(
+							"Can not obtain socket's output stream.");
+					closeConnection();
+					return;
+				}
+				try {
+					csocket.setSoTimeout(keepAliveTimeout * 1000);
+				} catch (SocketException e) {
+				}
+				inputBuffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+				inputBuffer.limit(0);
+				parser = new HttpRequestParser(MAX_LINE_LENGTH, MAX_HEADERS);
+			}
 			
-			checkSession(request);
-			
-			String firstLine = request.get(0);
-			String[] firstLineParams = firstLine.split(" ");
-			
-			if(firstLineParams.length != 3) {
-				sendError(400, "Bad request");
+			boolean keepAlive = false;
+			try {
+				do {
+					if(csocket != null) {
+						requestCount++;
+					}
+					//request which fails must close the connection
+					keepAlive = false;
+					keepAlive = serve();
+				} while(keepAlive && csocket != null);
+			} finally {
+				if(keepAlive && exchange != null) {
+					exchange.complete();
+				} else {
+					closeConnection();
+				}
+			}
+		}
+		
+		/**
+		 * Sends the pre-encoded response of {@link AdmissionQueue} instead of
+		 * serving the request and closes client's connection.
+		 */
+		private void reject() {
+			try {
+				if(exchange != null) {
+					((FileTransferTarget)ostream).transferFrom(
+							ByteBuffer.wrap(admission.getResponse()));
+				} else {
+					csocket.getOutputStream().write(admission.getResponse());
+					csocket.shutdownOutput();
+				}
+			} catch (IOException e) {
+			}
+			closeConnection();
+		}
+		
+		/**
+		 * Closes client's connection.
+		 */
+		private void closeConnection() {
+			if(exchange != null) {
+				exchange.close();
 				return;
 			}
-			method = firstLineParams[0];
-			String requestedPath = firstLineParams[1];
-			version = firstLineParams[2];
+			try {
+				csocket.close();
+			} catch (IOException e) {
+			}
+		}
+		
+		/**
+		 * Reads the request and writes the response.
+		 * 
+		 * @return <b>true</b> if connection should be kept open for the next
+		 * request
+		 */
+		private boolean serve() {
+			params = new HashMap<>();
+			permParams = null;
+			sessionId = null;
+			outputCookies = new ArrayList<>();
 			
-			int indexOfQMark = requestedPath.indexOf('?');
-			String path;
-			String paramString = null;
-			if(indexOfQMark != -1) {
-				path = requestedPath.substring(0, indexOfQMark);
-				paramString = requestedPath.substring(indexOfQMark+1);
-			} else {
-				path = requestedPath;
+			HttpRequest request;
+			try {
+				request = readRequest();
+			} catch (HttpParseException e) {
+				sendError(e.getStatusCode(), e.getStatusText());
+				return false;
 			}
+			if(request == null) {
+				return false;
+			}
+			
+			checkSession(request);
+			
+			method = request.getMethod();
+			version = request.getVersion();
+			String path = request.getPath();
+			String paramString = request.getQuery();
 			
 			if(paramString!=null&&!parseParameters(paramString)) {
 				sendError(400, "Bad request");
-				return;
+				return false;
 			}
 
 			if(!method.equals("GET") 
 					|| (!version.equals("HTTP/1.0")
 							&&!version.equals("HTTP/1.1"))) {
 				sendError(400, "Bad request");
-				return;
+				return false;
+			}
+			
+			int retryAfter = rateLimits.check(path, getClientAddress(), sessionId);
+			if(retryAfter > 0) {
+				sendPreEncoded(rateLimits.getResponse(retryAfter));
+				return false;
 			}
 			
+			Semaphore limit = concurrencyLimits.forPath(path);
+			if(limit == null) {
+				return respond(request, path);
+			}
+			//event loop which waited for a permit would stall all its
+			//connections, including those which hold the permits
+			if(onEventLoop ? !limit.tryAcquire() : !admission.acquire(limit)) {
+				sendPreEncoded(admission.getResponse());
+				return false;
+			}
+			try {
+				return respond(request, path);
+			} finally {
+				limit.release();
+			}
+		}
+		
+		/**
+		 * Writes the response to the parsed request.
+		 * 
+		 * @param request parsed request
+		 * @param path requested path, without parameters
+		 * @return <b>true</b> if connection should be kept open for the next
+		 * request
+		 */
+		private boolean respond(HttpRequest request, String path) {
+			boolean keepAlive = isKeepAlive(request);
 			RequestContext rc = new RequestContext(
 					ostream, params, permParams, outputCookies);
+			rc.setSessionStarter(this::startSession);
+			rc.setFramingRequired(keepAlive);
+			rc.setChunkingAllowed(version.equals("HTTP/1.1"));
+			rc.setDateIncluded(true);
+			if(outputBufferSize > 0) {
+				rc.setOutputBuffer(outputBuffer != null 
+						? outputBuffer 
+						: outputBuffers.get());
+			}
+			if(keepAlive && version.equals("HTTP/1.0")) {
+				rc.addHeader("Connection", "keep-alive");
+			} else if(!keepAlive && version.equals("HTTP/1.1")) {
+				rc.addHeader("Connection", "close");
+			}
+			
 			if(path.startsWith("/ext/")) {
 				if(path.length() == 5) {
 					sendError(404, "Unreadable");
-				} else {
-					String fqcn = "hr.fer.zemris.java.webserver.workers." 
-							+ path.substring(5);
-					try {
-						Class<?> referenceToClass = 
-								this.getClass().getClassLoader().loadClass(fqcn);
-						Object newObject = referenceToClass.newInstance();
-						IWebWorker iww = (IWebWorker)newObject;
-						iww.processRequest(rc);
-					} catch (ClassNotFoundException 
-							| InstantiationException 
-							| IllegalAccessException e) {
-						sendError(404, "Unreadable");
-					}
+					return false;
 				}
-				try {
-					csocket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+				IWebWorker iww = extWorkers.get(path.substring(5));
+				if(iww == null) {
+					sendError(404, "Unreadable");
+					return false;
 				}
-				return;
+				enableCompression(request, rc, false);
+				return dispatch(() -> iww.processRequest(rc), rc, keepAlive);
 			}
 			
-			if(workersMap.get(path) != null) {
-				workersMap.get(path).processRequest(rc);
-				try {
-					csocket.close();
-				} catch (IOException e) {
-				}
-				return;
+			Router.Match<IWebWorker> route = workers.find(path);
+			if(route != null) {
+				params.putAll(route.getParameters());
+				enableCompression(request, rc, false);
+				IWebWorker worker = route.getValue();
+				return dispatch(() -> worker.processRequest(rc), rc, keepAlive);
 			}
 			
 			Path resolvedPath;
 			try {
-				resolvedPath = Paths.get(documentRoot.toString(), path);
+				resolvedPath = 
+						Paths.get(documentRoot.toString(), path).normalize();
 			} catch (Exception e1) {
 				sendError(404, "Unreadable");
-				return;
+				return false;
 			}
 			if(!resolvedPath.startsWith(documentRoot)) {
 				sendError(403, "Forbidden");
-				return;
+				return false;
 			}
-			if(!Files.isReadable(resolvedPath)) {
+			
+			StaticContentCache.CachedFile cached = staticCache == null 
+					? null 
+					: staticCache.get(resolvedPath);
+			if(cached != null) {
+				return respondStatic(request, rc, cached, keepAlive);
+			}
+			//directories have no content which could be sent
+			if(!Files.isRegularFile(resolvedPath) 
+					|| !Files.isReadable(resolvedPath)) {
 				sendError(404, "Unreadable");
-				return;
+				return false;
 			}
 			
 			String extension = null;
@@ -487,77 +1411,348 @@ public class SmartHttpServer {
 			}
 			
 			if(extension.equals("smscr")) {
+				enableCompression(request, rc, true);
+				SmartScriptEngine engine;
 				try {
-					new SmartScriptEngine(
+					engine = new SmartScriptEngine(
 							new SmartScriptParser(
 									new String(Files.readAllBytes(resolvedPath), 
 											StandardCharsets.UTF_8))
-							.getDocumentNode(), rc).execute();
+							.getDocumentNode(), rc);
 				} catch (IOException e) {
 					sendError(404, "Unreadable");
+					return false;
 				}
+				return dispatch(() -> {
+					//session's cookie must precede script's output
+					if(engine.usesPersistentParameters()) {
+						rc.startSession();
+					}
+					engine.execute();
+				}, rc, keepAlive);
 			} else {
+				if(staticCache != null) {
+					try {
+						cached = staticCache.load(resolvedPath, mimeType);
+					} catch (IOException e) {
+						sendError(404, "Unreadable");
+						return false;
+					}
+					if(cached != null) {
+						return respondStatic(request, rc, cached, keepAlive);
+					}
+				}
+				StaticContent file;
 				try {
-					byte[] fileBytes = Files.readAllBytes(resolvedPath);
-					rc.write(fileBytes);
-				} catch (IOException e) {}
+					file = new StaticFile(resolvedPath, mimeType);
+				} catch (IOException e) {
+					sendError(404, "Unreadable");
+					return false;
+				}
+				return respondStatic(request, rc, file, keepAlive);
+			}
+		}
+		
+		/**
+		 * Runs given worker or script and finishes its response. If adaptive
+		 * concurrency limit is used and it has been reached, the pre-encoded
+		 * <i>503 Service Unavailable</i> response is sent instead.
+		 * 
+		 * @param work work which writes the response
+		 * @param rc context of response
+		 * @param keepAlive <b>true</b> if connection should be kept open
+		 * @return <b>true</b> if connection should be kept open for the next
+		 * request
+		 */
+		private boolean dispatch(Runnable work, RequestContext rc, 
+				boolean keepAlive) {
+			if(adaptiveLimit == null) {
+				work.run();
+				return finish(rc, keepAlive);
+			}
+			if(!adaptiveLimit.tryAcquire()) {
+				sendPreEncoded(admission.getResponse());
+				return false;
 			}
 			
+			long start = System.nanoTime();
 			try {
-				csocket.close();
-			} catch (IOException e) {}
+				work.run();
+			} finally {
+				adaptiveLimit.release(start);
+			}
+			return finish(rc, keepAlive);
+		}
+		
+		/**
+		 * Writes the response whose body is given static content. Response
+		 * is <i>304 Not Modified</i> if client's copy is still valid and
+		 * <i>206 Partial Content</i> if client has requested only certain
+		 * ranges of bytes. A single range is sent as the body, while several
+		 * ranges are sent as parts of <i>multipart/byteranges</i> body.
+		 * Ranges are ignored if <i>If-Range</i> header does not match the
+		 * current version of the content.
+		 * 
+		 * @param request parsed request
+		 * @param rc context of response
+		 * @param content static content
+		 * @param keepAlive <b>true</b> if connection should be kept open
+		 * @return <b>true</b> if connection should be kept open for the next
+		 * request
+		 */
+		private boolean respondStatic(HttpRequest request, RequestContext rc, 
+				StaticContent content, boolean keepAlive) {
+			rc.setMimeType(content.getMimeType());
+			if(compression != null 
+					&& compression.isCompressible(content.getMimeType())) {
+				rc.addHeader("Vary", "Accept-Encoding");
+				String coding = CompressionPolicy.selectCoding(
+						request.getHeader("Accept-Encoding"));
+				if(coding != null 
+						&& content.getSize() >= compression.getMinSize()) {
+					content = content.getEncoded(coding);
+				}
+			}
+			if(content.getContentEncoding() != null) {
+				rc.addHeader("Content-Encoding", content.getContentEncoding());
+			}
+			if(isNotModified(request, rc, content.getEntityTag(), 
+					content.getLastModified(), content.getLastModifiedDate())) {
+				return finish(rc, keepAlive);
+			}
+			rc.addHeader("Accept-Ranges", "bytes");
+			
+			long size = content.getSize();
+			List<ByteRange> ranges = null;
+			String rangeHeader = request.getHeader("Range");
+			String ifRange = request.getHeader("If-Range");
+			if(rangeHeader != null && (ifRange == null 
+					|| HttpValidators.matchesRange(ifRange, 
+							content.getEntityTag(), 
+							content.getLastModified()))) {
+				ranges = ByteRange.parse(rangeHeader, size);
+			}
+			
+			try {
+				if(ranges == null) {
+					rc.setContentLength(size);
+					content.writeTo(rc, 0, size);
+				} else if(ranges.isEmpty()) {
+					rc.setStatusCode(416);
+					rc.setStatusText("Range Not Satisfiable");
+					rc.addHeader("Content-Range", "bytes */" + size);
+					rc.setContentLength(0);
+				} else if(ranges.size() == 1) {
+					ByteRange range = ranges.get(0);
+					rc.setStatusCode(206);
+					rc.setStatusText("Partial Content");
+					rc.addHeader("Content-Range", range.toContentRange(size));
+					rc.setContentLength(range.getLength());
+					content.writeTo(rc, range.getStart(), range.getLength());
+				} else {
+					writeRanges(rc, content, ranges);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+			return finish(rc, keepAlive);
 		}
 		
 		/**
-		 * Checks given header lines for a eventual SID value of a cookie.
+		 * Enables compression of dynamically generated response, if server
+		 * compresses responses and client accepts compressed responses.
 		 * 
-		 * @param headerLines lines of request's header
+		 * @param request parsed request
+		 * @param rc context of response
+		 * @param script <b>true</b> if response is generated by a script
 		 */
-		private void checkSession(List<String> headerLines) {
-			for(String headerLine : headerLines) {
-				if(headerLine.startsWith("Cookie:")) {
-					String[] cookies = headerLine.substring(8).split("; ");
+		private void enableCompression(HttpRequest request, RequestContext rc,
+				boolean script) {
+			if(compression != null) {
+				rc.setCompression(
+						script ? compression.forScripts() : compression, 
+						CompressionPolicy.selectCoding(
+								request.getHeader("Accept-Encoding")));
+			}
+		}
+		
+		/**
+		 * Writes given ranges of static content as parts of 
+		 * <i>multipart/byteranges</i> body.
+		 * 
+		 * @param rc context of response
+		 * @param content static content
+		 * @param ranges requested ranges
+		 * @throws IOException if I/O error of any kind has occurred
+		 */
+		private void writeRanges(RequestContext rc, StaticContent content,
+				List<ByteRange> ranges) throws IOException {
+			String boundary = Long.toHexString(sessionRandom.nextLong());
+			String[] partHeaders = new String[ranges.size()];
+			String closing = "\r\n--" + boundary + "--\r\n";
+			long length = closing.length();
+			for(int i = 0; i < partHeaders.length; ++i) {
+				ByteRange range = ranges.get(i);
+				partHeaders[i] = "\r\n--" + boundary + "\r\n"
+						+ "Content-Type: " + content.getMimeType() + "\r\n"
+						+ "Content-Range: " 
+						+ range.toContentRange(content.getSize()) + "\r\n"
+						+ "\r\n";
+				length += partHeaders[i].length() + range.getLength();
+			}
+			
+			rc.setStatusCode(206);
+			rc.setStatusText("Partial Content");
+			rc.setMimeType("multipart/byteranges; boundary=" + boundary);
+			rc.setContentLength(length);
+			for(int i = 0; i < partHeaders.length; ++i) {
+				ByteRange range = ranges.get(i);
+				rc.write(partHeaders[i].getBytes(StandardCharsets.ISO_8859_1));
+				content.writeTo(rc, range.getStart(), range.getLength());
+			}
+			rc.write(closing.getBytes(StandardCharsets.ISO_8859_1));
+		}
+		
+		/**
+		 * Adds validators of a static file to the response and checks if 
+		 * client's copy of the file is still valid. <i>If-None-Match</i> 
+		 * header takes precedence over <i>If-Modified-Since</i> header. If 
+		 * client's copy is valid, response's status is set to 
+		 * <i>304 Not Modified</i> and no body should be written.
+		 * 
+		 * @param request parsed request
+		 * @param rc context of response
+		 * @param entityTag entity tag of the file
+		 * @param lastModified time of file's last modification
+		 * @param lastModifiedDate time of file's last modification as HTTP 
+		 * date
+		 * @return <b>true</b> if client's copy is valid
+		 */
+		private boolean isNotModified(HttpRequest request, RequestContext rc,
+				String entityTag, long lastModified, String lastModifiedDate) {
+			rc.addHeader("ETag", entityTag);
+			rc.addHeader("Last-Modified", lastModifiedDate);
+			
+			String ifNoneMatch = request.getHeader("If-None-Match");
+			String ifModifiedSince = request.getHeader("If-Modified-Since");
+			boolean notModified = ifNoneMatch != null 
+					? HttpValidators.matchesAny(ifNoneMatch, entityTag)
+					: ifModifiedSince != null 
+						&& HttpValidators.notModifiedSince(
+								ifModifiedSince, lastModified);
+			if(notModified) {
+				rc.setStatusCode(304);
+				rc.setStatusText("Not Modified");
+			}
+			return notModified;
+		}
+		
+		/**
+		 * Checks if connection should be kept open after the response to 
+		 * given request. HTTP/1.1 connections are persistent unless client
+		 * asks otherwise, while HTTP/1.0 client must ask for it.
+		 * 
+		 * @param request parsed request
+		 * @return <b>true</b> if connection should be kept open
+		 */
+		private boolean isKeepAlive(HttpRequest request) {
+			if(requestCount >= keepAliveMaxRequests) {
+				return false;
+			}
+			
+			String connectionHeader = request.getHeader("Connection");
+			if(connectionHeader != null) {
+				connectionHeader = connectionHeader.toLowerCase();
+			}
+			if(version.equals("HTTP/1.1")) {
+				return connectionHeader == null 
+						|| !connectionHeader.contains("close");
+			}
+			return connectionHeader != null 
+					&& connectionHeader.contains("keep-alive");
+		}
+		
+		/**
+		 * Finishes the response modeled by given {@link RequestContext}.
+		 * 
+		 * @param rc context of response
+		 * @param keepAlive <b>true</b> if connection should be kept open
+		 * @return <b>true</b> if connection should be kept open for the next
+		 * request
+		 */
+		private boolean finish(RequestContext rc, boolean keepAlive) {
+			try {
+				rc.finish();
+			} catch (IOException e) {
+				return false;
+			}
+			return keepAlive;
+		}
+		
+		/**
+		 * Checks given request's headers for a eventual SID value of a cookie.
+		 * If user has no valid session, none is created until persistent 
+		 * parameters are used.
+		 * 
+		 * @param request parsed request
+		 */
+		private void checkSession(HttpRequest request) {
+			for(int i = 0; i < request.getHeaderCount(); ++i) {
+				if(request.getHeaderName(i).equals("Cookie")) {
+					String[] cookies = request.getHeaderValue(i).split("; ");
 					String sidCandidate = null;
-					SessionMapEntry session = null;
 					for(String cookie : cookies) {
 						if(cookie.startsWith("sid")) {
 							sidCandidate = cookie.split("=")[1];
 							break;
 						}
 					}
-					session = sessions.get(sidCandidate);
+					long now = System.currentTimeMillis()/1000;
+					SessionMapEntry session = sessions.touch(
+							sidCandidate, now, now + sessionTimeout);
 					if(session != null) {
-						if(session.validUntil < System.currentTimeMillis()/1000) {
-							sessions.remove(sidCandidate);
-							session = null;
-						}
+						sessionId = session.sid;
+						permParams = session.map;
+						outputCookies.add(
+								new RCCookie(
+										"sid", session.sid, null, address, "/"));
 					}
-					if(session == null) {
-						session = new SessionMapEntry();
-						session.sid = getNewSID();	
-						sessions.put(session.sid, session);
-					}
-					session.validUntil = System.currentTimeMillis()/1000 
-								+ sessionTimeout;
-					
-					permParams = session.map;
-					outputCookies.add(
-							new RCCookie(
-									"sid", session.sid, null, address, "/"));
 					return;
 				}
 			}
-			//Header does not contain Cookie content
-			SessionMapEntry session = new SessionMapEntry();
-			session.sid = getNewSID();
-			session.validUntil = System.currentTimeMillis()/1000 
-					+ sessionTimeout;
-			sessions.put(session.sid, session);
+			//Header does not contain Cookie content, session is started
+			//only when it is needed
+		}
+		
+		/**
+		 * Starts new session of the user and adds its cookie to the output
+		 * cookies.
+		 * 
+		 * @return persistent parameters of the new session
+		 */
+		private Map<String,String> startSession() {
+			SessionMapEntry session = newSession();
+			sessionId = session.sid;
 			permParams = session.map;
 			outputCookies.add(
 					new RCCookie(
 							"sid", session.sid, null, address, "/"));
-			
+			return session.map;
+		}
+		
+		/**
+		 * Creates new session with unique SID in the storage.
+		 * 
+		 * @return new session
+		 */
+		private SessionMapEntry newSession() {
+			while(true) {
+				SessionMapEntry session = sessions.create(getNewSID(), 
+						System.currentTimeMillis()/1000 + sessionTimeout);
+				if(session != null) {
+					return session;
+				}
+			}
 		}
 		
 		/**
@@ -626,66 +1821,84 @@ public class SmartHttpServer {
 		}
 
 		/**
-		 * Reads request.
+		 * Writes given pre-encoded response, which closes the connection.
+		 * 
+		 * @param response encoded response
+		 */
+		private void sendPreEncoded(byte[] response) {
+			try {
+				ostream.write(response);
+				ostream.flush();
+			} catch (IOException e) {
+			}
+		}
+		
+		/**
+		 * Gets address of the client.
 		 * 
-		 * @return {@link List} of request lines
+		 * @return client's address
 		 */
-		private List<String> readRequest() {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			int state = 0;
-l:			while(true) {
-				int b;
+		private String getClientAddress() {
+			if(clientAddress == null) {
+				clientAddress = (exchange != null 
+						? exchange.getClientAddress() 
+						: csocket.getInetAddress()).getHostAddress();
+			}
+			return clientAddress;
+		}
+		
+		/**
+		 * Reads the next request. Request read by {@link SelectorServerThread}
+		 * is taken from the exchange, otherwise request is read from client's 
+		 * input stream in bulk. Bytes following the request are kept for the
+		 * next request.
+		 * 
+		 * @return parsed request, <b>null</b> if client has closed the 
+		 * connection or has not sent the request in time
+		 * @throws HttpParseException if request can not be parsed
+		 */
+		private HttpRequest readRequest() {
+			if(exchange != null) {
+				if(exchange.getError() != null) {
+					throw exchange.getError();
+				}
+				return exchange.getRequest();
+			}
+			
+			//unparsed request must start at the beginning of the buffer
+			inputBuffer.compact();
+			inputBuffer.flip();
+			parser.reset();
+			long start = inputBuffer.hasRemaining() ? System.nanoTime() : 0;
+			while(!parser.parse(inputBuffer)) {
+				int limit = inputBuffer.limit();
+				if(limit == inputBuffer.capacity()) {
+					throw new HttpParseException(
+							431, "Request Header Fields Too Large");
+				}
+				//trickling client must not keep the thread forever
+				if(start != 0 && System.nanoTime() - start 
+						> requestHeaderTimeout * 1_000_000_000L) {
+					return null;
+				}
+				
+				int read;
 				try {
-					b = istream.read();
+					read = istream.read(
+							inputBuffer.array(), limit, 
+							inputBuffer.capacity() - limit);
 				} catch (IOException e) {
 					return null;
 				}
-				if(b==-1) return null;
-				if(b!=13) {
-					bos.write(b);
-				}
-				// 13 = \r ; 10 = \n
-				switch(state) {
-				case 0:
-					if(b==13) {state=1; } else if(b==10) state = 4;
-					break;
-				case 1:
-					if(b==10) { state=2; } else state = 0;
-					break;
-				case 2:
-					if(b==13) { state=3; } else state = 0;
-					break;
-				case 3 :
-					if(b==10) { break l; } else state = 0;
-					break;
-				case 4:
-					if(b==10) { break l; } else state = 0;
-					break;
-
+				if(read == -1) {
+					return null;
 				}
-			}
-
-			String str = new String(
-					bos.toByteArray(), StandardCharsets.ISO_8859_1);
-			
-			List<String> headers = new ArrayList<>();
-			String currentLine = null;
-			for(String s : str.split("\n")) {
-				if(s.isEmpty()) break;
-				char c = s.charAt(0);
-				if(c==9 || c==32) {
-					currentLine +=s;
-				} else {
-					if(currentLine != null) {
-						headers.add(currentLine);
-					}
-					currentLine = s;
+				inputBuffer.limit(limit + read);
+				if(start == 0) {
+					start = System.nanoTime();
 				}
 			}
-			if(!currentLine.isEmpty()) {
-				headers.add(currentLine);
-			}
-			return headers;
+			return parser.toRequest(inputBuffer);
 		}
 
 	}
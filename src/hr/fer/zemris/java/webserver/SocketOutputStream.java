@@ -0,0 +1,105 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+/**
+ * SocketOutputStream is the output stream of a blocking client socket. 
+ * If the socket has been accepted by a channel, file parts are transferred
+ * to it directly from the file system, otherwise they are copied through
+ * a small buffer. Buffers are written on the channel in the same way.
+ * 
+ * @author Filip Klepo
+ *
+ */
+class SocketOutputStream extends FilterOutputStream 
+		implements FileTransferTarget {
+	
+	/**
+	 * Size of the buffer used when file can not be transferred directly.
+	 */
+	private static final int COPY_BUFFER_SIZE = 8 * 1024;
+	
+	/**
+	 * Channel of the socket, <b>null</b> if socket has no channel.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * Instantiates this class with given socket.
+	 * 
+	 * @param socket client's socket
+	 * @throws IOException if socket's output stream can not be obtained
+	 * @throws NullPointerException if given socket is null
+	 */
+	public SocketOutputStream(Socket socket) throws IOException {
+		super(Objects.requireNonNull(socket).getOutputStream());
+		this.channel = socket.getChannel();
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void transferFrom(FileChannel file, long position, long count)
+			throws IOException {
+		try (FileChannel source = file) {
+			long end = position + count;
+			if(channel != null) {
+				flush();
+				while(position < end) {
+					long transferred = 
+							source.transferTo(position, end - position, channel);
+					if(transferred == 0 && position >= source.size()) {
+						throw new IOException("File has been truncated.");
+					}
+					position += transferred;
+				}
+				return;
+			}
+			
+			byte[] buffer = new byte[(int)Math.min(count, COPY_BUFFER_SIZE)];
+			while(position < end) {
+				int read = source.read(ByteBuffer.wrap(buffer, 0, 
+						(int)Math.min(buffer.length, end - position)), position);
+				if(read == -1) {
+					throw new IOException("File has been truncated.");
+				}
+				out.write(buffer, 0, read);
+				position += read;
+			}
+		}
+	}
+	
+	@Override
+	public void transferFrom(ByteBuffer buffer) throws IOException {
+		if(channel != null) {
+			flush();
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			return;
+		}
+		
+		if(buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+					buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		byte[] copy = new byte[Math.min(buffer.remaining(), COPY_BUFFER_SIZE)];
+		while(buffer.hasRemaining()) {
+			int length = Math.min(copy.length, buffer.remaining());
+			buffer.get(copy, 0, length);
+			out.write(copy, 0, length);
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+
+/**
+ * StaticContent is an interface which models content of a static file 
+ * served by {@link SmartHttpServer}, together with its validators. Content
+ * can be written whole or in parts, so it can answer range requests. Content
+ * may have variants encoded with content codings, each with its own entity
+ * tag.
+ * 
+ * @author Filip Klepo
+ *
+ */
+interface StaticContent {
+
+	/**
+	 * Gets mime type of the content.
+	 * 
+	 * @return mime type
+	 */
+	String getMimeType();
+	
+	/**
+	 * Gets content coding of the content.
+	 * 
+	 * @return content coding, <b>null</b> if content is not encoded
+	 */
+	String getContentEncoding();
+	
+	/**
+	 * Gets size of the content in bytes.
+	 * 
+	 * @return size of the content
+	 */
+	long getSize();
+	
+	/**
+	 * Gets time of content's last modification, in milliseconds.
+	 * 
+	 * @return time of last modification
+	 */
+	long getLastModified();
+	
+	/**
+	 * Gets time of content's last modification as HTTP date.
+	 * 
+	 * @return time of last modification
+	 */
+	String getLastModifiedDate();
+	
+	/**
+	 * Gets entity tag of this version of the content.
+	 * 
+	 * @return entity tag
+	 */
+	String getEntityTag();
+	
+	/**
+	 * Gets variant of the content encoded with given content coding.
+	 * 
+	 * @param coding content coding, <i>gzip</i> or <i>deflate</i>
+	 * @return encoded variant, or this content if there is no such variant
+	 */
+	StaticContent getEncoded(String coding);
+	
+	/**
+	 * Writes given part of the content as response's body.
+	 * 
+	 * @param rc context of response
+	 * @param position position of the first written byte
+	 * @param count number of written bytes
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	void writeTo(RequestContext rc, long position, long count) 
+			throws IOException;
+	
+}
@@ -0,0 +1,417 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import hr.fer.zemris.java.webserver.http.HttpValidators;
+
+/**
+ * StaticContentCache holds content of static files served by
+ * {@link SmartHttpServer} in memory, so frequently requested files are not
+ * read from the file system on every request. Content is held in direct
+ * {@link ByteBuffer}s, which are written on client's channel without any
+ * further copying.
+ *
+ * <p>Cache is bounded by the total size of held files. Once it is exceeded,
+ * least recently used files are evicted. Files larger than the given maximal
+ * size are never cached. Cached file is considered fresh for one second
+ * after it has been validated, after which its size and modification time
+ * are compared with the file system again. Changed or deleted files are
+ * evicted.</p>
+ *
+ * <p>Compressed variants of a cached file are created once per version of
+ * the file, either from a precompressed sibling file or by compressing the
+ * file, and are evicted together with it.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class StaticContentCache {
+
+	/**
+	 * Time, in nanoseconds, for which cached file is considered fresh
+	 * without checking the file system.
+	 */
+	private static final long VALIDATION_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * CachedFile models content of a single cached file together with
+	 * attributes by which its freshness is validated. Validators sent to
+	 * clients are created once per version of the file.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	class CachedFile implements StaticContent {
+		/**
+		 * Normalized path of the file.
+		 */
+		private final Path path;
+		/**
+		 * Read-only content of the file.
+		 */
+		private final ByteBuffer content;
+		/**
+		 * Mime type of the file.
+		 */
+		private final String mimeType;
+		/**
+		 * Content coding of the content, <b>null</b> if content is not
+		 * encoded.
+		 */
+		private final String contentEncoding;
+		/**
+		 * Time of file's last modification, in milliseconds.
+		 */
+		private final long lastModified;
+		/**
+		 * Entity tag of this version of the file.
+		 */
+		private final String entityTag;
+		/**
+		 * Time of file's last modification as HTTP date.
+		 */
+		private final String lastModifiedDate;
+		/**
+		 * Encoded variants of the file mapped by their content codings. File
+		 * which is not worth encoding is mapped to itself.
+		 */
+		private final Map<String, CachedFile> variants =
+				new ConcurrentHashMap<>();
+		/**
+		 * Size of the file and of its variants held in the cache.
+		 */
+		private long totalSize;
+		/**
+		 * Time, in nanoseconds, at which file has been last validated.
+		 */
+		private volatile long validatedAt;
+
+		/**
+		 * Instantiates this class with given parameters.
+		 *
+		 * @param path normalized path of the file
+		 * @param content content of the file
+		 * @param mimeType mime type of the file
+		 * @param contentEncoding content coding of the content
+		 * @param lastModified time of file's last modification
+		 * @param entityTag entity tag of the content
+		 */
+		private CachedFile(Path path, ByteBuffer content, String mimeType,
+				String contentEncoding, long lastModified, String entityTag) {
+			this.path = path;
+			this.content = content.asReadOnlyBuffer();
+			this.mimeType = mimeType;
+			this.contentEncoding = contentEncoding;
+			this.lastModified = lastModified;
+			this.entityTag = entityTag;
+			this.lastModifiedDate = HttpValidators.formatDate(lastModified);
+			this.totalSize = content.capacity();
+			this.validatedAt = System.nanoTime();
+		}
+
+		@Override
+		public long getSize() {
+			return content.capacity();
+		}
+
+		@Override
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return contentEncoding;
+		}
+
+		@Override
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public String getEntityTag() {
+			return entityTag;
+		}
+
+		@Override
+		public String getLastModifiedDate() {
+			return lastModifiedDate;
+		}
+
+		@Override
+		public StaticContent getEncoded(String coding) {
+			if(contentEncoding != null) {
+				return this;
+			}
+
+			CachedFile variant = variants.get(coding);
+			if(variant == null) {
+				variant = createVariant(this, coding);
+				CachedFile previous = variants.putIfAbsent(coding, variant);
+				if(previous != null) {
+					return previous;
+				}
+				if(variant != this) {
+					addVariant(this, variant);
+				}
+			}
+			return variant;
+		}
+
+		@Override
+		public void writeTo(RequestContext rc, long position, long count)
+				throws IOException {
+			ByteBuffer part = content.duplicate();
+			part.position((int)position);
+			part.limit((int)(position + count));
+			rc.write(part);
+		}
+	}
+
+	/**
+	 * Maximal total size of cached files, in bytes.
+	 */
+	private final long capacity;
+	/**
+	 * Maximal size of a single cached file, in bytes.
+	 */
+	private final long maxFileSize;
+	/**
+	 * Cached files mapped by their normalized paths, in order from the least
+	 * to the most recently used.
+	 */
+	private final Map<Path, CachedFile> files =
+			new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * Total size of cached files, in bytes.
+	 */
+	private long size;
+
+	/**
+	 * Instantiates this class with given limits.
+	 *
+	 * @param capacity maximal total size of cached files, in bytes
+	 * @param maxFileSize maximal size of a single cached file, in bytes
+	 * @throws IllegalArgumentException if any of given limits is negative
+	 */
+	public StaticContentCache(long capacity, long maxFileSize) {
+		if(capacity < 0 || maxFileSize < 0) {
+			throw new IllegalArgumentException(
+					"Limits of cache can not be negative.");
+		}
+
+		this.capacity = capacity;
+		this.maxFileSize = Math.min(maxFileSize, capacity);
+	}
+
+	/**
+	 * Gets cached file of given path. If file has not been validated
+	 * recently, it is validated against the file system first.
+	 *
+	 * @param path normalized path of the file
+	 * @return cached file, <b>null</b> if file is not cached or it has been
+	 * changed
+	 */
+	public CachedFile get(Path path) {
+		CachedFile file;
+		synchronized (this) {
+			file = files.get(path);
+		}
+		if(file == null) {
+			return null;
+		}
+
+		long now = System.nanoTime();
+		if(now - file.validatedAt < VALIDATION_INTERVAL) {
+			return file;
+		}
+		try {
+			BasicFileAttributes attributes =
+					Files.readAttributes(path, BasicFileAttributes.class);
+			if(attributes.size() == file.getSize()
+					&& attributes.lastModifiedTime().toMillis()
+						== file.lastModified) {
+				file.validatedAt = now;
+				return file;
+			}
+		} catch (IOException e) {
+		}
+		remove(path, file);
+		return null;
+	}
+
+	/**
+	 * Reads given file and caches its content, unless the file is too large
+	 * to be cached.
+	 *
+	 * @param path normalized path of the file
+	 * @param mimeType mime type of the file
+	 * @return cached file, <b>null</b> if file is not cacheable
+	 * @throws NoSuchFileException if file does not exist
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	public CachedFile load(Path path, String mimeType) throws IOException {
+		BasicFileAttributes attributes =
+				Files.readAttributes(path, BasicFileAttributes.class);
+		ByteBuffer content = read(path, attributes);
+		if(content == null) {
+			return null;
+		}
+
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		CachedFile file = new CachedFile(path, content, mimeType, null,
+				lastModified,
+				HttpValidators.entityTag(attributes.size(), lastModified));
+		put(path, file);
+		return file;
+	}
+
+	/**
+	 * Creates variant of given file encoded with given content coding.
+	 * Precompressed sibling file, whose name has <i>.gz</i> appended, is
+	 * used for <i>gzip</i> coding if it is not older than the file.
+	 * Otherwise the file is compressed.
+	 *
+	 * @param file cached file
+	 * @param coding content coding
+	 * @return encoded variant, or given file if encoded variant is not
+	 * smaller than it
+	 */
+	private CachedFile createVariant(CachedFile file, String coding) {
+		if(coding.equals("gzip")) {
+			Path sibling = file.path.resolveSibling(
+					file.path.getFileName() + ".gz");
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(
+						sibling, BasicFileAttributes.class);
+				long lastModified = attributes.lastModifiedTime().toMillis();
+				ByteBuffer content = lastModified < file.lastModified
+						? null
+						: read(sibling, attributes);
+				if(content != null) {
+					return new CachedFile(file.path, content, file.mimeType,
+							coding, file.lastModified,
+							HttpValidators.entityTag(attributes.size(),
+									lastModified, coding));
+				}
+			} catch (IOException e) {
+			}
+		}
+
+		byte[] data = new byte[(int)file.getSize()];
+		file.content.duplicate().get(data);
+		byte[] compressed =
+				CompressionPolicy.compress(coding, data, 0, data.length);
+		if(compressed.length >= data.length) {
+			return file;
+		}
+		ByteBuffer content = ByteBuffer.allocateDirect(compressed.length);
+		content.put(compressed).flip();
+		return new CachedFile(file.path, content, file.mimeType, coding,
+				file.lastModified, HttpValidators.entityTag(
+						file.getSize(), file.lastModified, coding));
+	}
+
+	/**
+	 * Reads content of given file into a direct buffer.
+	 *
+	 * @param path path of the file
+	 * @param attributes attributes of the file
+	 * @return content of the file, <b>null</b> if file is not a regular file,
+	 * it is too large to be cached or it has been changed while it was read
+	 * @throws IOException if I/O error of any kind has occurred
+	 */
+	private ByteBuffer read(Path path, BasicFileAttributes attributes)
+			throws IOException {
+		if(!attributes.isRegularFile() || attributes.size() > maxFileSize) {
+			return null;
+		}
+
+		ByteBuffer content = ByteBuffer.allocateDirect((int)attributes.size());
+		try (FileChannel channel =
+				FileChannel.open(path, StandardOpenOption.READ)) {
+			while(content.hasRemaining()) {
+				if(channel.read(content) == -1) {
+					//file has been truncated while it was read
+					return null;
+				}
+			}
+			if(channel.size() != attributes.size()) {
+				return null;
+			}
+		}
+		content.flip();
+		return content;
+	}
+
+	/**
+	 * Puts given file in the cache and evicts least recently used files
+	 * until total size fits the capacity.
+	 *
+	 * @param path normalized path of the file
+	 * @param file cached file
+	 */
+	private synchronized void put(Path path, CachedFile file) {
+		CachedFile previous = files.put(path, file);
+		if(previous != null) {
+			size -= previous.totalSize;
+		}
+		size += file.totalSize;
+		evict();
+	}
+
+	/**
+	 * Accounts given variant of given file, if the file is still cached,
+	 * and evicts least recently used files until total size fits the
+	 * capacity.
+	 *
+	 * @param file cached file
+	 * @param variant encoded variant of the file
+	 */
+	private synchronized void addVariant(CachedFile file, CachedFile variant) {
+		if(files.get(file.path) == file) {
+			file.totalSize += variant.getSize();
+			size += variant.getSize();
+			evict();
+		}
+	}
+
+	/**
+	 * Evicts least recently used files until total size fits the capacity.
+	 */
+	private void evict() {
+		Iterator<CachedFile> iterator = files.values().iterator();
+		while(size > capacity && iterator.hasNext()) {
+			CachedFile eldest = iterator.next();
+			iterator.remove();
+			size -= eldest.totalSize;
+		}
+	}
+
+	/**
+	 * Removes given file from the cache, if it has not been replaced in
+	 * the meantime.
+	 *
+	 * @param path normalized path of the file
+	 * @param file cached file
+	 */
+	private synchronized void remove(Path path, CachedFile file) {
+		if(files.remove(path, file)) {
+			size -= file.totalSize;
+		}
+	}
+
+}
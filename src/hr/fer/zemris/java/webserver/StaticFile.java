@@ -0,0 +1,139 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import hr.fer.zemris.java.webserver.http.HttpValidators;
+
+/**
+ * StaticFile is {@link StaticContent} which is read from the file system
+ * every time it is written. Every written part is transferred from its own
+ * file channel, so only the requested bytes are read. Files are not 
+ * compressed on the fly, but precompressed sibling file whose name has 
+ * <i>.gz</i> appended is used as <i>gzip</i> variant.
+ * 
+ * @author Filip Klepo
+ *
+ */
+class StaticFile implements StaticContent {
+	
+	/**
+	 * Path of the file.
+	 */
+	private final Path path;
+	/**
+	 * Mime type of the file.
+	 */
+	private final String mimeType;
+	/**
+	 * Content coding of the file, <b>null</b> if file is not encoded.
+	 */
+	private final String contentEncoding;
+	/**
+	 * Size of the file in bytes.
+	 */
+	private final long size;
+	/**
+	 * Time of file's last modification, in milliseconds.
+	 */
+	private final long lastModified;
+
+	/**
+	 * Instantiates this class with given file, whose attributes are read
+	 * immediately.
+	 * 
+	 * @param path path of the file
+	 * @param mimeType mime type of the file
+	 * @throws IOException if attributes of the file can not be read or it
+	 * is not a regular file
+	 */
+	public StaticFile(Path path, String mimeType) throws IOException {
+		this(path, mimeType, null);
+	}
+	
+	/**
+	 * Instantiates this class with given file encoded with given content
+	 * coding. Attributes of the file are read immediately.
+	 * 
+	 * @param path path of the file
+	 * @param mimeType mime type of the file
+	 * @param contentEncoding content coding of the file
+	 * @throws IOException if attributes of the file can not be read or it
+	 * is not a regular file
+	 */
+	public StaticFile(Path path, String mimeType, String contentEncoding) 
+			throws IOException {
+		BasicFileAttributes attributes = 
+				Files.readAttributes(path, BasicFileAttributes.class);
+		//size of a directory is not the length of any content, so ranges
+		//computed from it would be bogus
+		if(!attributes.isRegularFile()) {
+			throw new IOException("Not a regular file: " + path);
+		}
+		this.path = path;
+		this.mimeType = mimeType;
+		this.contentEncoding = contentEncoding;
+		this.size = attributes.size();
+		this.lastModified = attributes.lastModifiedTime().toMillis();
+	}
+	
+	@Override
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	@Override
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String getLastModifiedDate() {
+		return HttpValidators.formatDate(lastModified);
+	}
+
+	@Override
+	public String getEntityTag() {
+		return HttpValidators.entityTag(size, lastModified, contentEncoding);
+	}
+	
+	@Override
+	public StaticContent getEncoded(String coding) {
+		if(contentEncoding != null || !coding.equals("gzip")) {
+			return this;
+		}
+		
+		Path sibling = path.resolveSibling(path.getFileName() + ".gz");
+		try {
+			StaticFile encoded = new StaticFile(sibling, mimeType, coding);
+			if(Files.isRegularFile(sibling) 
+					&& encoded.lastModified >= lastModified) {
+				return encoded;
+			}
+		} catch (IOException e) {
+		}
+		return this;
+	}
+
+	@Override
+	public void writeTo(RequestContext rc, long position, long count)
+			throws IOException {
+		rc.write(FileChannel.open(path, StandardOpenOption.READ), 
+				position, count);
+	}
+
+}
@@ -0,0 +1,205 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WorkerRegistry resolves workers of {@link SmartHttpServer} requested by
+ * their class names, e.g. <i>/ext/EchoParams</i>. Each class is loaded and
+ * inspected only once. Worker without instance fields keeps no state between
+ * requests, so its single instance serves all of them. Other workers are
+ * instantiated for each request through a cached constructor handle.
+ *
+ * <p>Names which do not resolve to a worker are remembered in a bounded
+ * negative cache, so repeated requests for them, e.g. by scanning bots, do
+ * not reach the class loader again. Once the cache is full, the least
+ * recently requested names are forgotten.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+class WorkerRegistry {
+
+	/**
+	 * Default maximal number of names in the negative cache.
+	 */
+	private static final int DEFAULT_MAX_MISSES = 1024;
+	/**
+	 * Type of worker's constructor.
+	 */
+	private static final MethodType CONSTRUCTOR =
+			MethodType.methodType(void.class);
+
+	/**
+	 * WorkerFactory supplies worker which processes a single request.
+	 *
+	 * @author Filip Klepo
+	 *
+	 */
+	private interface WorkerFactory {
+		/**
+		 * Supplies worker.
+		 *
+		 * @return worker
+		 */
+		IWebWorker get();
+	}
+
+	/**
+	 * Package of worker classes, including the trailing dot.
+	 */
+	private final String packagePrefix;
+	/**
+	 * Class loader of worker classes.
+	 */
+	private final ClassLoader classLoader;
+	/**
+	 * Factories of resolved workers mapped by their names.
+	 */
+	private final Map<String, WorkerFactory> factories =
+			new ConcurrentHashMap<>();
+	/**
+	 * Names which do not resolve to a worker, in order from the least to the
+	 * most recently requested.
+	 */
+	private final Set<String> misses;
+
+	/**
+	 * Instantiates this class with the default size of the negative cache.
+	 *
+	 * @param packageName package of worker classes
+	 * @param classLoader class loader of worker classes
+	 */
+	public WorkerRegistry(String packageName, ClassLoader classLoader) {
+		this(packageName, classLoader, DEFAULT_MAX_MISSES);
+	}
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param packageName package of worker classes
+	 * @param classLoader class loader of worker classes
+	 * @param maxMisses maximal number of names in the negative cache
+	 * @throws NullPointerException if package or class loader is
+	 * null-reference
+	 * @throws IllegalArgumentException if maximal number of names is negative
+	 */
+	public WorkerRegistry(String packageName, ClassLoader classLoader,
+			int maxMisses) {
+		Objects.requireNonNull(packageName);
+		Objects.requireNonNull(classLoader);
+		if(maxMisses < 0) {
+			throw new IllegalArgumentException(
+					"Size of negative cache can not be negative.");
+		}
+
+		this.packagePrefix = packageName + ".";
+		this.classLoader = classLoader;
+		this.misses = Collections.newSetFromMap(
+				Collections.synchronizedMap(
+						new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<String, Boolean> eldest) {
+						return size() > maxMisses;
+					}
+				}));
+	}
+
+	/**
+	 * Gets worker of given name which processes a single request.
+	 *
+	 * @param name simple name of worker's class, relative to the package
+	 * @return worker, <b>null</b> if there is no worker of given name
+	 */
+	public IWebWorker get(String name) {
+		WorkerFactory factory = factories.get(name);
+		if(factory == null) {
+			if(misses.contains(name)) {
+				return null;
+			}
+			factory = resolve(name);
+			if(factory == null) {
+				misses.add(name);
+				return null;
+			}
+			WorkerFactory previous = factories.putIfAbsent(name, factory);
+			if(previous != null) {
+				factory = previous;
+			}
+		}
+		return factory.get();
+	}
+
+	/**
+	 * Loads worker class of given name and creates its factory.
+	 *
+	 * @param name simple name of worker's class, relative to the package
+	 * @return factory of the worker, <b>null</b> if class does not exist,
+	 * it is not a worker or it can not be instantiated
+	 */
+	private WorkerFactory resolve(String name) {
+		MethodHandle constructor;
+		try {
+			Class<?> workerClass = classLoader.loadClass(packagePrefix + name);
+			if(!IWebWorker.class.isAssignableFrom(workerClass)
+					|| Modifier.isAbstract(workerClass.getModifiers())) {
+				return null;
+			}
+			constructor = MethodHandles.publicLookup()
+					.findConstructor(workerClass, CONSTRUCTOR)
+					.asType(MethodType.methodType(IWebWorker.class));
+			if(isStateless(workerClass)) {
+				IWebWorker worker = (IWebWorker)constructor.invokeExact();
+				return () -> worker;
+			}
+		} catch (ClassNotFoundException | NoSuchMethodException
+				| IllegalAccessException | LinkageError e) {
+			return null;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+
+		return () -> {
+			try {
+				return (IWebWorker)constructor.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		};
+	}
+
+	/**
+	 * Checks if given class and its superclasses have no instance fields.
+	 *
+	 * @param type class
+	 * @return <b>true</b> if class has no instance fields
+	 */
+	private static boolean isStateless(Class<?> type) {
+		for(; type != null && type != Object.class;
+				type = type.getSuperclass()) {
+			for(Field field : type.getDeclaredFields()) {
+				if(!Modifier.isStatic(field.getModifiers())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+}
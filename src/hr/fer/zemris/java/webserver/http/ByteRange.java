@@ -0,0 +1,192 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ByteRange models a single range of bytes of a response's content,
+ * requested by <i>Range</i> header. Ranges are parsed by
+ * {@link #parse(String, long)}, which resolves them against the size of the
+ * content.
+ *
+ * @author Filip Klepo
+ *
+ */
+public class ByteRange {
+
+	/**
+	 * Maximal number of ranges in a single header. Header with more ranges
+	 * is ignored.
+	 */
+	private static final int MAX_RANGES = 16;
+
+	/**
+	 * Position of range's first byte.
+	 */
+	private final long start;
+	/**
+	 * Number of bytes in range.
+	 */
+	private final long length;
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param start position of range's first byte
+	 * @param length number of bytes in range
+	 */
+	private ByteRange(long start, long length) {
+		this.start = start;
+		this.length = length;
+	}
+
+	/**
+	 * Gets position of range's first byte.
+	 *
+	 * @return position of the first byte
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Gets position of range's last byte.
+	 *
+	 * @return position of the last byte
+	 */
+	public long getEnd() {
+		return start + length - 1;
+	}
+
+	/**
+	 * Gets number of bytes in range.
+	 *
+	 * @return number of bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Creates value of <i>Content-Range</i> header of this range.
+	 *
+	 * @param size size of the whole content
+	 * @return value of the header
+	 */
+	public String toContentRange(long size) {
+		return "bytes " + start + "-" + getEnd() + "/" + size;
+	}
+
+	/**
+	 * Parses value of <i>Range</i> header against content of given size.
+	 * Ranges which start after the content are dropped and ranges which end
+	 * after it are shortened. Overlapping and adjacent ranges are merged, so
+	 * returned ranges are sorted and disjoint.
+	 *
+	 * @param header value of the header
+	 * @param size size of the content
+	 * @return satisfiable ranges, empty if there are none, or <b>null</b>
+	 * if header is malformed, uses other unit than bytes or has too many
+	 * ranges, in which case it should be ignored
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		header = header.trim();
+		if(!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+
+		String[] specs = header.substring(6).split(",");
+		if(specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<>();
+		boolean empty = true;
+		for(String spec : specs) {
+			spec = spec.trim();
+			if(spec.isEmpty()) {
+				continue;
+			}
+			empty = false;
+
+			int dash = spec.indexOf('-');
+			if(dash == -1) {
+				return null;
+			}
+			long first;
+			long last;
+			try {
+				if(dash == 0) {
+					long suffix = parsePosition(spec.substring(1));
+					first = Math.max(0, size - suffix);
+					last = size - 1;
+				} else {
+					first = parsePosition(spec.substring(0, dash));
+					if(dash == spec.length() - 1) {
+						last = Long.MAX_VALUE;
+					} else {
+						last = parsePosition(spec.substring(dash + 1));
+						if(last < first) {
+							return null;
+						}
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			if(first < size && first <= last) {
+				last = Math.min(last, size - 1);
+				ranges.add(new ByteRange(first, last - first + 1));
+			}
+		}
+		if(empty) {
+			return null;
+		}
+
+		return merge(ranges);
+	}
+
+	/**
+	 * Merges overlapping and adjacent ranges.
+	 *
+	 * @param ranges ranges
+	 * @return sorted and disjoint ranges
+	 */
+	private static List<ByteRange> merge(List<ByteRange> ranges) {
+		if(ranges.size() < 2) {
+			return ranges;
+		}
+
+		Collections.sort(ranges, (r1, r2) -> Long.compare(r1.start, r2.start));
+		List<ByteRange> merged = new ArrayList<>();
+		ByteRange current = ranges.get(0);
+		for(ByteRange range : ranges.subList(1, ranges.size())) {
+			if(range.start <= current.getEnd() + 1) {
+				long end = Math.max(current.getEnd(), range.getEnd());
+				current = new ByteRange(current.start, end - current.start + 1);
+			} else {
+				merged.add(current);
+				current = range;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+
+	/**
+	 * Parses a byte position, which consists only of digits.
+	 *
+	 * @param text text of the position
+	 * @return position
+	 * @throws NumberFormatException if text is not a valid position
+	 */
+	private static long parsePosition(String text) {
+		if(text.isEmpty() || text.charAt(0) == '+') {
+			throw new NumberFormatException(text);
+		}
+		return Long.parseLong(text);
+	}
+
+}
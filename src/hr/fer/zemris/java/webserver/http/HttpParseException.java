@@ -0,0 +1,53 @@
+package hr.fer.zemris.java.webserver.http;
+
+/**
+ * HttpParseException is exception derived from RuntimeException which is 
+ * thrown when a HTTP request can not be parsed. It carries the status code 
+ * and status text of the error response which should be sent to the client.
+ * 
+ * @author Filip Klepo
+ *
+ */
+public class HttpParseException extends RuntimeException {
+
+	/**
+	 * Default serial version UID.
+	 */
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Status code of the error response.
+	 */
+	private final int statusCode;
+
+	/**
+	 * Constructs instance of this exception with given status of the error
+	 * response.
+	 * 
+	 * @param statusCode status code of the error response
+	 * @param statusText status text of the error response
+	 */
+	public HttpParseException(int statusCode, String statusText) {
+		super(statusText);
+		this.statusCode = statusCode;
+	}
+	
+	/**
+	 * Gets status code of the error response.
+	 * 
+	 * @return status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/**
+	 * Gets status text of the error response.
+	 * 
+	 * @return status text
+	 */
+	public String getStatusText() {
+		return getMessage();
+	}
+
+}
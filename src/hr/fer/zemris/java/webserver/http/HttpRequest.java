@@ -0,0 +1,204 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HttpRequest models the header of a HTTP request parsed by
+ * {@link HttpRequestParser}. It holds request's bytes together with offsets
+ * of its parts, and creates {@link String}s of the parts only when they are
+ * asked for. Header names are compared without creating any {@link String}.
+ *
+ * <p>Offsets are laid out in pairs of start (inclusive) and end (exclusive)
+ * index: method, path, query, version and then name and value of every
+ * header. Offsets of a missing part are -1.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+public class HttpRequest {
+
+	/**
+	 * Index of method's offsets.
+	 */
+	static final int METHOD = 0;
+	/**
+	 * Index of path's offsets.
+	 */
+	static final int PATH = 2;
+	/**
+	 * Index of query's offsets.
+	 */
+	static final int QUERY = 4;
+	/**
+	 * Index of version's offsets.
+	 */
+	static final int VERSION = 6;
+	/**
+	 * Index of the first header's offsets.
+	 */
+	static final int HEADERS = 8;
+
+	/**
+	 * Bytes of request's header.
+	 */
+	private final byte[] data;
+	/**
+	 * Offsets of request's parts.
+	 */
+	private final int[] offsets;
+	/**
+	 * Number of headers.
+	 */
+	private final int headerCount;
+
+	/**
+	 * Instantiates this class with given parameters.
+	 *
+	 * @param data bytes of request's header
+	 * @param offsets offsets of request's parts
+	 * @param headerCount number of headers
+	 */
+	HttpRequest(byte[] data, int[] offsets, int headerCount) {
+		this.data = data;
+		this.offsets = offsets;
+		this.headerCount = headerCount;
+	}
+
+	/**
+	 * Gets request's method.
+	 *
+	 * @return method
+	 */
+	public String getMethod() {
+		return part(METHOD);
+	}
+
+	/**
+	 * Gets requested path, without the query.
+	 *
+	 * @return path
+	 */
+	public String getPath() {
+		return part(PATH);
+	}
+
+	/**
+	 * Gets request's query, the part of request target after '?'.
+	 *
+	 * @return query, <b>null</b> if request target has no query
+	 */
+	public String getQuery() {
+		return part(QUERY);
+	}
+
+	/**
+	 * Gets request's HTTP version.
+	 *
+	 * @return version
+	 */
+	public String getVersion() {
+		return part(VERSION);
+	}
+
+	/**
+	 * Gets number of request's headers.
+	 *
+	 * @return number of headers
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Gets name of the header at given index.
+	 *
+	 * @param index index of header
+	 * @return header's name
+	 * @throws IndexOutOfBoundsException if index is invalid
+	 */
+	public String getHeaderName(int index) {
+		checkIndex(index);
+		return part(HEADERS + 4 * index);
+	}
+
+	/**
+	 * Gets value of the header at given index.
+	 *
+	 * @param index index of header
+	 * @return header's value
+	 * @throws IndexOutOfBoundsException if index is invalid
+	 */
+	public String getHeaderValue(int index) {
+		checkIndex(index);
+		return part(HEADERS + 4 * index + 2);
+	}
+
+	/**
+	 * Gets value of the first header with given name. Names are compared
+	 * case-insensitively.
+	 *
+	 * @param name header's name
+	 * @return header's value, <b>null</b> if there is no such header
+	 */
+	public String getHeader(String name) {
+		for(int i = 0; i < headerCount; ++i) {
+			if(nameEquals(i, name)) {
+				return part(HEADERS + 4 * i + 2);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if name of the header at given index equals given name,
+	 * ignoring case.
+	 *
+	 * @param index index of header
+	 * @param name name
+	 * @return <b>true</b> if names are equal
+	 */
+	private boolean nameEquals(int index, String name) {
+		int from = offsets[HEADERS + 4 * index];
+		int to = offsets[HEADERS + 4 * index + 1];
+		if(to - from != name.length()) {
+			return false;
+		}
+
+		for(int i = 0; i < name.length(); ++i) {
+			char c = (char)(data[from + i] & 0xFF);
+			if(Character.toLowerCase(c)
+					!= Character.toLowerCase(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates {@link String} of the part whose offsets are at given index.
+	 *
+	 * @param index index of part's offsets
+	 * @return part, <b>null</b> if part is missing
+	 */
+	private String part(int index) {
+		int from = offsets[index];
+		if(from == -1) {
+			return null;
+		}
+		return new String(data, from, offsets[index + 1] - from,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Checks if given header index is valid.
+	 *
+	 * @param index index of header
+	 * @throws IndexOutOfBoundsException if index is invalid
+	 */
+	private void checkIndex(int index) {
+		if(index < 0 || index >= headerCount) {
+			throw new IndexOutOfBoundsException("Invalid header index.");
+		}
+	}
+
+}
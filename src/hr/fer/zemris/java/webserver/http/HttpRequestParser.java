@@ -0,0 +1,297 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HttpRequestParser is an incremental parser of HTTP/1.x request headers.
+ * It works directly on bytes of a {@link ByteBuffer} and, instead of creating
+ * {@link String}s, records offsets of request's method, path, query, version
+ * and of every header's name and value. Parsing allocates nothing, so one
+ * parser can be reused for all requests received on a connection.
+ *
+ * <p>Request may arrive in several parts. Every call of
+ * {@link #parse(ByteBuffer)} examines only bytes which have not been
+ * examined by earlier calls, while the bytes themselves must stay where they
+ * are in the buffer until the request is complete. Once the request is
+ * complete, {@link #toRequest(ByteBuffer)} copies it out of the buffer and
+ * {@link #reset()} prepares the parser for the next request.</p>
+ *
+ * <p>Both <i>CRLF</i> and bare <i>LF</i> are accepted as line terminators and
+ * empty lines before the request line are ignored. Obsolete line folding of
+ * header values is rejected, as well as lines longer than the given maximal
+ * length and requests with more than the given number of headers.</p>
+ *
+ * @author Filip Klepo
+ *
+ */
+public class HttpRequestParser {
+
+	/**
+	 * Parser expects the request line.
+	 */
+	private static final int REQUEST_LINE = 0;
+	/**
+	 * Parser expects a header line or the empty line.
+	 */
+	private static final int HEADERS = 1;
+	/**
+	 * Parser has parsed the whole request.
+	 */
+	private static final int COMPLETE = 2;
+
+	/**
+	 * Maximal length of a single line, in bytes.
+	 */
+	private final int maxLineLength;
+	/**
+	 * Maximal number of headers.
+	 */
+	private final int maxHeaders;
+	/**
+	 * Offsets of request's parts, laid out as described by
+	 * {@link HttpRequest}.
+	 */
+	private final int[] offsets;
+	/**
+	 * Current state of this parser.
+	 */
+	private int state;
+	/**
+	 * Index of request's first byte, -1 if parsing has not started.
+	 */
+	private int start;
+	/**
+	 * Index of the next byte which is examined.
+	 */
+	private int position;
+	/**
+	 * Index of the first byte of the current line.
+	 */
+	private int lineStart;
+	/**
+	 * Number of parsed headers.
+	 */
+	private int headerCount;
+
+	/**
+	 * Instantiates this class with given limits.
+	 *
+	 * @param maxLineLength maximal length of a single line, in bytes
+	 * @param maxHeaders maximal number of headers
+	 * @throws IllegalArgumentException if any of given limits is lesser
+	 * than 1
+	 */
+	public HttpRequestParser(int maxLineLength, int maxHeaders) {
+		if(maxLineLength < 1 || maxHeaders < 1) {
+			throw new IllegalArgumentException("Limits must be positive.");
+		}
+
+		this.maxLineLength = maxLineLength;
+		this.maxHeaders = maxHeaders;
+		this.offsets = new int[HttpRequest.HEADERS + 4 * maxHeaders];
+		reset();
+	}
+
+	/**
+	 * Prepares this parser for the next request.
+	 */
+	public void reset() {
+		state = REQUEST_LINE;
+		start = -1;
+		headerCount = 0;
+		Arrays.fill(offsets, 0, HttpRequest.HEADERS, -1);
+	}
+
+	/**
+	 * Continues parsing of the request which starts at buffer's position, as
+	 * it was on the first call after {@link #reset()}. Bytes up to buffer's
+	 * limit are examined. If the request is complete, buffer's position is
+	 * moved right after request's header, otherwise it is unchanged.
+	 *
+	 * @param buffer buffer holding the request
+	 * @return <b>true</b> if the whole request's header has been parsed
+	 * @throws HttpParseException if request is malformed or exceeds limits
+	 */
+	public boolean parse(ByteBuffer buffer) {
+		if(state == COMPLETE) {
+			return true;
+		}
+		if(start == -1) {
+			start = buffer.position();
+			position = start;
+			lineStart = start;
+		}
+
+		int limit = buffer.limit();
+		while(position < limit) {
+			byte b = buffer.get(position++);
+			if(b != '\n') {
+				if(position - lineStart > maxLineLength) {
+					throw state == REQUEST_LINE
+							? new HttpParseException(414, "URI Too Long")
+							: new HttpParseException(
+									431, "Request Header Fields Too Large");
+				}
+				continue;
+			}
+
+			// 13 = \r ; 10 = \n
+			int lineEnd = position - 1;
+			if(lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+				lineEnd--;
+			}
+
+			if(state == REQUEST_LINE) {
+				if(lineEnd != lineStart) {
+					parseRequestLine(buffer, lineStart, lineEnd);
+					state = HEADERS;
+				}
+			} else if(lineEnd == lineStart) {
+				state = COMPLETE;
+				buffer.position(position);
+				return true;
+			} else {
+				parseHeaderLine(buffer, lineStart, lineEnd);
+			}
+			lineStart = position;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates {@link HttpRequest} of the parsed request by copying its bytes
+	 * out of given buffer.
+	 *
+	 * @param buffer buffer holding the request
+	 * @return parsed request
+	 * @throws IllegalStateException if request is not completely parsed
+	 */
+	public HttpRequest toRequest(ByteBuffer buffer) {
+		if(state != COMPLETE) {
+			throw new IllegalStateException("Request is not complete.");
+		}
+
+		byte[] data = new byte[position - start];
+		for(int i = 0; i < data.length; ++i) {
+			data[i] = buffer.get(start + i);
+		}
+		int[] requestOffsets =
+				Arrays.copyOf(offsets, HttpRequest.HEADERS + 4 * headerCount);
+		for(int i = 0; i < requestOffsets.length; ++i) {
+			if(requestOffsets[i] != -1) {
+				requestOffsets[i] -= start;
+			}
+		}
+		return new HttpRequest(data, requestOffsets, headerCount);
+	}
+
+	/**
+	 * Parses the request line, which consists of method, request target and
+	 * version separated by single spaces.
+	 *
+	 * @param buffer buffer holding the request
+	 * @param from index of line's first byte
+	 * @param to index after line's last byte
+	 * @throws HttpParseException if line is malformed
+	 */
+	private void parseRequestLine(ByteBuffer buffer, int from, int to) {
+		int firstSpace = indexOf(buffer, (byte)' ', from, to);
+		int secondSpace = firstSpace == -1
+				? -1
+				: indexOf(buffer, (byte)' ', firstSpace + 1, to);
+		if(firstSpace == -1 || secondSpace == -1
+				|| indexOf(buffer, (byte)' ', secondSpace + 1, to) != -1
+				|| firstSpace == from || secondSpace == firstSpace + 1
+				|| secondSpace + 1 == to) {
+			throw new HttpParseException(400, "Bad request");
+		}
+
+		offsets[HttpRequest.METHOD] = from;
+		offsets[HttpRequest.METHOD + 1] = firstSpace;
+
+		int questionMark =
+				indexOf(buffer, (byte)'?', firstSpace + 1, secondSpace);
+		offsets[HttpRequest.PATH] = firstSpace + 1;
+		offsets[HttpRequest.PATH + 1] =
+				questionMark == -1 ? secondSpace : questionMark;
+		if(questionMark != -1) {
+			offsets[HttpRequest.QUERY] = questionMark + 1;
+			offsets[HttpRequest.QUERY + 1] = secondSpace;
+		}
+
+		offsets[HttpRequest.VERSION] = secondSpace + 1;
+		offsets[HttpRequest.VERSION + 1] = to;
+	}
+
+	/**
+	 * Parses a header line, which consists of header's name, colon and
+	 * header's value optionally surrounded by whitespace.
+	 *
+	 * @param buffer buffer holding the request
+	 * @param from index of line's first byte
+	 * @param to index after line's last byte
+	 * @throws HttpParseException if line is malformed or there are too many
+	 * headers
+	 */
+	private void parseHeaderLine(ByteBuffer buffer, int from, int to) {
+		if(headerCount == maxHeaders) {
+			throw new HttpParseException(
+					431, "Request Header Fields Too Large");
+		}
+
+		int colon = indexOf(buffer, (byte)':', from, to);
+		if(colon == -1 || colon == from) {
+			throw new HttpParseException(400, "Bad request");
+		}
+		for(int i = from; i < colon; ++i) {
+			if(isWhitespace(buffer.get(i))) {
+				throw new HttpParseException(400, "Bad request");
+			}
+		}
+
+		int valueStart = colon + 1;
+		while(valueStart < to && isWhitespace(buffer.get(valueStart))) {
+			valueStart++;
+		}
+		int valueEnd = to;
+		while(valueEnd > valueStart && isWhitespace(buffer.get(valueEnd - 1))) {
+			valueEnd--;
+		}
+
+		int index = HttpRequest.HEADERS + 4 * headerCount++;
+		offsets[index] = from;
+		offsets[index + 1] = colon;
+		offsets[index + 2] = valueStart;
+		offsets[index + 3] = valueEnd;
+	}
+
+	/**
+	 * Finds the first occurrence of given byte.
+	 *
+	 * @param buffer buffer which is searched
+	 * @param b byte which is searched for
+	 * @param from index from which the search starts
+	 * @param to index at which the search ends, exclusive
+	 * @return index of the byte, -1 if there is no such byte
+	 */
+	private static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+		for(int i = from; i < to; ++i) {
+			if(buffer.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if given byte is a space or a horizontal tab.
+	 *
+	 * @param b byte
+	 * @return <b>true</b> if byte is whitespace
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+}
@@ -0,0 +1,154 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * HttpValidators offers static methods for creating and comparing validators
+ * of HTTP responses, entity tags and dates of last modification, which are
+ * used by conditional requests.
+ *
+ * @author Filip Klepo
+ *
+ */
+public class HttpValidators {
+
+	/**
+	 * Formatter of HTTP dates, e.g. <i>Sun, 06 Nov 1994 08:49:37 GMT</i>.
+	 */
+	private static final DateTimeFormatter HTTP_DATE =
+			DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	/**
+	 * Disables instantiation of this class.
+	 */
+	private HttpValidators() {
+	}
+
+	/**
+	 * Creates strong entity tag of a file with given size and time of last
+	 * modification.
+	 *
+	 * @param size size of the file in bytes
+	 * @param lastModified time of file's last modification, in milliseconds
+	 * @return entity tag, including the quotes
+	 */
+	public static String entityTag(long size, long lastModified) {
+		return entityTag(size, lastModified, null);
+	}
+
+	/**
+	 * Creates strong entity tag of a file with given size and time of last
+	 * modification, encoded with given content coding. Every encoded
+	 * variant of the file has a different tag.
+	 *
+	 * @param size size of the file in bytes
+	 * @param lastModified time of file's last modification, in milliseconds
+	 * @param coding content coding, <b>null</b> if file is not encoded
+	 * @return entity tag, including the quotes
+	 */
+	public static String entityTag(long size, long lastModified,
+			String coding) {
+		return "\"" + Long.toHexString(lastModified) + "-"
+				+ Long.toHexString(size)
+				+ (coding == null ? "" : "-" + coding) + "\"";
+	}
+
+	/**
+	 * Formats given time as HTTP date. Milliseconds are dropped.
+	 *
+	 * @param millis time in milliseconds
+	 * @return HTTP date
+	 */
+	public static String formatDate(long millis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses given HTTP date.
+	 *
+	 * @param date HTTP date
+	 * @return time in milliseconds, -1 if date can not be parsed
+	 */
+	public static long parseDate(String date) {
+		try {
+			return ZonedDateTime.parse(date.trim(), HTTP_DATE)
+					.toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Checks if value of <i>If-None-Match</i> header matches given entity
+	 * tag. Tags are compared weakly, as the header requires.
+	 *
+	 * @param ifNoneMatch value of the header
+	 * @param entityTag entity tag of the response
+	 * @return <b>true</b> if value is <i>*</i> or one of its tags matches
+	 */
+	public static boolean matchesAny(String ifNoneMatch, String entityTag) {
+		String tag = opaqueTag(entityTag);
+		for(String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if(candidate.equals("*") || opaqueTag(candidate).equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if value of <i>If-Range</i> header, either an entity tag or
+	 * a date, matches the current version of the response. Only strong
+	 * entity tags and exact dates match.
+	 *
+	 * @param ifRange value of the header
+	 * @param entityTag entity tag of the response
+	 * @param lastModified time of response's last modification, in
+	 * milliseconds
+	 * @return <b>true</b> if value matches
+	 */
+	public static boolean matchesRange(String ifRange, String entityTag,
+			long lastModified) {
+		ifRange = ifRange.trim();
+		if(ifRange.startsWith("\"")) {
+			return ifRange.equals(entityTag);
+		}
+		if(ifRange.startsWith("W/")) {
+			return false;
+		}
+		long date = parseDate(ifRange);
+		return date != -1 && date == lastModified / 1000 * 1000;
+	}
+
+	/**
+	 * Checks if response modified at given time has not been modified since
+	 * the date given by value of <i>If-Modified-Since</i> header.
+	 *
+	 * @param ifModifiedSince value of the header
+	 * @param lastModified time of response's last modification, in
+	 * milliseconds
+	 * @return <b>true</b> if date is valid and response has not been
+	 * modified since
+	 */
+	public static boolean notModifiedSince(String ifModifiedSince,
+			long lastModified) {
+		long date = parseDate(ifModifiedSince);
+		return date != -1 && lastModified / 1000 * 1000 <= date;
+	}
+
+	/**
+	 * Strips the weakness indicator of given entity tag.
+	 *
+	 * @param entityTag entity tag
+	 * @return opaque part of the tag, including the quotes
+	 */
+	private static String opaqueTag(String entityTag) {
+		return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+	}
+
+}
@@ -0,0 +1,65 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class AdaptiveLimitTests {
+
+	AdaptiveLimit limit;
+
+	@Before
+	public void init() {
+		limit = new AdaptiveLimit(10, 100, 0);
+	}
+
+	@Test
+	public void testRequestsOverLimitAreRejected() {
+		for(int i = 0; i < 10; ++i) {
+			assertTrue(limit.tryAcquire());
+		}
+		assertFalse(limit.tryAcquire());
+
+		limit.release(System.nanoTime());
+		assertTrue(limit.tryAcquire());
+	}
+
+	@Test
+	public void testLimitGrowsWhileLatencyIsStable() {
+		run(50, 1_000_000);
+		assertTrue(limit.getLimit() > 10);
+		assertTrue(limit.getLimit() <= 100);
+	}
+
+	@Test
+	public void testLimitShrinksWhenLatencyRises() {
+		run(30, 1_000_000);
+		int grown = limit.getLimit();
+		run(30, 4_000_000);
+		assertTrue(limit.getLimit() < grown);
+	}
+
+	@Test
+	public void testLimitDoesNotGrowWhenItIsNotUsed() {
+		for(int i = 0; i < 100; ++i) {
+			assertTrue(limit.tryAcquire());
+			limit.release(System.nanoTime() - 1_000_000);
+		}
+		assertEquals(10, limit.getLimit());
+	}
+
+	private void run(int windows, long latency) {
+		for(int window = 0; window < windows; ++window) {
+			int running = 0;
+			while(limit.tryAcquire()) {
+				running++;
+			}
+			for(int i = 0; i < running; ++i) {
+				limit.release(System.nanoTime() - latency);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package hr.fer.zemris.java.webserver.http;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class HttpRequestParserTests {
+	
+	HttpRequestParser parser;
+	
+	@Before
+	public void init() {
+		parser = new HttpRequestParser(64, 4);
+	}
+	
+	private static ByteBuffer buffer(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void testRequestParts() {
+		ByteBuffer buffer = buffer("GET /ext/EchoParams?a=1&b=2 HTTP/1.1\r\n"
+				+ "Host: localhost\r\nCookie:  sid=ABC \r\n\r\n");
+		
+		assertTrue(parser.parse(buffer));
+		HttpRequest request = parser.toRequest(buffer);
+		
+		assertEquals("GET", request.getMethod());
+		assertEquals("/ext/EchoParams", request.getPath());
+		assertEquals("a=1&b=2", request.getQuery());
+		assertEquals("HTTP/1.1", request.getVersion());
+		assertEquals(2, request.getHeaderCount());
+		assertEquals("Host", request.getHeaderName(0));
+		assertEquals("sid=ABC", request.getHeader("cookie"));
+		assertNull(request.getHeader("Connection"));
+	}
+	
+	@Test
+	public void testIncrementalParsingKeepsFollowingBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(128);
+		buffer.put("GET / HTTP/1.0\nHo".getBytes(StandardCharsets.ISO_8859_1));
+		buffer.flip();
+		assertFalse(parser.parse(buffer));
+		assertEquals(0, buffer.position());
+		
+		buffer.position(buffer.limit());
+		buffer.limit(buffer.capacity());
+		buffer.put("st: a\n\nGET /next".getBytes(StandardCharsets.ISO_8859_1));
+		buffer.flip();
+		assertTrue(parser.parse(buffer));
+		
+		HttpRequest request = parser.toRequest(buffer);
+		assertNull(request.getQuery());
+		assertEquals("a", request.getHeader("Host"));
+		assertEquals("GET /next", StandardCharsets.ISO_8859_1
+				.decode(buffer.slice()).toString());
+	}
+	
+	@Test
+	public void testMalformedRequestLine() {
+		try {
+			parser.parse(buffer("GET  / HTTP/1.1\r\n\r\n"));
+			fail("Request line with empty target must be rejected.");
+		} catch (HttpParseException e) {
+			assertEquals(400, e.getStatusCode());
+		}
+	}
+	
+	@Test
+	public void testLimits() {
+		try {
+			parser.parse(buffer("GET /" + new String(new char[80]) 
+					+ " HTTP/1.1\r\n\r\n"));
+			fail("Too long request line must be rejected.");
+		} catch (HttpParseException e) {
+			assertEquals(414, e.getStatusCode());
+		}
+		
+		parser.reset();
+		try {
+			parser.parse(buffer("GET / HTTP/1.1\r\na: 1\r\nb: 2\r\nc: 3\r\n"
+					+ "d: 4\r\ne: 5\r\n\r\n"));
+			fail("Too many headers must be rejected.");
+		} catch (HttpParseException e) {
+			assertEquals(431, e.getStatusCode());
+		}
+	}
+	
+	@Test(expected=HttpParseException.class)
+	public void testFoldedHeaderIsRejected() {
+		parser.parse(buffer("GET / HTTP/1.1\r\na: 1\r\n 2\r\n\r\n"));
+	}
+	
+}
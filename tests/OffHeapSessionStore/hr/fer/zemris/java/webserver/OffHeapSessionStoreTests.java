@@ -0,0 +1,103 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+@SuppressWarnings("javadoc")
+public class OffHeapSessionStoreTests {
+
+	OffHeapSessionStore store;
+	long now;
+
+	@Before
+	public void init() {
+		store = new OffHeapSessionStore(2);
+		now = System.currentTimeMillis() / 1000;
+	}
+
+	@Test
+	public void testParametersAreStored() {
+		Map<String, String> map = store.create("A", now + 10).map;
+		assertNull(store.create("A", now + 10));
+		map.put("name", "Ivan");
+		map.put("city", "Zagreb");
+		map.put("name", "Ana");
+
+		Map<String, String> touched = store.touch("A", now, now + 20).map;
+		assertEquals("Ana", touched.get("name"));
+		assertEquals("Zagreb", touched.get("city"));
+		assertNull(touched.get("age"));
+		assertEquals(2, touched.keySet().size());
+
+		assertEquals("Zagreb", touched.remove("city"));
+		assertNull(map.get("city"));
+		assertEquals(1, map.size());
+		assertNull(store.touch("B", now, now + 20));
+	}
+
+	@Test
+	public void testExpiredSessionIsRemoved() {
+		SessionMapEntry session = store.create("A", now + 10);
+		session.map.put("x", "1");
+		store.create("B", now + 100);
+
+		assertNull(store.touch("A", now + 11, now + 20));
+		assertNull(session.map.get("x"));
+		store.expire(now + 101);
+		assertEquals(0, store.getSize());
+		assertEquals(2, store.getExpiredCount());
+	}
+
+	@Test
+	public void testExtendedSessionIsKept() {
+		for(int i = 0; i < 100; ++i) {
+			store.create("S" + i, now + 10);
+		}
+		for(int i = 0; i < 100; i += 2) {
+			store.touch("S" + i, now, now + 2000);
+		}
+
+		store.expire(now + 11);
+		assertEquals(50, store.getSize());
+		store.expire(now + 1500);
+		assertEquals(50, store.getSize());
+		assertNotNull(store.touch("S98", now + 1500, now + 1500));
+		store.expire(now + 2001);
+		assertEquals(0, store.getSize());
+		assertEquals(100, store.getExpiredCount());
+	}
+
+	@Test
+	public void testMemoryOfExpiredSessionsIsReused() {
+		for(int i = 0; i < 5000; ++i) {
+			SessionMapEntry session = store.create("S" + i,
+					i % 5 == 0 ? now + 100 : now + 10);
+			session.map.put("value", "v" + i);
+			session.map.put("padding", "0123456789012345678901234567890");
+		}
+		long reserved = store.getReservedBytes();
+
+		store.expire(now + 11);
+		assertEquals(1000, store.getSize());
+		for(int i = 0; i < 5000; i += 5) {
+			assertEquals("v" + i, store.touch("S" + i, now, now).map.get("value"));
+		}
+
+		for(int i = 0; i < 4000; ++i) {
+			SessionMapEntry session = store.create("T" + i, now + 10);
+			session.map.put("value", "w" + i);
+			session.map.put("padding", "0123456789012345678901234567890");
+		}
+		assertEquals(5000, store.getSize());
+		assertTrue(store.getReservedBytes() <= reserved);
+		assertEquals("v4995", store.touch("S4995", now, now).map.get("value"));
+		assertEquals("w3999", store.touch("T3999", now, now).map.get("value"));
+	}
+
+}
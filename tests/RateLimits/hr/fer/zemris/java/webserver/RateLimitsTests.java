@@ -0,0 +1,93 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class RateLimitsTests {
+
+	RateLimits limits;
+
+	@Before
+	public void init() throws IOException {
+		limits = load("/ext/* = ip 1 3, session 1 2\n/cw = ip 1000 1\n");
+	}
+
+	@Test
+	public void testBurstIsAllowed() {
+		for(int i = 0; i < 3; ++i) {
+			assertEquals(0, limits.check("/ext/Echo", "10.0.0.1", null));
+		}
+		assertEquals(1, limits.check("/ext/Echo", "10.0.0.1", null));
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.2", null));
+		assertEquals(0, limits.check("/index.html", "10.0.0.1", null));
+	}
+
+	@Test
+	public void testSessionIsLimited() {
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.1", "A"));
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.2", "A"));
+		assertEquals(1, limits.check("/ext/Echo", "10.0.0.3", "A"));
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.3", "B"));
+	}
+
+	@Test
+	public void testCollidingKeysHaveOwnBuckets() {
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		for(int i = 0; i < 3; ++i) {
+			assertEquals(0, limits.check("/ext/Echo", "Aa", null));
+		}
+		assertEquals(1, limits.check("/ext/Echo", "Aa", null));
+		assertEquals(0, limits.check("/ext/Echo", "BB", null));
+
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.1", "Aa"));
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.2", "Aa"));
+		assertEquals(1, limits.check("/ext/Echo", "10.0.0.3", "Aa"));
+		assertEquals(0, limits.check("/ext/Echo", "10.0.0.4", "BB"));
+	}
+
+	@Test
+	public void testManyClientsFitInTable() {
+		for(int i = 0; i < 100_000; ++i) {
+			assertEquals(0, limits.check("/cw", "client" + i, null));
+		}
+	}
+
+	@Test
+	public void testBucketIsRefilled() throws InterruptedException {
+		assertEquals(0, limits.check("/cw", "10.0.0.1", null));
+		Thread.sleep(5);
+		assertEquals(0, limits.check("/cw", "10.0.0.1", null));
+	}
+
+	@Test
+	public void testResponseCarriesRetryAfter() {
+		String response = new String(limits.getResponse(7),
+				StandardCharsets.ISO_8859_1);
+		assertTrue(response.startsWith("HTTP/1.1 429 Too Many Requests\r\n"));
+		assertTrue(response.contains("\r\nRetry-After: 7\r\n"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidRule() throws IOException {
+		load("/ext/* = user 1 3\n");
+	}
+
+	private static RateLimits load(String rules) throws IOException {
+		Path file = Files.createTempFile("ratelimits", ".properties");
+		try {
+			Files.write(file, rules.getBytes(StandardCharsets.ISO_8859_1));
+			return new RateLimits(file.toString());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
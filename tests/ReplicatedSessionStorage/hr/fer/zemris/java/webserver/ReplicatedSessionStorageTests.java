@@ -0,0 +1,119 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+@SuppressWarnings("javadoc")
+public class ReplicatedSessionStorageTests {
+
+	InetSocketAddress firstAddress;
+	InetSocketAddress secondAddress;
+	ReplicatedSessionStorage first;
+	ReplicatedSessionStorage second;
+	long now;
+
+	@Before
+	public void init() throws IOException {
+		firstAddress = new InetSocketAddress("127.0.0.1", freePort());
+		secondAddress = new InetSocketAddress("127.0.0.1", freePort());
+		first = new ReplicatedSessionStorage(new SessionStore(), firstAddress,
+				Collections.singletonList(secondAddress));
+		now = System.currentTimeMillis() / 1000;
+	}
+
+	@After
+	public void close() throws IOException {
+		first.close();
+		if(second != null) {
+			second.close();
+		}
+	}
+
+	@Test
+	public void testChangesReachPeer() throws Exception {
+		second = new ReplicatedSessionStorage(new SessionStore(),
+				secondAddress, Arrays.asList(firstAddress));
+		SessionMapEntry session = first.create("A", now + 10);
+		session.map.put("name", "Ivan");
+		session.map.put("city", "Zagreb");
+
+		SessionMapEntry replica = await(second, "A", "name");
+		assertEquals("Ivan", replica.map.get("name"));
+		assertEquals("Zagreb", replica.map.get("city"));
+
+		replica.map.remove("city");
+		replica.map.put("name", "Ana");
+		for(int i = 0; i < 100
+				&& !"Ana".equals(first.touch("A", now, now).map.get("name"));
+				++i) {
+			Thread.sleep(20);
+		}
+		assertEquals("Ana", first.touch("A", now, now).map.get("name"));
+		assertNull(first.touch("A", now, now).map.get("city"));
+	}
+
+	@Test
+	public void testPeerIsReconnected() throws Exception {
+		first.create("A", now + 10).map.put("x", "1");
+		Thread.sleep(200);
+
+		second = new ReplicatedSessionStorage(new SessionStore(),
+				secondAddress, Collections.emptyList());
+		Thread.sleep(1100);
+		first.create("B", now + 10).map.put("x", "2");
+
+		assertEquals("2", await(second, "B", "x").map.get("x"));
+		assertEquals("1", await(second, "A", "x").map.get("x"));
+	}
+
+	@Test
+	public void testLateInstanceReceivesSessions() throws Exception {
+		SessionMapEntry session = first.create("A", now + 10);
+		session.map.put("name", "Ivan");
+		first.create("B", now + 10);
+		first.touch("B", now, now + 20).map.put("city", "Zagreb");
+		first.create("C", now - 10);
+		Thread.sleep(200);
+
+		second = new ReplicatedSessionStorage(new OffHeapSessionStore(),
+				secondAddress, Collections.singletonList(firstAddress));
+
+		assertEquals("Ivan", await(second, "A", "name").map.get("name"));
+		SessionMapEntry replica = await(second, "B", "city");
+		assertEquals("Zagreb", replica.map.get("city"));
+		assertEquals(now + 20, replica.validUntil);
+		assertNull(second.touch("C", now, now));
+	}
+
+	private static SessionMapEntry await(SessionStorage storage, String sid,
+			String key) throws InterruptedException {
+		long now = System.currentTimeMillis() / 1000;
+		for(int i = 0; i < 150; ++i) {
+			SessionMapEntry session = storage.touch(sid, now, now);
+			if(session != null && session.map.get(key) != null) {
+				return session;
+			}
+			Thread.sleep(20);
+		}
+		fail("Session " + sid + " has not been replicated.");
+		return null;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+}
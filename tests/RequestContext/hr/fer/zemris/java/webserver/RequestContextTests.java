@@ -4,6 +4,11 @@ import static org.junit.Assert.*;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -113,6 +118,164 @@ public class RequestContextTests {
 		assertEquals(exp, new String(os.toByteArray()));
 	}
 	
+	@Test
+	public void testFramedResponseWithUnknownLength() throws IOException {
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rq.setMimeType("text/plain");
+		rq.setFramingRequired(true);
+		rq.addHeader("Connection", "keep-alive");
+		
+		rq.write("Fil");
+		rq.write("ip");
+		assertEquals(0, os.size());
+		rq.finish();
+		
+		String exp = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset= "
+				+ "UTF-8\r\nContent-Length: 5\r\nConnection: keep-alive"
+				+ "\r\n\r\nFilip";
+		
+		assertEquals(exp, new String(os.toByteArray()));
+	}
+	
+	@Test
+	public void testChunkedResponseWithUnknownLength() throws IOException {
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rq.setMimeType("text/plain");
+		rq.setFramingRequired(true);
+		rq.setChunkingAllowed(true);
+		
+		rq.write("Filip");
+		rq.write("Klepo");
+		rq.finish();
+		
+		String exp = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset= "
+				+ "UTF-8\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "a\r\nFilipKlepo\r\n0\r\n\r\n";
+		
+		assertEquals(exp, new String(os.toByteArray()));
+	}
+	
+	@Test
+	public void testNotModifiedResponseHasNoLength() throws IOException {
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rq.setMimeType("text/plain");
+		rq.setFramingRequired(true);
+		rq.setStatusCode(304);
+		rq.setStatusText("Not Modified");
+		rq.addHeader("ETag", "\"1-5\"");
+		rq.finish();
+		
+		String exp = "HTTP/1.1 304 Not Modified\r\nContent-Type: text/plain; "
+				+ "charset= UTF-8\r\nETag: \"1-5\"\r\n\r\n";
+		
+		assertEquals(exp, new String(os.toByteArray()));
+	}
+	
+	@Test
+	public void testFileRegionIsWritten() throws IOException {
+		Path file = Files.createTempFile("rc", ".txt");
+		try {
+			Files.write(file, "--Filip--".getBytes(StandardCharsets.UTF_8));
+			RequestContext rq = new RequestContext(
+					os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+			rq.setMimeType("text/plain");
+			rq.setContentLength(5);
+			
+			FileChannel channel = FileChannel.open(file);
+			rq.write(channel, 2, 5);
+			assertFalse(channel.isOpen());
+			
+			String exp = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset= "
+					+ "UTF-8\r\nContent-Length: 5\r\n\r\nFilip";
+			assertEquals(exp, new String(os.toByteArray()));
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	@Test
+	public void testBufferIsWrittenWithoutChangingIt() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(9);
+		buffer.put("--Filip--".getBytes(StandardCharsets.UTF_8)).flip();
+		buffer.position(2).limit(7);
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rq.setMimeType("text/plain");
+		rq.setContentLength(5);
+		rq.write(buffer);
+		
+		assertEquals(2, buffer.position());
+		String exp = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset= "
+				+ "UTF-8\r\nContent-Length: 5\r\n\r\nFilip";
+		assertEquals(exp, new String(os.toByteArray()));
+	}
+	
+	@Test
+	public void testBufferedResponseIsWrittenOnFlush() throws IOException {
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rq.setOutputBuffer(new byte[1024]);
+		rq.setMimeType("text/plain");
+		rq.setContentLength(10);
+		rq.write("Filip".getBytes(StandardCharsets.UTF_8));
+		assertEquals(0, os.size());
+		
+		rq.flush();
+		String exp = "HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset= "
+				+ "UTF-8\r\nContent-Length: 10\r\n\r\nFilip";
+		assertEquals(exp, new String(os.toByteArray()));
+		
+		rq.write("Filip".getBytes(StandardCharsets.UTF_8));
+		rq.finish();
+		assertEquals(exp + "Filip", new String(os.toByteArray()));
+	}
+	
+	@Test
+	public void testHeaderWithDateAndUncommonStatus() throws IOException {
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rq.setDateIncluded(true);
+		rq.setStatusCode(200);
+		rq.setStatusText("Fine");
+		rq.setMimeType("text/plain");
+		rq.setEncoding("UTF-16");
+		rq.setContentLength(0);
+		rq.write(new byte[0]);
+		
+		String[] lines = new String(os.toByteArray()).split("\r\n");
+		assertEquals("HTTP/1.1 200 Fine", lines[0]);
+		assertEquals("Content-Type: text/plain; charset= UTF-16", lines[1]);
+		assertTrue(lines[2].matches("Date: \\w{3}, \\d{1,2} \\w{3} \\d{4} "
+				+ "\\d{2}:\\d{2}:\\d{2} GMT"));
+		assertEquals("Content-Length: 0", lines[3]);
+	}
+	
+	@Test
+	public void testSessionIsStartedLazily() {
+		Map<String, String> session = new HashMap<>();
+		int[] started = new int[1];
+		RequestContext rq = new RequestContext(
+				os, new HashMap<>(), null, new ArrayList<>());
+		rq.setSessionStarter(() -> {
+			started[0]++;
+			return session;
+		});
+		
+		assertNull(rq.getPersistentParameter("Filip"));
+		assertTrue(rq.getPersistentParameterNames().isEmpty());
+		rq.removePersistentParameter("Filip");
+		assertEquals(0, started[0]);
+		
+		rq.setPersistentParameter("Filip", "ja");
+		rq.setPersistentParameter("Klepo", "ti");
+		assertEquals(1, started[0]);
+		assertEquals("ja", session.get("Filip"));
+		assertEquals("ti", rq.getPersistentParameter("Klepo"));
+	}
+	
 	@Test
 	public void testOperationsAfterHeaderGeneration() {
 		RequestContext rq = new RequestContext(
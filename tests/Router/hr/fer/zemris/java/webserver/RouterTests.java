@@ -0,0 +1,85 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class RouterTests {
+
+	Router<String> router;
+
+	@Before
+	public void init() {
+		router = new Router<>();
+		router.add("/hello", "hello");
+		router.add("/users/{id}", "user");
+		router.add("/users/me", "me");
+		router.add("/users/{id}/posts/{post}", "post");
+		router.add("/ext/*", "ext");
+		router.add("/ext/admin/*", "admin");
+	}
+
+	@Test
+	public void testExactRoute() {
+		assertEquals("hello", router.find("/hello").getValue());
+		assertTrue(router.find("/hello").getParameters().isEmpty());
+		assertNull(router.find("/hello/"));
+		assertNull(router.find("/hell"));
+		assertNull(router.find("/"));
+	}
+
+	@Test
+	public void testParametersAreCaptured() {
+		Router.Match<String> match = router.find("/users/42/posts/7");
+		assertEquals("post", match.getValue());
+		assertEquals("/users/{id}/posts/{post}", match.getPattern());
+		assertEquals("42", match.getParameters().get("id"));
+		assertEquals("7", match.getParameters().get("post"));
+
+		assertEquals("user", router.find("/users/42").getValue());
+		assertNull(router.find("/users/"));
+		assertNull(router.find("/users/42/posts"));
+	}
+
+	@Test
+	public void testStaticSegmentTakesPrecedence() {
+		Router.Match<String> match = router.find("/users/me");
+		assertEquals("me", match.getValue());
+		assertTrue(match.getParameters().isEmpty());
+	}
+
+	@Test
+	public void testParameterIsTriedWhenStaticSegmentFails() {
+		router.add("/a/b/c", "abc");
+		router.add("/a/{x}/d", "axd");
+
+		Router.Match<String> match = router.find("/a/b/d");
+		assertEquals("axd", match.getValue());
+		assertEquals("b", match.getParameters().get("x"));
+		assertEquals("abc", router.find("/a/b/c").getValue());
+		assertEquals("post", router.find("/users/me/posts/7").getValue());
+		assertNull(router.find("/a/b/e"));
+	}
+
+	@Test
+	public void testLongestPrefixRoute() {
+		assertEquals("ext", router.find("/ext/EchoParams").getValue());
+		assertEquals("ext", router.find("/ext/a/b").getValue());
+		assertEquals("admin", router.find("/ext/admin/x").getValue());
+		assertEquals("ext", router.find("/ext/admin").getValue());
+		assertNull(router.find("/ext"));
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testDuplicateRoute() {
+		router.add("/hello", "again");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testConflictingParameter() {
+		router.add("/users/{name}/friends", "friends");
+	}
+
+}
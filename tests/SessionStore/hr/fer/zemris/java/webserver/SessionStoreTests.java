@@ -0,0 +1,66 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.SessionStore.SessionMapEntry;
+
+@SuppressWarnings("javadoc")
+public class SessionStoreTests {
+
+	SessionStore store;
+	long now;
+
+	@Before
+	public void init() {
+		store = new SessionStore(4);
+		now = System.currentTimeMillis() / 1000;
+	}
+
+	@Test
+	public void testTouchExtendsValidity() {
+		SessionMapEntry session = new SessionMapEntry("A", now + 10);
+		assertTrue(store.add(session));
+		assertFalse(store.add(new SessionMapEntry("A", now + 10)));
+
+		assertSame(session, store.touch("A", now + 5, now + 20));
+		assertEquals(now + 20, session.validUntil);
+		assertNull(store.touch("B", now, now + 20));
+		assertNull(store.touch(null, now, now + 20));
+	}
+
+	@Test
+	public void testExpiredSessionIsNotReturned() {
+		store.add(new SessionMapEntry("A", now + 10));
+
+		assertNull(store.touch("A", now + 11, now + 20));
+		assertEquals(0, store.getSize());
+		assertEquals(1, store.getExpiredCount());
+	}
+
+	@Test
+	public void testWheelRemovesOnlyExpiredSessions() {
+		store.add(new SessionMapEntry("A", now + 10));
+		store.add(new SessionMapEntry("B", now + 10));
+		store.add(new SessionMapEntry("C", now + 2000));
+		store.touch("B", now + 5, now + 30);
+
+		store.expire(now + 10);
+		assertEquals(3, store.getSize());
+		store.expire(now + 11);
+		assertEquals(2, store.getSize());
+		assertNull(store.touch("A", now + 11, now + 40));
+		assertNotNull(store.touch("B", now + 11, now + 30));
+
+		store.expire(now + 31);
+		assertEquals(1, store.getSize());
+		assertEquals(2, store.getExpiredCount());
+		assertEquals(3, store.getCreatedCount());
+
+		store.expire(now + 2001);
+		assertEquals(0, store.getSize());
+	}
+
+}
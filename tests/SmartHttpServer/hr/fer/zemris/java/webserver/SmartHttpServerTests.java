@@ -0,0 +1,132 @@
+package hr.fer.zemris.java.webserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class SmartHttpServerTests {
+
+	Path root;
+	int port;
+	SmartHttpServer server;
+
+	public static class FailingWorker implements IWebWorker {
+		@Override
+		public void processRequest(RequestContext context) {
+			throw new IllegalStateException("Worker failed.");
+		}
+	}
+
+	public static class OkWorker implements IWebWorker {
+		@Override
+		public void processRequest(RequestContext context) {
+			try {
+				context.write("ok");
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	@Before
+	public void init() throws IOException {
+		root = Files.createTempDirectory("server");
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		write("mime.properties", "html = text/html\n");
+		write("workers.properties",
+				"/fail = " + FailingWorker.class.getName() + "\n"
+				+ "/ok = " + OkWorker.class.getName() + "\n");
+	}
+
+	@After
+	public void close() throws IOException {
+		if(server != null) {
+			server.stop();
+		}
+		for(String name : new String[] {"mime.properties",
+				"workers.properties", "server.properties"}) {
+			Files.deleteIfExists(root.resolve(name));
+		}
+		Files.delete(root);
+	}
+
+	@Test
+	public void testReactorSurvivesFailingWorker() throws Exception {
+		start("server.executor = reactor\nserver.acceptors = 1\n");
+
+		for(int i = 0; i < 2; ++i) {
+			assertFalse(get("/fail").startsWith("HTTP/1.1 200"));
+		}
+		String response = get("/ok");
+		assertTrue(response.startsWith("HTTP/1.1 200"));
+		assertTrue(response.endsWith("ok"));
+	}
+
+	private void start(String extraProps) throws IOException {
+		write("server.properties", "server.address = 127.0.0.1\n"
+				+ "server.port = " + port + "\n"
+				+ "server.workerThreads = 2\n"
+				+ "server.documentRoot = " + root + "\n"
+				+ "server.mimeConfig = " + root.resolve("mime.properties")
+						.toString().replace("\\", "/") + "\n"
+				+ "server.workers = " + root.resolve("workers.properties")
+						.toString().replace("\\", "/") + "\n"
+				+ "session.timeout = 600\n" + extraProps);
+		server = new SmartHttpServer(
+				root.resolve("server.properties").toString());
+		server.start();
+	}
+
+	private String get(String path) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (Socket socket = connect()) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n"
+					+ "Host: localhost\r\nConnection: close\r\n\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1));
+			InputStream is = socket.getInputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while((read = is.read(buffer)) != -1) {
+				bos.write(buffer, 0, read);
+			}
+		} catch (SocketException e) {
+			//connection reset by the server
+		}
+		return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private Socket connect() throws Exception {
+		for(int attempt = 0; ; ++attempt) {
+			try {
+				return new Socket("127.0.0.1", port);
+			} catch (ConnectException e) {
+				if(attempt == 50) {
+					throw e;
+				}
+				Thread.sleep(20);
+			}
+		}
+	}
+
+	private void write(String name, String content) throws IOException {
+		Files.write(root.resolve(name),
+				content.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+}